@@ -0,0 +1,542 @@
+package voicesplitting.generic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A <code>Beam</code> is a bounded container holding the best {@link MidiModelState}s which
+ * have been added to it, up to a fixed {@link #capacity}. It is used in place of a
+ * <code>TreeSet</code> which is trimmed after every insert.
+ * <p>
+ * Internally, the states are stored in a binary heap with the worst state at its root. This
+ * allows any candidate whose score is lower than that of the current worst state to be rejected
+ * in constant time, using {@link #wouldAccept(double)}, without any calls to <code>compareTo</code>.
+ * <p>
+ * As with a TreeSet, the ordering of the states is given by their natural ordering (so any
+ * MidiModelState added here must implement <code>Comparable</code>, as noted in
+ * {@link MidiModelState}), and states which are equal according to it are only stored once.
+ * The scores returned by {@link MidiModelState#getScore()} must agree with that ordering.
+ * <p>
+ * A Beam can also be set to recombine states. In that case, any two states with equal
+ * (non-null) {@link MidiModelState#getRecombinationKey()}s are assumed to score all future
+ * transitions identically, and only the better of the two is kept.
+ * <p>
+ * Finally, a Beam can be adaptive, with a {@link #margin} and a {@link #minSize}. Then, after all of
+ * its states have been added, {@link #prune()} removes every state whose score is more than the margin
+ * below the best state's, except for the best <code>minSize</code> states. Its capacity is then only
+ * its maximum size.
+ * <p>
+ * Iterating over a Beam returns its states in their natural order, best first.
+ *
+ * @version 1.0
+ * @since 1.0
+ * @param <S> The type of MidiModelState this Beam holds.
+ */
+public class Beam<S extends MidiModelState> implements Iterable<S> {
+
+	/**
+	 * A Comparator which orders MidiModelStates by their natural ordering, as used by {@link #compare(MidiModelState, MidiModelState)}.
+	 */
+	private static final Comparator<MidiModelState> NATURAL_ORDER = new Comparator<MidiModelState>() {
+		@Override
+		public int compare(MidiModelState s1, MidiModelState s2) {
+			return Beam.compare(s1, s2);
+		}
+	};
+
+	/**
+	 * The maximum number of states this Beam can hold.
+	 */
+	private final int capacity;
+
+	/**
+	 * The number of states which {@link #prune()} always keeps (if this Beam has that many).
+	 */
+	private final int minSize;
+
+	/**
+	 * The largest difference in score from the best state which {@link #prune()} keeps, or
+	 * {@link Double#POSITIVE_INFINITY} if this Beam is not adaptive.
+	 */
+	private final double margin;
+
+	/**
+	 * The score of the best state which has been added to this Beam.
+	 */
+	private double bestScore;
+
+	/**
+	 * The heap of states, with the worst state at index 0. Only the first {@link #size}
+	 * entries are valid.
+	 */
+	private MidiModelState[] heap;
+
+	/**
+	 * The number of states currently in this Beam.
+	 */
+	private int size;
+
+	/**
+	 * A Map of the recombination key of each state in this Beam to that state, if this Beam
+	 * recombines states. Null otherwise.
+	 */
+	private final Map<Object, MidiModelState> recombinationMap;
+
+	/**
+	 * The number of times two states with equal recombination keys have been merged in this Beam.
+	 */
+	private int recombinations;
+
+	/**
+	 * Create a new empty Beam with the given capacity, which does not recombine states.
+	 *
+	 * @param capacity {@link #capacity}
+	 */
+	public Beam(int capacity) {
+		this(capacity, false);
+	}
+
+	/**
+	 * Create a new empty Beam with the given capacity.
+	 *
+	 * @param capacity {@link #capacity}
+	 * @param recombine True if this Beam should recombine states with equal recombination keys.
+	 * False otherwise.
+	 */
+	public Beam(int capacity, boolean recombine) {
+		this(capacity, recombine, capacity, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Create a new empty adaptive Beam with the given maximum size.
+	 *
+	 * @param capacity {@link #capacity}
+	 * @param recombine True if this Beam should recombine states with equal recombination keys.
+	 * False otherwise.
+	 * @param minSize {@link #minSize}
+	 * @param margin {@link #margin}
+	 */
+	public Beam(int capacity, boolean recombine, int minSize, double margin) {
+		this.capacity = Math.max(capacity, 0);
+		this.minSize = Math.max(minSize, 1);
+		this.margin = margin;
+		bestScore = Double.NEGATIVE_INFINITY;
+		heap = new MidiModelState[Math.min(this.capacity, 16)];
+		size = 0;
+
+		recombinationMap = recombine ? new HashMap<Object, MidiModelState>() : null;
+		recombinations = 0;
+	}
+
+	/**
+	 * Decide whether a state with the given score could possibly be added to this Beam.
+	 * This runs in constant time, and should be called before building any candidate state.
+	 * <p>
+	 * A return value of true does not guarantee that the state will be added, since a state
+	 * with a score equal to the current worst state's is decided by <code>compareTo</code>.
+	 * <p>
+	 * If this Beam is adaptive, a state is also rejected if it is worse than every state in this
+	 * Beam, there are at least {@link #minSize} of them, and it is outside of the {@link #margin} of
+	 * the best one. Such a state would always be removed by {@link #prune()}.
+	 *
+	 * @param score The score of a potential new state.
+	 * @return False if a state with the given score would certainly be rejected. True otherwise.
+	 */
+	public boolean wouldAccept(double score) {
+		if (size == 0) {
+			return capacity != 0;
+		}
+
+		if (size >= minSize && score < bestScore - margin && score < heap[0].getScore()) {
+			return false;
+		}
+
+		return size < capacity || score >= heap[0].getScore();
+	}
+
+	/**
+	 * Get the score a new state must reach in order to be added to this Beam.
+	 *
+	 * @return The score of the worst state in this Beam if it is full, or
+	 * {@link Double#NEGATIVE_INFINITY} if it is not.
+	 */
+	public double getThreshold() {
+		if (capacity == 0) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		return size < capacity ? Double.NEGATIVE_INFINITY : heap[0].getScore();
+	}
+
+	/**
+	 * Add the given state into this Beam, if it is good enough. If this Beam is full
+	 * and the state is added, the worst state is removed.
+	 * <p>
+	 * If this Beam recombines states and it already contains a state with the same recombination
+	 * key as the given one, only the better of those two states is kept.
+	 *
+	 * @param state The state we want to add.
+	 * @return True if the state was added. False otherwise.
+	 */
+	public boolean add(S state) {
+		if (!wouldAccept(state.getScore())) {
+			return false;
+		}
+
+		Object key = null;
+		if (recombinationMap != null) {
+			key = state.getRecombinationKey();
+
+			if (key != null) {
+				MidiModelState equivalent = recombinationMap.get(key);
+
+				if (equivalent != null) {
+					recombinations++;
+
+					if (compare(state, equivalent) >= 0) {
+						return false;
+					}
+
+					removeAt(indexOf(equivalent));
+				}
+			}
+		}
+
+		if (size == capacity && compare(state, heap[0]) >= 0) {
+			// Equal score, but the worst state still comes first
+			return false;
+		}
+
+		if (contains(state)) {
+			return false;
+		}
+
+		if (size == capacity) {
+			forget(heap[0]);
+			heap[0] = state;
+			siftDown(0);
+
+		} else {
+			if (size == heap.length) {
+				heap = Arrays.copyOf(heap, Math.min(capacity, heap.length * 2));
+			}
+			heap[size] = state;
+			siftUp(size++);
+		}
+
+		if (key != null) {
+			recombinationMap.put(key, state);
+		}
+
+		bestScore = Math.max(bestScore, state.getScore());
+		return true;
+	}
+
+	/**
+	 * Remove every state from this Beam whose score is more than {@link #margin} below the best
+	 * state's, except for the best {@link #minSize} states. This does nothing if this Beam is not adaptive.
+	 *
+	 * @return The number of states removed.
+	 */
+	public int prune() {
+		if (margin == Double.POSITIVE_INFINITY || size <= minSize) {
+			return 0;
+		}
+
+		List<S> states = getOrderedStates();
+		double threshold = states.get(0).getScore() - margin;
+
+		int keep = minSize;
+		while (keep < size && states.get(keep).getScore() >= threshold) {
+			keep++;
+		}
+
+		int removed = size - keep;
+		for (int i = keep; i < size; i++) {
+			forget(states.get(i));
+		}
+
+		// A List ordered from worst to best is a valid heap
+		for (int i = 0; i < keep; i++) {
+			heap[i] = states.get(keep - 1 - i);
+		}
+		Arrays.fill(heap, keep, size, null);
+		size = keep;
+
+		return removed;
+	}
+
+	/**
+	 * Add all of the states from the given Beam into this one. The number of recombinations
+	 * performed by the given Beam is added to this one's.
+	 *
+	 * @param other The Beam whose states we want to add.
+	 */
+	public void addAll(Beam<? extends S> other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.get(i));
+		}
+
+		recombinations += other.recombinations;
+	}
+
+	/**
+	 * Get the index of the given state in the heap.
+	 *
+	 * @param state The state to look for.
+	 * @return The index of the given state in the heap, or -1 if it is not in this Beam.
+	 */
+	private int indexOf(MidiModelState state) {
+		for (int i = 0; i < size; i++) {
+			if (heap[i] == state) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Remove the state at the given index of the heap.
+	 *
+	 * @param index The index of the state to remove.
+	 */
+	private void removeAt(int index) {
+		forget(heap[index]);
+
+		size--;
+		if (index != size) {
+			heap[index] = heap[size];
+			siftDown(index);
+			siftUp(index);
+		}
+		heap[size] = null;
+	}
+
+	/**
+	 * Remove the given state from {@link #recombinationMap}, if it is there. This should be
+	 * called whenever a state is removed from the heap.
+	 *
+	 * @param state The state which is being removed.
+	 */
+	private void forget(MidiModelState state) {
+		if (recombinationMap != null) {
+			Object key = state.getRecombinationKey();
+
+			if (key != null && recombinationMap.get(key) == state) {
+				recombinationMap.remove(key);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of times that two equivalent states have been merged in this Beam.
+	 *
+	 * @return {@link #recombinations}
+	 */
+	public int getNumRecombinations() {
+		return recombinations;
+	}
+
+	/**
+	 * Check whether a state equal to the given one (by natural ordering) is in this Beam already.
+	 * Only states with an equal score are compared.
+	 *
+	 * @param state The state to look for.
+	 * @return True if an equal state is in this Beam. False otherwise.
+	 */
+	private boolean contains(S state) {
+		double score = state.getScore();
+
+		for (int i = 0; i < size; i++) {
+			if (heap[i].getScore() == score && compare(state, heap[i]) == 0) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Get the best state in this Beam.
+	 *
+	 * @return The best state in this Beam, or null if it is empty.
+	 */
+	public S first() {
+		S best = null;
+
+		for (int i = 0; i < size; i++) {
+			if (best == null || compare(get(i), best) < 0) {
+				best = get(i);
+			}
+		}
+
+		return best;
+	}
+
+	/**
+	 * Get a List of the states in this Beam, in their natural order (best first).
+	 *
+	 * @return A new List of the states in this Beam.
+	 */
+	public List<S> getOrderedStates() {
+		List<S> states = new ArrayList<S>(size);
+
+		for (int i = 0; i < size; i++) {
+			states.add(get(i));
+		}
+
+		Collections.sort(states, NATURAL_ORDER);
+		return states;
+	}
+
+	/**
+	 * Get the states in this Beam, in their natural order (best first).
+	 *
+	 * @return An Iterator over the states in this Beam.
+	 */
+	@Override
+	public Iterator<S> iterator() {
+		return getOrderedStates().iterator();
+	}
+
+	/**
+	 * Get the number of states currently in this Beam.
+	 *
+	 * @return {@link #size}
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Return whether this Beam is empty or not.
+	 *
+	 * @return True if this Beam contains no states. False otherwise.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get the capacity of this Beam.
+	 *
+	 * @return {@link #capacity}
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of states which {@link #prune()} always keeps.
+	 *
+	 * @return {@link #minSize}
+	 */
+	public int getMinSize() {
+		return minSize;
+	}
+
+	/**
+	 * Get the margin of this Beam.
+	 *
+	 * @return {@link #margin}, which is {@link Double#POSITIVE_INFINITY} if this Beam is not adaptive.
+	 */
+	public double getMargin() {
+		return margin;
+	}
+
+	/**
+	 * Get the state at the given index of the heap.
+	 *
+	 * @param index The index of the state we want.
+	 * @return The state at the given heap index.
+	 */
+	@SuppressWarnings("unchecked")
+	private S get(int index) {
+		return (S) heap[index];
+	}
+
+	/**
+	 * Move the state at the given index up the heap until it is in place.
+	 *
+	 * @param index The index of the state to move.
+	 */
+	private void siftUp(int index) {
+		MidiModelState state = heap[index];
+
+		while (index > 0) {
+			int parent = (index - 1) / 2;
+			if (compare(state, heap[parent]) <= 0) {
+				break;
+			}
+
+			heap[index] = heap[parent];
+			index = parent;
+		}
+
+		heap[index] = state;
+	}
+
+	/**
+	 * Move the state at the given index down the heap until it is in place.
+	 *
+	 * @param index The index of the state to move.
+	 */
+	private void siftDown(int index) {
+		MidiModelState state = heap[index];
+
+		while (true) {
+			int child = 2 * index + 1;
+			if (child >= size) {
+				break;
+			}
+
+			if (child + 1 < size && compare(heap[child + 1], heap[child]) > 0) {
+				child++;
+			}
+
+			if (compare(state, heap[child]) >= 0) {
+				break;
+			}
+
+			heap[index] = heap[child];
+			index = child;
+		}
+
+		heap[index] = state;
+	}
+
+	/**
+	 * Compare the two given states by their natural ordering, checking the scores first.
+	 *
+	 * @param s1 The first state.
+	 * @param s2 The second state.
+	 * @return A negative number if s1 comes first, positive if s2 comes first, or 0 if they are equal.
+	 */
+	@SuppressWarnings("unchecked")
+	private static int compare(MidiModelState s1, MidiModelState s2) {
+		int result = Double.compare(s2.getScore(), s1.getScore());
+		if (result != 0) {
+			return result;
+		}
+
+		return ((Comparable<MidiModelState>) s1).compareTo(s2);
+	}
+
+	/**
+	 * Get the String representation of this Beam, which is the List of its states in their
+	 * natural order.
+	 *
+	 * @return The String representation of this Beam.
+	 */
+	@Override
+	public String toString() {
+		return getOrderedStates().toString();
+	}
+}
@@ -1,7 +1,6 @@
 package voicesplitting.generic;
 
 import java.util.List;
-import java.util.TreeSet;
 
 import voicesplitting.utils.MidiNote;
 
@@ -42,16 +41,16 @@ public abstract class MidiModel {
 	public abstract void handleIncoming(List<MidiNote> notes);
 	
 	/**
-	 * This method returns a TreeSet of the current hypothesis states of this MidiModel.
+	 * This method returns a {@link Beam} of the current hypothesis states of this MidiModel.
 	 * <p>
 	 * The most highly scoring state can be retrieved by using <code>getHypotheses().first()</code>.
 	 * <p>
 	 * NOTE: This is dependent on proper implimentation of the {@link MidiModelState}'s
 	 * <code>compareTo</code> method.
 	 * 
-	 * @return A TreeSet of the current hypothesis states of this MidiModel, in their natural order.
+	 * @return A Beam of the current hypothesis states of this MidiModel, in their natural order.
 	 */
-	public abstract TreeSet<? extends MidiModelState> getHypotheses();
+	public abstract Beam<? extends MidiModelState> getHypotheses();
 	
 	/**
 	 * Return the String representation of this MidiModel. It will be an ordered list of its current
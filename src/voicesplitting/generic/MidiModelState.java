@@ -1,7 +1,6 @@
 package voicesplitting.generic;
 
 import java.util.List;
-import java.util.TreeSet;
 
 import voicesplitting.utils.MidiNote;
 
@@ -17,7 +16,7 @@ import voicesplitting.utils.MidiNote;
  * <p>
  * <b>IMPORTANT</b>: The correct functionality of a MidiModelState is dependent on any non-abstract
  * subclass implementing the <code>Comparable</code> interface, ordering more likely
- * MidiModelStates more highly. This is due to use of java's <code>TreeSet</code> object,
+ * MidiModelStates more highly. This is due to use of the {@link Beam} object,
  * which sorts based on the <code>compareTo</code> method of each object. Most likely,
  * you'll want to use {@link #getScore()} as the main metric for comparison, using
  * other fields to break ties as needed.
@@ -40,7 +39,20 @@ public abstract class MidiModelState {
 	public abstract double getScore();
 	
 	/**
-	 * Return a TreeSet of all of the possible MidiModelStates which we could tansition into
+	 * Get the key used to recombine this state in a {@link Beam}. Two states with equal
+	 * (non-null) keys must score all future transitions identically, so that only the better
+	 * of the two need be kept.
+	 * <p>
+	 * By default, this returns null, and the state will never be recombined.
+	 * 
+	 * @return The recombination key of this MidiModelState, or null if it should never be recombined.
+	 */
+	public Object getRecombinationKey() {
+		return null;
+	}
+	
+	/**
+	 * Return a {@link Beam} of the best possible MidiModelStates which we could tansition into
 	 * given the List of MidiNotes.
 	 * <p>
 	 * NOTE: It is assumed that the notes Lists passed into this method will be passed
@@ -51,8 +63,8 @@ public abstract class MidiModelState {
 	 * {@link MidiModel#handleIncoming(List)} method.
 	 * 
 	 * @param notes A List of the MidiNotes on which we need to transition.
-	 * @return A TreeSet of MidiModelStates which we've transitioned into. The new MidiModelStates
+	 * @return A Beam of MidiModelStates which we've transitioned into. The new MidiModelStates
 	 * should not hold any common mutable objects, since they may modify them in the future.
 	 */
-	public abstract TreeSet<? extends MidiModelState> handleIncoming(List<MidiNote> notes);
+	public abstract Beam<? extends MidiModelState> handleIncoming(List<MidiNote> notes);
 }
@@ -0,0 +1,317 @@
+package voicesplitting.generic;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A <code>PersistentList</code> is an immutable List which can be changed cheaply into a new List,
+ * with the old and new Lists sharing most of their structure.
+ * <p>
+ * It is stored as a height-balanced (AVL) binary tree ordered by index, where each node is itself
+ * the PersistentList of the elements in its subtree. {@link #get(int)}, {@link #with(int, Object)}
+ * (which replaces an element), {@link #plus(int, Object)} (which inserts one), and {@link #minus(int)}
+ * (which removes one) all take time logarithmic in the List's size, and the latter three only create
+ * that many new nodes. Iterating
+ * over the whole List takes linear time.
+ * <p>
+ * The mutating methods of {@link java.util.List} are not supported.
+ *
+ * @version 1.0
+ * @since 1.0
+ * @param <E> The type of element this List holds.
+ */
+public class PersistentList<E> extends AbstractList<E> {
+
+	/**
+	 * The empty PersistentList, which is shared by all element types.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static final PersistentList EMPTY = new PersistentList();
+
+	/**
+	 * The List of the elements before {@link #value}, or null if this is the empty List.
+	 */
+	private final PersistentList<E> left;
+
+	/**
+	 * The element at the root of this List's tree.
+	 */
+	private final E value;
+
+	/**
+	 * The List of the elements after {@link #value}, or null if this is the empty List.
+	 */
+	private final PersistentList<E> right;
+
+	/**
+	 * The number of elements in this List.
+	 */
+	private final int size;
+
+	/**
+	 * The height of this List's tree, which is 0 for the empty List.
+	 */
+	private final int height;
+
+	/**
+	 * Create the empty List.
+	 */
+	private PersistentList() {
+		left = null;
+		value = null;
+		right = null;
+		size = 0;
+		height = 0;
+	}
+
+	/**
+	 * Create a new List from the given parts.
+	 *
+	 * @param left {@link #left}
+	 * @param value {@link #value}
+	 * @param right {@link #right}
+	 */
+	private PersistentList(PersistentList<E> left, E value, PersistentList<E> right) {
+		this.left = left;
+		this.value = value;
+		this.right = right;
+		size = left.size + 1 + right.size;
+		height = Math.max(left.height, right.height) + 1;
+	}
+
+	/**
+	 * Get the empty PersistentList.
+	 *
+	 * @param <E> The type of element the List holds.
+	 * @return The empty List.
+	 */
+	@SuppressWarnings("unchecked")
+	public static <E> PersistentList<E> empty() {
+		return EMPTY;
+	}
+
+	/**
+	 * Create a PersistentList of the given elements, in linear time.
+	 *
+	 * @param <E> The type of element the List holds.
+	 * @param elements The elements, in order.
+	 * @return A PersistentList of the given elements.
+	 */
+	public static <E> PersistentList<E> of(List<? extends E> elements) {
+		if (elements instanceof PersistentList) {
+			@SuppressWarnings("unchecked")
+			PersistentList<E> list = (PersistentList<E>) elements;
+			return list;
+		}
+
+		return build(new ArrayList<E>(elements), 0, elements.size());
+	}
+
+	/**
+	 * Build a perfectly balanced PersistentList of the given range of the given elements.
+	 *
+	 * @param <E> The type of element the List holds.
+	 * @param elements The elements.
+	 * @param from The index of the first element to include.
+	 * @param to The index after the last element to include.
+	 * @return A PersistentList of the given range of elements.
+	 */
+	private static <E> PersistentList<E> build(List<E> elements, int from, int to) {
+		if (from == to) {
+			return empty();
+		}
+
+		int middle = (from + to) >>> 1;
+		return new PersistentList<E>(build(elements, from, middle), elements.get(middle), build(elements, middle + 1, to));
+	}
+
+	@Override
+	public E get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+
+		PersistentList<E> node = this;
+		while (true) {
+			if (index < node.left.size) {
+				node = node.left;
+
+			} else if (index == node.left.size) {
+				return node.value;
+
+			} else {
+				index -= node.left.size + 1;
+				node = node.right;
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get a copy of this List with the element at the given index replaced by the given one.
+	 *
+	 * @param index The index of the element to replace.
+	 * @param element The new element.
+	 * @return The new List. This List is unchanged.
+	 */
+	public PersistentList<E> with(int index, E element) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+
+		if (index < left.size) {
+			return new PersistentList<E>(left.with(index, element), value, right);
+		}
+
+		if (index == left.size) {
+			return new PersistentList<E>(left, element, right);
+		}
+
+		return new PersistentList<E>(left, value, right.with(index - left.size - 1, element));
+	}
+
+	/**
+	 * Get a copy of this List with the given element inserted at the given index, shifting the
+	 * element currently there (if any) and all of those after it to the right.
+	 *
+	 * @param index The index at which to insert the element.
+	 * @param element The new element.
+	 * @return The new List. This List is unchanged.
+	 */
+	public PersistentList<E> plus(int index, E element) {
+		if (index < 0 || index > size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+
+		if (size == 0) {
+			return new PersistentList<E>(this, element, this);
+		}
+
+		if (index <= left.size) {
+			return balance(left.plus(index, element), value, right);
+		}
+
+		return balance(left, value, right.plus(index - left.size - 1, element));
+	}
+
+	/**
+	 * Get a copy of this List with the element at the given index removed, shifting all of the
+	 * elements after it to the left.
+	 *
+	 * @param index The index of the element to remove.
+	 * @return The new List. This List is unchanged.
+	 */
+	public PersistentList<E> minus(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+		}
+
+		if (index < left.size) {
+			return balance(left.minus(index), value, right);
+		}
+
+		if (index > left.size) {
+			return balance(left, value, right.minus(index - left.size - 1));
+		}
+
+		if (right.size == 0) {
+			return left;
+		}
+
+		// Replace the removed element with the first one after it
+		return balance(left, right.get(0), right.minus(0));
+	}
+
+	/**
+	 * Create a new List from the given parts, whose heights differ by at most 2, rotating it if
+	 * needed so that its tree is balanced.
+	 *
+	 * @param <E> The type of element the List holds.
+	 * @param left The List of the elements before the given one.
+	 * @param value The root element.
+	 * @param right The List of the elements after the given one.
+	 * @return A balanced List of the given parts, in order.
+	 */
+	private static <E> PersistentList<E> balance(PersistentList<E> left, E value, PersistentList<E> right) {
+		if (left.height > right.height + 1) {
+			if (left.left.height >= left.right.height) {
+				return new PersistentList<E>(left.left, left.value, new PersistentList<E>(left.right, value, right));
+			}
+
+			return new PersistentList<E>(new PersistentList<E>(left.left, left.value, left.right.left), left.right.value,
+					new PersistentList<E>(left.right.right, value, right));
+		}
+
+		if (right.height > left.height + 1) {
+			if (right.right.height >= right.left.height) {
+				return new PersistentList<E>(new PersistentList<E>(left, value, right.left), right.value, right.right);
+			}
+
+			return new PersistentList<E>(new PersistentList<E>(left, value, right.left.left), right.left.value,
+					new PersistentList<E>(right.left.right, right.value, right.right));
+		}
+
+		return new PersistentList<E>(left, value, right);
+	}
+
+	/**
+	 * Get an Iterator over this List's elements, in order. It takes linear time in total.
+	 *
+	 * @return An Iterator over this List's elements.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+		final PersistentList<E> root = this;
+
+		return new Iterator<E>() {
+			/**
+			 * The nodes whose values have not yet been returned, but whose left subtrees have been
+			 * (or are being) traversed, with the next one on top.
+			 */
+			private final List<PersistentList<E>> stack = new ArrayList<PersistentList<E>>(root.height);
+
+			{
+				pushLeft(root);
+			}
+
+			/**
+			 * Push the given node and all of the nodes down its left edge onto the stack.
+			 *
+			 * @param node The node to start from.
+			 */
+			private void pushLeft(PersistentList<E> node) {
+				for (; node.size > 0; node = node.left) {
+					stack.add(node);
+				}
+			}
+
+			@Override
+			public boolean hasNext() {
+				return !stack.isEmpty();
+			}
+
+			@Override
+			public E next() {
+				if (stack.isEmpty()) {
+					throw new NoSuchElementException();
+				}
+
+				PersistentList<E> node = stack.remove(stack.size() - 1);
+				pushLeft(node.right);
+				return node.value;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
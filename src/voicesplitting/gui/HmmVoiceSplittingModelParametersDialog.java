@@ -25,6 +25,10 @@ import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
 /**
  * A <code>VoiceSplittingParametersDialog</code> object creates and displays the GUI dialog
  * which can be used to change the currently loaded {@link HmmVoiceSplittingModelParameters}.
+ * <p>
+ * A beam margin of <code>Infinity</code> disables the adaptive beam, so that the beam size is fixed,
+ * a pitch window of <code>Infinity</code> considers every voice for every note, and a retirement gap
+ * of <code>Infinity</code> never retires any voice.
  * 
  * @author Andrew McLeod - 4 August, 2015
  * @version 1.0
@@ -66,6 +70,26 @@ public class HmmVoiceSplittingModelParametersDialog extends JDialog {
 	 */
 	private static final String MIN_GAP_SCORE = "Min gap score";
 	
+	/**
+	 * The label text of the adaptive beam margin text field. 
+	 */
+	private static final String BEAM_MARGIN = "Beam margin";
+	
+	/**
+	 * The label text of the minimum adaptive beam size text field. 
+	 */
+	private static final String MIN_BEAM_SIZE = "Min beam size";
+	
+	/**
+	 * The label text of the pitch window text field. 
+	 */
+	private static final String PITCH_WINDOW = "Pitch window (stds)";
+	
+	/**
+	 * The label text of the retirement gap text field. 
+	 */
+	private static final String RETIREMENT_GAP_MICROS = "Retirement gap micros";
+	
 	/**
 	 * The map to keep track of the settings JTextFields.
 	 */
@@ -91,7 +115,7 @@ public class HmmVoiceSplittingModelParametersDialog extends JDialog {
 		params = gui.getParams();
 		this.gui = gui;
 		
-		textFieldMap = new HashMap<String, JTextField>(6);
+		textFieldMap = new HashMap<String, JTextField>(10);
 		
 		JPanel mainPanel = new JPanel();
 		mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
@@ -109,6 +133,14 @@ public class HmmVoiceSplittingModelParametersDialog extends JDialog {
 		mainPanel.add(getSetting(PITCH_STD, params.PITCH_STD));
 		mainPanel.add(Box.createVerticalGlue());
 		mainPanel.add(getSetting(MIN_GAP_SCORE, params.MIN_GAP_SCORE));
+		mainPanel.add(Box.createVerticalGlue());
+		mainPanel.add(getSetting(BEAM_MARGIN, params.BEAM_MARGIN));
+		mainPanel.add(Box.createVerticalGlue());
+		mainPanel.add(getSetting(MIN_BEAM_SIZE, params.MIN_BEAM_SIZE));
+		mainPanel.add(Box.createVerticalGlue());
+		mainPanel.add(getSetting(PITCH_WINDOW, params.PITCH_WINDOW));
+		mainPanel.add(Box.createVerticalGlue());
+		mainPanel.add(getSetting(RETIREMENT_GAP_MICROS, params.RETIREMENT_GAP_MICROS));
 		
 		mainPanel.add(Box.createVerticalStrut(10));
 		
@@ -139,6 +171,10 @@ public class HmmVoiceSplittingModelParametersDialog extends JDialog {
 				textFieldMap.get(GAP_STD_MICROS).setText("" + def.GAP_STD_MICROS);
 				textFieldMap.get(PITCH_STD).setText("" + def.PITCH_STD);
 				textFieldMap.get(MIN_GAP_SCORE).setText("" + def.MIN_GAP_SCORE);
+				textFieldMap.get(BEAM_MARGIN).setText("" + def.BEAM_MARGIN);
+				textFieldMap.get(MIN_BEAM_SIZE).setText("" + def.MIN_BEAM_SIZE);
+				textFieldMap.get(PITCH_WINDOW).setText("" + def.PITCH_WINDOW);
+				textFieldMap.get(RETIREMENT_GAP_MICROS).setText("" + def.RETIREMENT_GAP_MICROS);
 			}
 		});
 		panel.add(defaults);
@@ -183,7 +219,12 @@ public class HmmVoiceSplittingModelParametersDialog extends JDialog {
 					Integer.parseInt(textFieldMap.get(PITCH_HISTORY_LENGTH).getText()),
 					Double.parseDouble(textFieldMap.get(GAP_STD_MICROS).getText()),
 					Double.parseDouble(textFieldMap.get(PITCH_STD).getText()),
-					Double.parseDouble(textFieldMap.get(MIN_GAP_SCORE).getText()));
+					Double.parseDouble(textFieldMap.get(MIN_GAP_SCORE).getText()))
+					.withAdaptiveBeam(
+							Double.parseDouble(textFieldMap.get(BEAM_MARGIN).getText()),
+							Integer.parseInt(textFieldMap.get(MIN_BEAM_SIZE).getText()))
+					.withPitchWindow(Double.parseDouble(textFieldMap.get(PITCH_WINDOW).getText()))
+					.withRetirementGap(Double.parseDouble(textFieldMap.get(RETIREMENT_GAP_MICROS).getText()));
 			
 		} catch (NumberFormatException e) {
 			JOptionPane.showMessageDialog(this, "Number format exception", "Parameter Error", JOptionPane.ERROR_MESSAGE);
@@ -32,6 +32,8 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 
 import voicesplitting.utils.MidiNote;
 import voicesplitting.voice.Voice;
+import voicesplitting.voice.VoiceSplittingModel;
+import voicesplitting.voice.greedy.GreedyVoiceSplittingModel;
 import voicesplitting.voice.hmm.HmmVoiceSplittingModel;
 import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
 import voicesplitting.voice.hmm.HmmVoiceSplittingModelTester;
@@ -88,6 +90,12 @@ public class VoiceSplittingGUI extends JFrame {
 	 */
 	private JCheckBox useChannelCheckBox;
 	
+	/**
+	 * The checkbox marking whether to separate voices with the low-latency {@link GreedyVoiceSplittingModel}
+	 * (checked), or the {@link HmmVoiceSplittingModel} (unchecked, default).
+	 */
+	private JCheckBox greedyCheckBox;
+	
 	/**
 	 * The button used to toggle voice separation.
 	 */
@@ -159,6 +167,13 @@ public class VoiceSplittingGUI extends JFrame {
         useChannelCheckBox.setBackground(Color.BLACK);
         useChannelCheckBox.setForeground(Color.WHITE);
         
+        greedyCheckBox = new JCheckBox("Greedy");
+        greedyCheckBox.setSelected(false);
+        greedyCheckBox.setToolTipText("Toggle whether to separate voices with the fast greedy model (checked) or the HMM (unchecked).\n" +
+        									"The greedy model keeps a single hypothesis, so it is less accurate.");
+        greedyCheckBox.setBackground(Color.BLACK);
+        greedyCheckBox.setForeground(Color.WHITE);
+        
         separateButton = new JButton(GUIConstants.SEPARATE);
         separateButton.setEnabled(false);
         separateButton.addActionListener(new ActionListener() {
@@ -174,6 +189,7 @@ public class VoiceSplittingGUI extends JFrame {
         fileContainer.add(fileNameLabel);
         fileContainer.add(fileLoaderButton);
         fileContainer.add(useChannelCheckBox);
+        fileContainer.add(greedyCheckBox);
         
         // Midi Note displayer
         Component noteChart = initNoteChart();
@@ -460,12 +476,13 @@ public class VoiceSplittingGUI extends JFrame {
 		
 		if (separateButton.getText().equals(GUIConstants.SEPARATE)) {
 			separateButton.setText("Separating...");
+			final boolean greedy = shouldUseGreedy();
 			
 			executeSwingWorker(new SwingWorker<Double, Void>() {
 
 				@Override
 				protected Double doInBackground() {
-					HmmVoiceSplittingModel vs = new HmmVoiceSplittingModel(params);
+					VoiceSplittingModel vs = greedy ? new GreedyVoiceSplittingModel(params) : new HmmVoiceSplittingModel(params);
 					HmmVoiceSplittingModelTester.performInference(vs, runner.getNlg());
 					
 					int i = 0;
@@ -580,6 +597,16 @@ public class VoiceSplittingGUI extends JFrame {
 		return useChannelCheckBox.isSelected();
 	}
 	
+	/**
+	 * Get whether we are supposed to separate voices with the {@link GreedyVoiceSplittingModel} or the
+	 * {@link HmmVoiceSplittingModel}. This value is read in from the {@link #greedyCheckBox}.
+	 * 
+	 * @return True if we should use the greedy model. False to use the HMM.
+	 */
+	protected boolean shouldUseGreedy() {
+		return greedyCheckBox.isSelected();
+	}
+	
 	/**
 	 * Execute the given SwingWorker. This includes cancelling the {@link #currentWorker},
 	 * if it is still running.
@@ -32,6 +32,19 @@ public class MathUtils {
 		return Math.exp(exponent);
 	}
 
+	/**
+	 * Mix the bits of the given value, so that every bit of the result depends on every bit of the input.
+	 * This is the finalizer of the SplitMix64 generator, and is used to build 64-bit structural hashes.
+	 * 
+	 * @param value The value to mix.
+	 * @return The mixed value.
+	 */
+	public static long mix64(long value) {
+		value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+		value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+		return value ^ (value >>> 31);
+	}
+
 	/**
 	 * Get the index of the first occurrence of the maximum value in the given array.
 	 * 
@@ -86,6 +86,21 @@ public class MidiNote implements Comparable<MidiNote> {
 		this.offsetTick = offsetTick;
 	}
 	
+	/**
+	 * Get a 64-bit hash of this note's pitch, velocity, onset and offset ticks, and correct voice.
+	 * Notes which are equal in those fields have equal hashes. The guessed voice is left out, since
+	 * it is the output of voice splitting, and is set on notes which are still being searched over.
+	 * 
+	 * @return A 64-bit hash of this note.
+	 */
+	public long getStructuralHash() {
+		long hash = MathUtils.mix64(onsetTick);
+		hash = MathUtils.mix64(hash + offsetTick);
+		hash = MathUtils.mix64(hash + pitch);
+		hash = MathUtils.mix64(hash + velocity);
+		return MathUtils.mix64(hash + correctVoice);
+	}
+	
 	/**
 	 * Returns whether this note is active (still on) or not.
 	 * 
@@ -1,6 +1,7 @@
 package voicesplitting.voice;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -17,6 +18,15 @@ import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
  * keeping the beginning of their note sequences identical. This allows us to have multiple
  * LinkedLists of notes without needing multiple full List objects. Rather, they all point
  * back to their common prefix LinkedLists.
+ * <p>
+ * Each Voice also stores some summaries of the notes it ends, which are set on construction:
+ * its {@link #numNotes}, its {@link #weightedLastPitch} for a given pitch history length, and its
+ * structural {@link #hash}. These make the queries made during inference constant-time, and none of the methods here
+ * recurse down the LinkedList, so very long Voices can be handled.
+ * <p>
+ * A Voice can instead be a view of a node stored in a {@link VoiceArena}, in which case all of
+ * the above is read from that arena, and the Voice itself only holds the arena and the node's index.
+ * Such Voices are created with {@link VoiceArena#newVoice(MidiNote, Voice)}.
  * 
  * @author Andrew McLeod - 6 April, 2015
  * @version 1.0
@@ -34,14 +44,69 @@ public class Voice implements Comparable<Voice> {
 	private final MidiNote mostRecentNote;
 	
 	/**
-	 * Create a new Voice with the given previous Voice and note.
+	 * The number of notes in the LinkedList with this node as its tail.
+	 */
+	private final int numNotes;
+	
+	/**
+	 * The pitch history length used to calculate {@link #weightedLastPitch}.
+	 */
+	private final int pitchHistoryLength;
+	
+	/**
+	 * The weighted pitch of this Voice, as returned by {@link #getWeightedLastPitch(HmmVoiceSplittingModelParameters)}
+	 * for parameters with the pitch history length {@link #pitchHistoryLength}.
+	 */
+	private final double weightedLastPitch;
+	
+	/**
+	 * A 64-bit hash of the notes in the LinkedList with this node as its tail, as returned by {@link #getHash()}.
+	 */
+	private final long hash;
+	
+	/**
+	 * The arena this Voice is a view of, or null if this Voice stores its own values.
+	 */
+	private final VoiceArena arena;
+	
+	/**
+	 * The index of this Voice's node in {@link #arena}, or {@link VoiceArena#NONE} if {@link #arena} is null.
+	 */
+	private final int node;
+	
+	/**
+	 * Create a new Voice with the given previous Voice and note, whose {@link #weightedLastPitch}
+	 * is calculated with the pitch history length of the given parameters.
+	 * 
+	 * @param note {@link #mostRecentNote}
+	 * @param prev {@link #previous}
+	 * @param params The parameters to use.
+	 */
+	public Voice(MidiNote note, Voice prev, HmmVoiceSplittingModelParameters params) {
+		this(note, prev, params.PITCH_HISTORY_LENGTH);
+	}
+	
+	/**
+	 * Create a new Voice with no preceding Voice (it will be null), whose {@link #weightedLastPitch}
+	 * is calculated with the pitch history length of the given parameters.
+	 * 
+	 * @param note {@link #mostRecentNote}
+	 * @param params The parameters to use.
+	 */
+	public Voice(MidiNote note, HmmVoiceSplittingModelParameters params) {
+		this(note, null, params);
+	}
+	
+	/**
+	 * Create a new Voice with the given previous Voice and note. Its {@link #weightedLastPitch}
+	 * is calculated with the pitch history length of the previous Voice, or with
+	 * {@link HmmVoiceSplittingModelParameters#PITCH_HISTORY_LENGTH_DEFAULT} if there is none.
 	 * 
 	 * @param note {@link #mostRecentNote}
 	 * @param prev {@link #previous}
 	 */
 	public Voice(MidiNote note, Voice prev) {
-		previous = prev;
-		mostRecentNote = note;
+		this(note, prev, prev == null ? HmmVoiceSplittingModelParameters.PITCH_HISTORY_LENGTH_DEFAULT : prev.pitchHistoryLength);
 	}
 	
 	/**
@@ -50,7 +115,50 @@ public class Voice implements Comparable<Voice> {
 	 * @param note {@link #mostRecentNote}
 	 */
 	public Voice(MidiNote note) {
-		this(note, null);
+		this(note, (Voice) null);
+	}
+	
+	/**
+	 * Create a new Voice with the given previous Voice and note, and calculate its summaries.
+	 * 
+	 * @param note {@link #mostRecentNote}
+	 * @param prev {@link #previous}
+	 * @param pitchHistoryLength {@link #pitchHistoryLength}
+	 */
+	private Voice(MidiNote note, Voice prev, int pitchHistoryLength) {
+		if (prev != null && prev.arena != null) {
+			throw new IllegalArgumentException("A VoiceArena's Voices can only be extended with VoiceArena.newVoice.");
+		}
+		
+		previous = prev;
+		mostRecentNote = note;
+		
+		numNotes = prev == null ? 1 : prev.numNotes + 1;
+		this.pitchHistoryLength = pitchHistoryLength;
+		weightedLastPitch = calculateWeightedLastPitch(pitchHistoryLength);
+		hash = getHash(prev == null ? 0L : prev.hash, note);
+		
+		arena = null;
+		node = VoiceArena.NONE;
+	}
+	
+	/**
+	 * Create a new Voice which is a view of the given node of the given arena. This should only
+	 * be called by {@link VoiceArena}.
+	 * 
+	 * @param arena {@link #arena}
+	 * @param node {@link #node}
+	 */
+	Voice(VoiceArena arena, int node) {
+		this.arena = arena;
+		this.node = node;
+		
+		previous = null;
+		mostRecentNote = null;
+		numNotes = 0;
+		pitchHistoryLength = 0;
+		weightedLastPitch = 0.0;
+		hash = 0L;
 	}
 	
 	/**
@@ -62,7 +170,7 @@ public class Voice implements Comparable<Voice> {
 	 */
 	public double getProbability(MidiNote note, HmmVoiceSplittingModelParameters params) {
 		double pitch = pitchScore(getWeightedLastPitch(params), note.getPitch(), params);
-		double gap = gapScore(note.getOnsetTime(), mostRecentNote.getOffsetTime(), params);
+		double gap = gapScore(note.getOnsetTime(), getMostRecentNote().getOffsetTime(), params);
 		return pitch * gap;
 	}
 
@@ -105,9 +213,10 @@ public class Voice implements Comparable<Voice> {
 	 * @return True if we can add a note of the given duration at the given time. False otherwise.
 	 */
 	public boolean canAddNoteAtTime(long time, long length, HmmVoiceSplittingModelParameters params) {
-		long overlap = mostRecentNote.getOffsetTime() - time;
+		MidiNote note = getMostRecentNote();
+		long overlap = note.getOffsetTime() - time;
 		
-		return overlap <= mostRecentNote.getDurationTime() / 2 && overlap < length;
+		return overlap <= note.getDurationTime() / 2 && overlap < length;
 	}
 
 	/**
@@ -115,18 +224,40 @@ public class Voice implements Comparable<Voice> {
 	 * {@link HmmVoiceSplittingModelParameters#PITCH_HISTORY_LENGTH} notes contained in this Voice
 	 * (or all of the notes, if there are fewer than that in total), where each successive note's pitch
 	 * is weighted twice as much as each preceding note's.
+	 * <p>
+	 * This is constant-time if the given parameters' pitch history length is the one this Voice was
+	 * created with.
 	 * 
 	 * @param params The paramters to use.
 	 * @return The weighted pitch of this voice.
 	 */
 	public double getWeightedLastPitch(HmmVoiceSplittingModelParameters params) {
+		if (arena != null) {
+			return arena.getWeightedLastPitch(node, params.PITCH_HISTORY_LENGTH);
+		}
+		
+		if (params.PITCH_HISTORY_LENGTH == pitchHistoryLength) {
+			return weightedLastPitch;
+		}
+		
+		return calculateWeightedLastPitch(params.PITCH_HISTORY_LENGTH);
+	}
+	
+	/**
+	 * Calculate the weighted pitch of this voice with the given pitch history length, as described
+	 * in {@link #getWeightedLastPitch(HmmVoiceSplittingModelParameters)}.
+	 * 
+	 * @param pitchHistoryLength The number of notes to use.
+	 * @return The weighted pitch of this voice.
+	 */
+	private double calculateWeightedLastPitch(int pitchHistoryLength) {
 		double weight = 1;
 		double totalWeight = 0;
 		double sum = 0;
 		
-		// Most recent PITCH_HISTORY_LENGTH notes
+		// Most recent pitchHistoryLength notes
 		Voice noteNode = this;
-		for (int i = 0; i < params.PITCH_HISTORY_LENGTH && noteNode != null; i++, noteNode = noteNode.previous) {
+		for (int i = 0; i < pitchHistoryLength && noteNode != null; i++, noteNode = noteNode.previous) {
 			sum += noteNode.mostRecentNote.getPitch() * weight;
 			
 			totalWeight += weight;
@@ -144,8 +275,8 @@ public class Voice implements Comparable<Voice> {
 	public int getNumNotesCorrect() {
 		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
 		
-		for (Voice noteNode = this; noteNode != null; noteNode = noteNode.previous) {
-			int channel = noteNode.mostRecentNote.getCorrectVoice();
+		for (Voice noteNode = this; noteNode != null; noteNode = noteNode.getPrevious()) {
+			int channel = noteNode.getMostRecentNote().getCorrectVoice();
 			if (!counts.containsKey(channel)) {
 				counts.put(channel, 0);
 			}
@@ -173,9 +304,9 @@ public class Voice implements Comparable<Voice> {
 		int count = 0;
 		int index = -1;
 		
-		for (Voice node = this; node.previous != null; node = node.previous) {
-			MidiNote guessedPrev = node.previous.mostRecentNote;
-			MidiNote note = node.mostRecentNote;
+		MidiNote note = getMostRecentNote();
+		for (Voice node = getPrevious(); node != null; node = node.getPrevious()) {
+			MidiNote guessedPrev = node.getMostRecentNote();
 			
 			if (note.getCorrectVoice() == guessedPrev.getCorrectVoice()) {
 				int channel = note.getCorrectVoice();
@@ -196,6 +327,8 @@ public class Voice implements Comparable<Voice> {
 				// Different track - invalidate index
 				index = -1;
 			}
+			
+			note = guessedPrev;
 		}
 		
 		return count;
@@ -204,14 +337,32 @@ public class Voice implements Comparable<Voice> {
 	/**
 	 * Get the number of notes in the linked list with this node as its tail.
 	 * 
-	 * @return The number of notes.
+	 * @return {@link #numNotes}
 	 */
 	public int getNumNotes() {
-		if (previous == null) {
-			return 1;
-		}
-		
-		return 1 + previous.getNumNotes();
+		return arena == null ? numNotes : arena.getNumNotes(node);
+	}
+
+	/**
+	 * Get a 64-bit structural hash of the notes in the linked list with this node as its tail. It is
+	 * calculated once, when the node is created, from the hash of its previous node and the
+	 * {@link MidiNote#getStructuralHash()} of its note, so Voices with equal notes have equal hashes.
+	 * 
+	 * @return {@link #hash}
+	 */
+	public long getHash() {
+		return arena == null ? hash : arena.getHash(node);
+	}
+	
+	/**
+	 * Get the structural hash of a node with the given note, whose previous node has the given hash.
+	 * 
+	 * @param previousHash The hash of the previous node, or 0 if there is none.
+	 * @param note The note of the node.
+	 * @return The hash of the node, as returned by {@link #getHash()}.
+	 */
+	static long getHash(long previousHash, MidiNote note) {
+		return MathUtils.mix64(previousHash * 31 + note.getStructuralHash());
 	}
 
 	/**
@@ -220,11 +371,21 @@ public class Voice implements Comparable<Voice> {
 	 * @return A List of notes in chronological order, ending with this one.
 	 */
 	public List<MidiNote> getNotes() {
-		List<MidiNote> list = previous == null ? new ArrayList<MidiNote>() : previous.getNotes();
+		MidiNote[] notes = new MidiNote[getNumNotes()];
 		
-		list.add(mostRecentNote);
+		if (arena != null) {
+			for (int i = notes.length, node = this.node; node != VoiceArena.NONE; node = arena.getPrevious(node)) {
+				notes[--i] = arena.getNote(node);
+			}
+			
+		} else {
+			int i = notes.length;
+			for (Voice node = this; node != null; node = node.previous) {
+				notes[--i] = node.mostRecentNote;
+			}
+		}
 		
-		return list;
+		return new ArrayList<MidiNote>(Arrays.asList(notes));
 	}
 	
 	/**
@@ -233,16 +394,40 @@ public class Voice implements Comparable<Voice> {
 	 * @return {@link #mostRecentNote}
 	 */
 	public MidiNote getMostRecentNote() {
-		return mostRecentNote;
+		return arena == null ? mostRecentNote : arena.getNote(node);
 	}
 	
 	/**
-	 * Get the voice ending at the previous note in this voice.
+	 * Get the voice ending at the previous note in this voice. If this Voice is a view of a
+	 * {@link VoiceArena} node, this returns a new view of the previous node.
 	 * 
 	 * @return {@link #previous}
 	 */
 	public Voice getPrevious() {
-		return previous;
+		if (arena == null) {
+			return previous;
+		}
+		
+		int prev = arena.getPrevious(node);
+		return prev == VoiceArena.NONE ? null : new Voice(arena, prev);
+	}
+	
+	/**
+	 * Get the arena this Voice is a view of.
+	 * 
+	 * @return {@link #arena}
+	 */
+	VoiceArena getArena() {
+		return arena;
+	}
+	
+	/**
+	 * Get the index of this Voice's node in its arena.
+	 * 
+	 * @return {@link #node}
+	 */
+	int getNode() {
+		return node;
 	}
 	
 	/**
@@ -258,7 +443,15 @@ public class Voice implements Comparable<Voice> {
 
 	/**
 	 * Compare the given Voice to this one and return their difference. Voices are ordered
-	 * first by their {@link #mostRecentNote}, followed by their {@link #previous} pointer.
+	 * first by their {@link #mostRecentNote}, followed by those of their previous Voices in turn,
+	 * until two of them differ. A Voice which runs out of notes first comes after the other,
+	 * and two Voices which reach the same node (or both run out of notes at once) are equal.
+	 * <p>
+	 * Equal Voices are found in constant time, since they have equal {@link #hash}es. (Two Voices with
+	 * different notes have the same hash with probability about 2^-64, in which case they are treated as equal.)
+	 * Otherwise, the order is found by walking back along both LinkedLists, without recursion, until the
+	 * first pair of notes which differ. This usually takes constant time too, since Voices which differ
+	 * usually end with different notes.
 	 * 
 	 * @param o The Voice we are comparing to.
 	 * @return A positive number if this Voice should come first, negative if the given one
@@ -270,19 +463,51 @@ public class Voice implements Comparable<Voice> {
 			return -1;
 		}
 		
-		int result = mostRecentNote.compareTo(o.mostRecentNote);
-		if (result != 0) {
-			return result;
-		}
-		
-		if (previous == o.previous) {
+		if (isSameNode(this, o) || getHash() == o.getHash()) {
 			return 0;
 		}
 		
-		if (previous == null) {
-			return 1;
+		Voice voice = this;
+		Voice other = o;
+		while (true) {
+			int result = voice.getMostRecentNote().compareTo(other.getMostRecentNote());
+			if (result != 0) {
+				return result;
+			}
+			
+			Voice previous = voice.getPrevious();
+			Voice otherPrevious = other.getPrevious();
+			
+			if (isSameNode(previous, otherPrevious)) {
+				return 0;
+			}
+			
+			if (previous == null) {
+				return 1;
+			}
+			
+			if (otherPrevious == null) {
+				return -1;
+			}
+			
+			voice = previous;
+			other = otherPrevious;
+		}
+	}
+	
+	/**
+	 * Decide whether the given Voices are the same node, either because they are the same object, or
+	 * because they are views of the same node of the same {@link VoiceArena}.
+	 * 
+	 * @param voice A Voice, or null.
+	 * @param other Another Voice, or null.
+	 * @return True if the given Voices are the same node (or both null). False otherwise.
+	 */
+	private static boolean isSameNode(Voice voice, Voice other) {
+		if (voice == other) {
+			return true;
 		}
 		
-		return previous.compareTo(o.previous);
+		return voice != null && other != null && voice.arena != null && voice.arena == other.arena && voice.node == other.node;
 	}
 }
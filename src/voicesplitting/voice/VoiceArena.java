@@ -0,0 +1,469 @@
+package voicesplitting.voice;
+
+import java.util.Arrays;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
+
+/**
+ * A <code>VoiceArena</code> stores the nodes of many {@link Voice} LinkedLists in primitive arrays,
+ * rather than as one object per node. It is meant to be used for a single song.
+ * <p>
+ * Each node is identified by an int index, and stores the index of its previous node, the index of
+ * its note in {@link #notes}, and a cache of its note's pitch and offset time, along with the summaries
+ * which a Voice object would store (its number of notes, its weighted pitch, and its structural hash). A Voice created by
+ * {@link #newVoice(MidiNote, Voice)} is then only a thin view of a node, and the long common prefixes of
+ * the Voices in a beam are never seen by the garbage collector.
+ * <p>
+ * Nodes which are no longer reachable from any live state are reclaimed by {@link #collect(Iterable)},
+ * which should be called between onsets (see {@link #shouldCollect()}). Their indices are then reused,
+ * so any Voice which is not part of a state given to that method must no longer be used afterwards.
+ * <p>
+ * Nodes can be added from multiple threads at once. Only adding nodes (and collecting them) takes this
+ * arena's lock. Nodes are read without it, so the arrays which hold them are never reallocated while they
+ * might be read. Instead, they are copied into larger ones which are then published through a volatile
+ * field (see {@link Nodes}).
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class VoiceArena {
+
+	/**
+	 * The index used to represent no node (for example, the previous node of a Voice's first node).
+	 */
+	public static final int NONE = -1;
+
+	/**
+	 * The initial number of nodes which can be stored without growing the arrays.
+	 */
+	private static final int INITIAL_CAPACITY = 1024;
+
+	/**
+	 * The minimum number of nodes that must be created between two collections.
+	 */
+	private static final int MIN_COLLECTION_INTERVAL = 4096;
+
+	/**
+	 * The number of most recently stored notes searched before storing a note in {@link #notes} again.
+	 */
+	private static final int RECENT_NOTES = 32;
+
+	/**
+	 * The pitch history length with which the weighted pitch of each node is calculated.
+	 */
+	private final int pitchHistoryLength;
+
+	/**
+	 * The notes of this arena. Each note is usually stored only once. This array is only ever replaced
+	 * (by a larger copy) while holding this arena's lock, and is volatile so that it can be read without it.
+	 */
+	private volatile MidiNote[] notes;
+
+	/**
+	 * The number of notes stored in {@link #notes}.
+	 */
+	private int numStoredNotes;
+
+	/**
+	 * The arrays storing this arena's nodes. They are only ever replaced (by larger copies) while holding
+	 * this arena's lock, and this field is volatile so that they can be read without it. See {@link Nodes}.
+	 */
+	private volatile Nodes nodes;
+
+	/**
+	 * The number of collections performed so far, used to mark nodes without clearing {@link Nodes#marks}.
+	 */
+	private int epoch;
+
+	/**
+	 * The number of node indices which have been used so far.
+	 */
+	private int size;
+
+	/**
+	 * The index of the first free node, or {@link #NONE} if there are none.
+	 */
+	private int freeHead;
+
+	/**
+	 * The number of nodes currently in use.
+	 */
+	private int numLiveNodes;
+
+	/**
+	 * The number of nodes created since the last collection.
+	 */
+	private int numCreatedSinceCollection;
+
+	/**
+	 * The total number of nodes reclaimed so far.
+	 */
+	private long numReclaimedNodes;
+
+	/**
+	 * The primitive arrays in which the nodes of a {@link VoiceArena} are stored, all of the same length.
+	 * <p>
+	 * Since nodes are read without holding the arena's lock, the arrays of a Nodes object are never
+	 * reallocated. Instead, the arena grows by copying them into a new Nodes object, which is then
+	 * published through the volatile {@link VoiceArena#nodes} field. Any thread which can see a node's
+	 * index (through some Voice) can therefore also see a Nodes object containing its values.
+	 */
+	private static class Nodes {
+		/**
+		 * The index of the previous node of each node, or {@link VoiceArena#NONE}. For a free node, this is instead
+		 * the index of the next free node.
+		 */
+		final int[] previous;
+
+		/**
+		 * The index of each node's note in {@link VoiceArena#notes}.
+		 */
+		final int[] noteIndex;
+
+		/**
+		 * The pitch of each node's note.
+		 */
+		final int[] pitch;
+
+		/**
+		 * The offset time of each node's note, in microseconds.
+		 */
+		final long[] offsetTime;
+
+		/**
+		 * The number of notes in the Voice ending at each node, or 0 for a free node.
+		 */
+		final int[] numNotes;
+
+		/**
+		 * The weighted pitch of the Voice ending at each node, calculated with {@link VoiceArena#pitchHistoryLength}.
+		 */
+		final double[] weightedLastPitch;
+
+		/**
+		 * The structural hash of the Voice ending at each node (see {@link Voice#getHash()}).
+		 */
+		final long[] hashes;
+
+		/**
+		 * The mark of each node, which is equal to {@link VoiceArena#epoch} during {@link VoiceArena#collect(Iterable)}
+		 * if the node is reachable.
+		 */
+		final int[] marks;
+
+		/**
+		 * Create new empty node arrays of the given capacity.
+		 *
+		 * @param capacity The number of nodes which can be stored.
+		 */
+		Nodes(int capacity) {
+			previous = new int[capacity];
+			noteIndex = new int[capacity];
+			pitch = new int[capacity];
+			offsetTime = new long[capacity];
+			numNotes = new int[capacity];
+			weightedLastPitch = new double[capacity];
+			hashes = new long[capacity];
+			marks = new int[capacity];
+		}
+
+		/**
+		 * Create a copy of the given node arrays with a larger capacity.
+		 *
+		 * @param nodes The node arrays to copy.
+		 * @param capacity The number of nodes which can be stored.
+		 */
+		Nodes(Nodes nodes, int capacity) {
+			previous = Arrays.copyOf(nodes.previous, capacity);
+			noteIndex = Arrays.copyOf(nodes.noteIndex, capacity);
+			pitch = Arrays.copyOf(nodes.pitch, capacity);
+			offsetTime = Arrays.copyOf(nodes.offsetTime, capacity);
+			numNotes = Arrays.copyOf(nodes.numNotes, capacity);
+			weightedLastPitch = Arrays.copyOf(nodes.weightedLastPitch, capacity);
+			hashes = Arrays.copyOf(nodes.hashes, capacity);
+			marks = Arrays.copyOf(nodes.marks, capacity);
+		}
+
+		/**
+		 * Get the number of nodes which can be stored.
+		 *
+		 * @return The length of each of the arrays.
+		 */
+		int getCapacity() {
+			return previous.length;
+		}
+	}
+
+	/**
+	 * Create a new empty arena whose weighted pitches are calculated with the given parameters.
+	 *
+	 * @param params The parameters to use.
+	 */
+	public VoiceArena(HmmVoiceSplittingModelParameters params) {
+		pitchHistoryLength = params.PITCH_HISTORY_LENGTH;
+
+		notes = new MidiNote[INITIAL_CAPACITY];
+		numStoredNotes = 0;
+
+		nodes = new Nodes(INITIAL_CAPACITY);
+
+		epoch = 0;
+		size = 0;
+		freeHead = NONE;
+		numLiveNodes = 0;
+		numCreatedSinceCollection = 0;
+		numReclaimedNodes = 0;
+	}
+
+	/**
+	 * Create a new Voice in this arena, ending with the given note.
+	 *
+	 * @param note The most recent note of the new Voice.
+	 * @param prev The Voice preceding the new one, which must be null or a Voice from this arena.
+	 * @return A new Voice, which is a view of a new node in this arena.
+	 */
+	public Voice newVoice(MidiNote note, Voice prev) {
+		if (prev != null && prev.getArena() != this) {
+			throw new IllegalArgumentException("The previous Voice must belong to the same VoiceArena.");
+		}
+
+		return new Voice(this, addNode(note, prev == null ? NONE : prev.getNode()));
+	}
+
+	/**
+	 * Add a new node to this arena and calculate its summaries.
+	 *
+	 * @param note The note of the new node.
+	 * @param prev The index of the previous node, or {@link #NONE}.
+	 * @return The index of the new node.
+	 */
+	private synchronized int addNode(MidiNote note, int prev) {
+		int node;
+		if (freeHead != NONE) {
+			node = freeHead;
+			freeHead = nodes.previous[node];
+
+		} else {
+			if (size == nodes.getCapacity()) {
+				nodes = new Nodes(nodes, size * 2);
+			}
+			node = size++;
+		}
+
+		Nodes nodes = this.nodes;
+		nodes.previous[node] = prev;
+		nodes.noteIndex[node] = storeNote(note);
+		nodes.pitch[node] = note.getPitch();
+		nodes.offsetTime[node] = note.getOffsetTime();
+		nodes.numNotes[node] = prev == NONE ? 1 : nodes.numNotes[prev] + 1;
+		nodes.weightedLastPitch[node] = calculateWeightedLastPitch(nodes, node, pitchHistoryLength);
+		nodes.hashes[node] = Voice.getHash(prev == NONE ? 0L : nodes.hashes[prev], note);
+
+		numLiveNodes++;
+		numCreatedSinceCollection++;
+		return node;
+	}
+
+	/**
+	 * Get the index of the given note in {@link #notes}, storing it there if it is not one of the
+	 * most recently stored notes. Since notes arrive chronologically, this almost always finds it.
+	 *
+	 * @param note The note whose index we want.
+	 * @return The index of the given note in {@link #notes}.
+	 */
+	private int storeNote(MidiNote note) {
+		MidiNote[] notes = this.notes;
+		for (int i = numStoredNotes - 1; i >= 0 && i >= numStoredNotes - RECENT_NOTES; i--) {
+			if (notes[i] == note) {
+				return i;
+			}
+		}
+
+		if (numStoredNotes == notes.length) {
+			notes = Arrays.copyOf(notes, notes.length * 2);
+		}
+
+		// Stored before the new array is published
+		notes[numStoredNotes] = note;
+		this.notes = notes;
+		return numStoredNotes++;
+	}
+
+	/**
+	 * Calculate the weighted pitch of the Voice ending at the given node, as described in
+	 * {@link Voice#getWeightedLastPitch(HmmVoiceSplittingModelParameters)}.
+	 *
+	 * @param nodes The node arrays to read.
+	 * @param node The index of the node.
+	 * @param pitchHistoryLength The number of notes to use.
+	 * @return The weighted pitch of the Voice ending at the given node.
+	 */
+	private static double calculateWeightedLastPitch(Nodes nodes, int node, int pitchHistoryLength) {
+		double weight = 1;
+		double totalWeight = 0;
+		double sum = 0;
+
+		// Most recent pitchHistoryLength notes
+		for (int i = 0; i < pitchHistoryLength && node != NONE; i++, node = nodes.previous[node]) {
+			sum += nodes.pitch[node] * weight;
+
+			totalWeight += weight;
+			weight *= 0.5;
+		}
+
+		return sum / totalWeight;
+	}
+
+	/**
+	 * Decide whether enough nodes have been created since the last collection that
+	 * {@link #collect(Iterable)} should be called again. This keeps the cost of collection
+	 * proportional to the number of nodes created.
+	 *
+	 * @return True if a collection is due. False otherwise.
+	 */
+	public synchronized boolean shouldCollect() {
+		return numCreatedSinceCollection >= Math.max(MIN_COLLECTION_INTERVAL, numLiveNodes - numCreatedSinceCollection);
+	}
+
+	/**
+	 * Reclaim every node which is not part of a Voice in any of the given states, so that it can be reused.
+	 *
+	 * @param states All of the states which are still in use.
+	 * @return The number of nodes reclaimed.
+	 */
+	public synchronized int collect(Iterable<? extends VoiceSplittingModelState> states) {
+		epoch++;
+		Nodes nodes = this.nodes;
+
+		// Mark
+		for (VoiceSplittingModelState state : states) {
+			for (Voice voice : state.getVoices()) {
+				if (voice.getArena() == this) {
+					for (int node = voice.getNode(); node != NONE && nodes.marks[node] != epoch; node = nodes.previous[node]) {
+						nodes.marks[node] = epoch;
+					}
+				}
+			}
+		}
+
+		// Sweep
+		int reclaimed = 0;
+		for (int node = 0; node < size; node++) {
+			if (nodes.numNotes[node] != 0 && nodes.marks[node] != epoch) {
+				nodes.numNotes[node] = 0;
+				nodes.previous[node] = freeHead;
+				freeHead = node;
+				reclaimed++;
+			}
+		}
+
+		numLiveNodes -= reclaimed;
+		numReclaimedNodes += reclaimed;
+		numCreatedSinceCollection = 0;
+
+		return reclaimed;
+	}
+
+	/**
+	 * Get the index of the previous node of the given node.
+	 *
+	 * @param node The index of a node.
+	 * @return The index of the given node's previous node, or {@link #NONE}.
+	 */
+	int getPrevious(int node) {
+		return nodes.previous[node];
+	}
+
+	/**
+	 * Get the note of the given node.
+	 *
+	 * @param node The index of a node.
+	 * @return The given node's note.
+	 */
+	MidiNote getNote(int node) {
+		return notes[nodes.noteIndex[node]];
+	}
+
+	/**
+	 * Get the pitch of the given node's note.
+	 *
+	 * @param node The index of a node.
+	 * @return The pitch of the given node's note.
+	 */
+	int getPitch(int node) {
+		return nodes.pitch[node];
+	}
+
+	/**
+	 * Get the offset time of the given node's note.
+	 *
+	 * @param node The index of a node.
+	 * @return The offset time of the given node's note, in microseconds.
+	 */
+	long getOffsetTime(int node) {
+		return nodes.offsetTime[node];
+	}
+
+	/**
+	 * Get the number of notes in the Voice ending at the given node.
+	 *
+	 * @param node The index of a node.
+	 * @return The number of notes in the Voice ending at the given node.
+	 */
+	int getNumNotes(int node) {
+		return nodes.numNotes[node];
+	}
+
+	/**
+	 * Get the weighted pitch of the Voice ending at the given node.
+	 *
+	 * @param node The index of a node.
+	 * @param pitchHistoryLength The number of notes to use.
+	 * @return The weighted pitch of the Voice ending at the given node.
+	 */
+	double getWeightedLastPitch(int node, int pitchHistoryLength) {
+		if (pitchHistoryLength == this.pitchHistoryLength) {
+			return nodes.weightedLastPitch[node];
+		}
+
+		return calculateWeightedLastPitch(nodes, node, pitchHistoryLength);
+	}
+
+	/**
+	 * Get the structural hash of the Voice ending at the given node.
+	 *
+	 * @param node The index of a node.
+	 * @return The structural hash of the Voice ending at the given node.
+	 */
+	long getHash(int node) {
+		return nodes.hashes[node];
+	}
+
+	/**
+	 * Get the number of nodes currently in use in this arena.
+	 *
+	 * @return {@link #numLiveNodes}
+	 */
+	public synchronized int getNumLiveNodes() {
+		return numLiveNodes;
+	}
+
+	/**
+	 * Get the total number of nodes reclaimed from this arena so far.
+	 *
+	 * @return {@link #numReclaimedNodes}
+	 */
+	public synchronized long getNumReclaimedNodes() {
+		return numReclaimedNodes;
+	}
+
+	/**
+	 * Get the number of nodes this arena can hold without growing.
+	 *
+	 * @return The capacity of this arena.
+	 */
+	public synchronized int getCapacity() {
+		return nodes.getCapacity();
+	}
+}
@@ -1,16 +1,18 @@
 package voicesplitting.voice;
 
-import java.util.TreeSet;
+import java.util.List;
 
+import voicesplitting.generic.Beam;
 import voicesplitting.generic.MidiModel;
+import voicesplitting.utils.MidiNote;
 
 /**
  * A <code>VoiceSplittingModel</code> is an abstract class representing any {@link MidiModel}
  * which is used to split MIDI data into voices. Any new voice splitting model should
  * implement this class.
  * <p>
- * Note that the {@link #getHypotheses()} method here now returns <code>TreeSet<? extends VoiceSplittingModelState></code>
- * rather than <code>TreeSet<? extends MidiModelState></code> as in {@link MidiModel#getHypotheses()}.
+ * Note that the {@link #getHypotheses()} method here now returns <code>Beam<? extends VoiceSplittingModelState></code>
+ * rather than <code>Beam<? extends MidiModelState></code> as in {@link MidiModel#getHypotheses()}.
  * 
  * @author Andrew McLeod - 4 Sept, 2015
  * @version 1.0
@@ -18,7 +20,7 @@ import voicesplitting.generic.MidiModel;
  */
 public abstract class VoiceSplittingModel extends MidiModel {
 	/**
-	 * This method returns a TreeSet of the current hypothesis {@link VoiceSplittingModelState}s
+	 * This method returns a {@link Beam} of the current hypothesis {@link VoiceSplittingModelState}s
 	 * of this VoiceSplittingModel.
 	 * <p>
 	 * The most highly scoring state can be retrieved by using <code>getHypotheses().first()</code>.
@@ -26,8 +28,53 @@ public abstract class VoiceSplittingModel extends MidiModel {
 	 * NOTE: This is dependent on proper implimentation of the {@link VoiceSplittingModelState}'s
 	 * <code>compareTo</code> method.
 	 * 
-	 * @return A TreeSet of the current hypothesis states of this VoiceSplittingModel, in their natural order.
+	 * @return A Beam of the current hypothesis states of this VoiceSplittingModel, in their natural order.
 	 */
 	@Override
-	public abstract TreeSet<? extends VoiceSplittingModelState> getHypotheses();
+	public abstract Beam<? extends VoiceSplittingModelState> getHypotheses();
+	
+	/**
+	 * Get the F1-measure of the most likely {@link VoiceSplittingModelState}'s {@link Voice}s
+	 * from the {@link #getHypotheses()} Beam.
+	 * 
+	 * @param goldStandard The gold standard voices for the current song.
+	 * @return The F1-measure of the most likely {@link VoiceSplittingModelState}'s {@link Voice}s
+	 * from the {@link #getHypotheses()} Beam, or 0 if that Beam is empty.
+	 */
+	public double getF1(List<List<MidiNote>> goldStandard) {
+		Beam<? extends VoiceSplittingModelState> hypothesisStates = getHypotheses();
+		if (hypothesisStates == null || hypothesisStates.isEmpty()) {
+			return 0.0;
+		}
+		
+		List<Voice> voices = hypothesisStates.first().getVoices();
+		
+		int totalPositives = 0;
+		int truePositives = 0;
+		int falsePositives = 0;
+		int falseNegatives = 0;
+
+		for (List<MidiNote> goldVoice : goldStandard) {
+			if (goldVoice.size() != 0) {
+				totalPositives += goldVoice.size() - 1;
+			}
+		}
+		
+		for (Voice voice : voices) {
+			int voiceTruePositives = voice.getNumLinksCorrect(goldStandard);
+			int voiceFalsePositives = voice.getNumNotes() - 1 - voiceTruePositives;
+			
+			truePositives += voiceTruePositives;
+			falsePositives += voiceFalsePositives;
+		}
+		
+		falseNegatives = totalPositives - truePositives;
+		
+		double precision = ((double) truePositives) / (truePositives + falsePositives);
+		double recall = ((double) truePositives) / (truePositives + falseNegatives);
+		
+		double f1 = 2 * precision * recall / (precision + recall);
+		
+		return f1;
+	}
 }
@@ -1,8 +1,8 @@
 package voicesplitting.voice;
 
 import java.util.List;
-import java.util.TreeSet;
 
+import voicesplitting.generic.Beam;
 import voicesplitting.generic.MidiModelState;
 import voicesplitting.utils.MidiNote;
 
@@ -12,8 +12,8 @@ import voicesplitting.utils.MidiNote;
  * the {@link #getVoices()} method should be called.
  * <p>
  * Note that the {@link #handleIncoming(List)} method here now returns
- * <code>TreeSet<? extends VoiceSplittingModelState></code> rather than
- * <code>TreeSet<? extends MidiModelState></code> as in {@link MidiModelState#handleIncoming(List)}.
+ * <code>Beam<? extends VoiceSplittingModelState></code> rather than
+ * <code>Beam<? extends MidiModelState></code> as in {@link MidiModelState#handleIncoming(List)}.
  * 
  * @author Andrew McLeod - 4 Sept, 2015
  * @version 1.0
@@ -28,7 +28,7 @@ public abstract class VoiceSplittingModelState extends MidiModelState {
 	public abstract List<Voice> getVoices();
 	
 	/**
-	 * Return a TreeSet of all of the possible VoiceSplittingModelStates which we could tansition into
+	 * Return a {@link Beam} of the best possible VoiceSplittingModelStates which we could tansition into
 	 * given the List of MidiNotes.
 	 * <p>
 	 * NOTE: It is assumed that the notes Lists passed into this method will be passed
@@ -39,11 +39,11 @@ public abstract class VoiceSplittingModelState extends MidiModelState {
 	 * {@link VoiceSplittingModel#handleIncoming(List)} method.
 	 * 
 	 * @param notes A List of the MidiNotes on which we need to transition.
-	 * @return A TreeSet of VoiceSplittingModelStates which we've transitioned into. The new VoiceSplittingModelStates
+	 * @return A Beam of VoiceSplittingModelStates which we've transitioned into. The new VoiceSplittingModelStates
 	 * should not hold any common mutable objects, since they may modify them in the future.
 	 */
 	@Override
-	public abstract TreeSet<? extends VoiceSplittingModelState> handleIncoming(List<MidiNote> notes);
+	public abstract Beam<? extends VoiceSplittingModelState> handleIncoming(List<MidiNote> notes);
 	
 	/**
 	 * Get the String representation of this object, which is simply the List of Voices returned by
@@ -0,0 +1,203 @@
+package voicesplitting.voice;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
+
+/**
+ * A <code>VoiceTruncator</code> cuts the notes before a given time off of the ends of {@link Voice}
+ * LinkedLists, so that they are no longer reachable from them. It is used to release the memory
+ * held by the parts of a beam's Voices which all of its hypotheses agree on, once those notes have
+ * been handed off elsewhere.
+ * <p>
+ * Since Voices are immutable, each truncated Voice is rebuilt from new nodes. A truncated Voice
+ * keeps every note from the cut time onwards, along with the
+ * {@link HmmVoiceSplittingModelParameters#PITCH_HISTORY_LENGTH} notes before it (or all of them,
+ * if there are fewer), so that it scores every future note exactly as before. Its
+ * {@link Voice#getNumNotes()} and {@link Voice#getNotes()} only count the notes it keeps.
+ * <p>
+ * A single VoiceTruncator should be used for all of the Voices of a beam, so that nodes which were
+ * shared between them are still shared once truncated, and released nodes are counted only once.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class VoiceTruncator {
+
+	/**
+	 * The estimated size, in bytes, of a Voice which stores its own values, on a 64-bit JVM with
+	 * compressed references.
+	 */
+	public static final int VOICE_BYTES = 56;
+
+	/**
+	 * The size, in bytes, of the primitive values stored for each node of a {@link VoiceArena}.
+	 */
+	public static final int ARENA_NODE_BYTES = 44;
+
+	/**
+	 * The time before which notes are cut, in microseconds. Every Voice node whose note began
+	 * before this time must be identical in every Voice given to this truncator.
+	 */
+	private final long cutTime;
+
+	/**
+	 * The number of notes before the {@link #cutTime} which each truncated Voice keeps.
+	 */
+	private final int numContextNotes;
+
+	/**
+	 * The parameters used to create new Voices which store their own values.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * The truncated copy of each node from the {@link #cutTime} onwards which has been rebuilt,
+	 * keyed by {@link #getKey(Voice)}.
+	 */
+	private final Map<Object, Voice> truncated;
+
+	/**
+	 * The keys (see {@link #getKey(Voice)}) of the nodes which have been cut off.
+	 */
+	private final Set<Object> released;
+
+	/**
+	 * The estimated number of bytes used by the nodes in {@link #released}.
+	 */
+	private long numBytesReleased;
+
+	/**
+	 * Create a new truncator.
+	 *
+	 * @param cutTime {@link #cutTime}
+	 * @param params The parameters we are using.
+	 */
+	public VoiceTruncator(long cutTime, HmmVoiceSplittingModelParameters params) {
+		this.cutTime = cutTime;
+		this.params = params;
+		numContextNotes = params.PITCH_HISTORY_LENGTH;
+
+		truncated = new HashMap<Object, Voice>();
+		released = new HashSet<Object>();
+		numBytesReleased = 0;
+	}
+
+	/**
+	 * Truncate the given Voice.
+	 *
+	 * @param voice The Voice to truncate.
+	 * @return The truncated Voice, or the given one if it has nothing to cut off.
+	 */
+	public Voice truncate(Voice voice) {
+		// The nodes which must be rebuilt, most recent first
+		List<Voice> kept = new ArrayList<Voice>();
+		Voice base = null;
+
+		Voice node = voice;
+		int numContext = 0;
+		while (node != null && numContext < numContextNotes) {
+			if (node.getMostRecentNote().getOnsetTime() >= cutTime) {
+				base = truncated.get(getKey(node));
+				if (base != null) {
+					// Already rebuilt as part of another Voice
+					break;
+				}
+
+			} else {
+				numContext++;
+			}
+
+			kept.add(node);
+			node = node.getPrevious();
+		}
+
+		if (base == null) {
+			if (node == null) {
+				return voice;
+			}
+
+			release(node);
+		}
+
+		for (int i = kept.size() - 1; i >= 0; i--) {
+			Voice keptNode = kept.get(i);
+
+			Voice newNode = keptNode.getArena() == null ? new Voice(keptNode.getMostRecentNote(), base, params) :
+				keptNode.getArena().newVoice(keptNode.getMostRecentNote(), base);
+
+			if (keptNode.getMostRecentNote().getOnsetTime() >= cutTime) {
+				truncated.put(getKey(keptNode), newNode);
+			}
+
+			base = newNode;
+		}
+
+		return base;
+	}
+
+	/**
+	 * Release the whole of the given Voice, if all of its notes began before the {@link #cutTime}.
+	 * This is for Voices which will never be scored again, and so need no context notes.
+	 *
+	 * @param voice The Voice to release.
+	 * @return True if the Voice was released, and should be dropped. False if it has notes from the
+	 * cut time onwards, and should be truncated with {@link #truncate(Voice)} instead.
+	 */
+	public boolean releaseIfCut(Voice voice) {
+		if (voice.getMostRecentNote().getOnsetTime() >= cutTime) {
+			return false;
+		}
+
+		release(voice);
+		return true;
+	}
+
+	/**
+	 * Record the given node and all of the nodes before it as released, stopping at any which
+	 * were already released by an earlier call.
+	 *
+	 * @param node The most recent node to be cut off.
+	 */
+	private void release(Voice node) {
+		for (; node != null && released.add(getKey(node)); node = node.getPrevious()) {
+			numBytesReleased += node.getArena() == null ? VOICE_BYTES : ARENA_NODE_BYTES;
+		}
+	}
+
+	/**
+	 * Get a key which identifies the given node. This is the Voice itself if it stores its own
+	 * values, or its node index if it is a view of a {@link VoiceArena} node (of which there may
+	 * be many).
+	 *
+	 * @param node The node.
+	 * @return The key of the given node.
+	 */
+	private static Object getKey(Voice node) {
+		return node.getArena() == null ? node : Integer.valueOf(node.getNode());
+	}
+
+	/**
+	 * Get the number of nodes which have been cut off by this truncator.
+	 *
+	 * @return The number of nodes which have been cut off.
+	 */
+	public int getNumReleasedNodes() {
+		return released.size();
+	}
+
+	/**
+	 * Get the estimated number of bytes used by the nodes which have been cut off by this truncator.
+	 * They can be reclaimed once nothing else refers to them.
+	 *
+	 * @return {@link #numBytesReleased}
+	 */
+	public long getNumBytesReleased() {
+		return numBytesReleased;
+	}
+}
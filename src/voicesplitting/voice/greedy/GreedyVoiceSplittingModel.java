@@ -0,0 +1,115 @@
+package voicesplitting.voice.greedy;
+
+import java.util.List;
+
+import voicesplitting.generic.Beam;
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.VoiceSplittingModel;
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
+
+/**
+ * A <code>GreedyVoiceSplittingModel</code> is a low-latency alternative to the
+ * {@link voicesplitting.voice.hmm.HmmVoiceSplittingModel}, for live use and quick previews.
+ * <p>
+ * It keeps only a single hypothesis, a {@link GreedyVoiceSplittingModelState}, which is changed in place by
+ * each onset rather than copied, and assigns each chord by its single most likely matching of notes to voices.
+ * It uses the same {@link HmmVoiceSplittingModelParameters} and transition scores as the HMM, except that
+ * the beam parameters are ignored. Since no decision is ever revisited, it is usually less accurate than the
+ * HMM, but each onset takes only polynomial time in the size of the chord and the number of voices, with no
+ * search overhead at all.
+ * <p>
+ * If some onset cannot be assigned (see {@link GreedyVoiceSplittingModelState#addNotes(List)}), the model
+ * has no hypotheses from then on.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class GreedyVoiceSplittingModel extends VoiceSplittingModel {
+
+	/**
+	 * The single hypothesis state of this model.
+	 */
+	private final GreedyVoiceSplittingModelState state;
+
+	/**
+	 * A Beam containing only {@link #state}, or an empty Beam once some onset could not be assigned.
+	 */
+	private Beam<GreedyVoiceSplittingModelState> hypothesisStates;
+
+	/**
+	 * The number of onsets handled so far.
+	 */
+	private int numOnsets;
+
+	/**
+	 * The total time spent handling onsets so far, in nanoseconds.
+	 */
+	private long totalNanos;
+
+	/**
+	 * Create a new GreedyVoiceSplittingModel with the given parameters.
+	 *
+	 * @param params The parameters to use.
+	 */
+	public GreedyVoiceSplittingModel(HmmVoiceSplittingModelParameters params) {
+		state = new GreedyVoiceSplittingModelState(params);
+		hypothesisStates = new Beam<GreedyVoiceSplittingModelState>(1);
+		hypothesisStates.add(state);
+		numOnsets = 0;
+		totalNanos = 0;
+	}
+
+	/**
+	 * Add the given notes into the Voices of this model's single hypothesis state.
+	 * <p>
+	 * NOTE: It is assumed that the note Lists passed into this method will be passed
+	 * chronologically, as by {@link voicesplitting.parsing.NoteListGenerator#getIncomingLists()}.
+	 *
+	 * @param notes A List of the MidiNotes which we want to handle next.
+	 */
+	@Override
+	public void handleIncoming(List<MidiNote> notes) {
+		if (hypothesisStates.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+
+		if (!state.addNotes(notes)) {
+			hypothesisStates = new Beam<GreedyVoiceSplittingModelState>(1);
+		}
+
+		totalNanos += System.nanoTime() - start;
+		numOnsets++;
+	}
+
+	/**
+	 * This method returns a {@link Beam} of the current hypothesis {@link GreedyVoiceSplittingModelState}s
+	 * of this GreedyVoiceSplittingModel. This contains at most one state, which is changed in place by
+	 * {@link #handleIncoming(List)}.
+	 *
+	 * @return A Beam of the current hypothesis state of this GreedyVoiceSplittingModel.
+	 */
+	@Override
+	public Beam<GreedyVoiceSplittingModelState> getHypotheses() {
+		return hypothesisStates;
+	}
+
+	/**
+	 * Get the number of onsets handled so far.
+	 *
+	 * @return {@link #numOnsets}
+	 */
+	public int getNumOnsets() {
+		return numOnsets;
+	}
+
+	/**
+	 * Get the total time spent handling onsets so far.
+	 *
+	 * @return {@link #totalNanos}
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+}
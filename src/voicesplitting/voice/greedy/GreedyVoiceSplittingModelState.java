@@ -0,0 +1,259 @@
+package voicesplitting.voice.greedy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import voicesplitting.generic.Beam;
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+import voicesplitting.voice.VoiceSplittingModelState;
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelChordAssignment;
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelParameters;
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelScorer;
+import voicesplitting.voice.hmm.HmmVoiceSplittingModelTester;
+
+/**
+ * A <code>GreedyVoiceSplittingModelState</code> is the single hypothesis of a {@link GreedyVoiceSplittingModel}.
+ * Unlike an {@link voicesplitting.voice.hmm.HmmVoiceSplittingModelState}, it is changed in place by each chord,
+ * with {@link #addNotes(List)}.
+ * <p>
+ * Each chord is assigned all at once, by its single most likely matching of notes to {@link Voice}s, which
+ * is found with the Hungarian method (see {@link HmmVoiceSplittingModelChordAssignment}). The score of adding a
+ * note into an existing Voice is the same as in the HMM (see
+ * {@link Voice#getProbability(MidiNote, HmmVoiceSplittingModelParameters)}), including the penalty for being out
+ * of pitch order with that Voice's neighbours as they were before the chord. New Voices are always inserted in
+ * pitch order, so they are never penalized. As in the HMM, a note can only be added into the existing Voices
+ * within the {@link HmmVoiceSplittingModelParameters#PITCH_WINDOW} around its pitch, and Voices are retired
+ * after {@link HmmVoiceSplittingModelParameters#RETIREMENT_GAP_MICROS} of silence.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class GreedyVoiceSplittingModelState extends VoiceSplittingModelState implements Comparable<GreedyVoiceSplittingModelState> {
+
+	/**
+	 * The Voices of this state, in pitch order, lowest first.
+	 */
+	private final List<Voice> voices;
+
+	/**
+	 * The Voices of this state which have been retired, in the order in which they were retired.
+	 * They are never scored again, but they are still returned by {@link #getVoices()}.
+	 */
+	private final List<Voice> retired;
+
+	/**
+	 * The log probability of this state's transitions so far.
+	 */
+	private double logProb;
+
+	/**
+	 * The parameters we are using.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * The scorer compiled from {@link #params}.
+	 */
+	private final HmmVoiceSplittingModelScorer scorer;
+
+	/**
+	 * Create a new empty state with the given parameters.
+	 *
+	 * @param params {@link #params}
+	 */
+	public GreedyVoiceSplittingModelState(HmmVoiceSplittingModelParameters params) {
+		this(0.0, new ArrayList<Voice>(), new ArrayList<Voice>(), params);
+	}
+
+	/**
+	 * Create a new state with the given log probability and Voices.
+	 *
+	 * @param logProb {@link #logProb}
+	 * @param voices {@link #voices}
+	 * @param retired {@link #retired}
+	 * @param params {@link #params}
+	 */
+	private GreedyVoiceSplittingModelState(double logProb, List<Voice> voices, List<Voice> retired, HmmVoiceSplittingModelParameters params) {
+		this.logProb = logProb;
+		this.voices = voices;
+		this.retired = retired;
+		this.params = params;
+		scorer = params.getScorer();
+	}
+
+	/**
+	 * Add the given notes, which all have the same onset time, into this state's Voices using their most
+	 * likely matching.
+	 *
+	 * @param notes The notes of the next onset.
+	 * @return True if the notes were added. False if they could not be, because every matching would use a
+	 * closed Voice, a transition with probability 0, or more than {@link HmmVoiceSplittingModelTester#MAX_VOICES}
+	 * Voices. This state is then unchanged, except that any Voices which were silent for long enough are retired.
+	 */
+	public boolean addNotes(List<MidiNote> notes) {
+		if (notes.isEmpty()) {
+			return true;
+		}
+
+		if (params.hasRetirement()) {
+			retireVoices(notes.get(0).getOnsetTime());
+		}
+
+		// Retired Voices still count towards the maximum
+		int numVoices = voices.size();
+		int numAllVoices = numVoices + retired.size();
+		int numNewVoices = 0;
+		if (numAllVoices < HmmVoiceSplittingModelTester.MAX_VOICES) {
+			numNewVoices = Math.min(notes.size(), HmmVoiceSplittingModelTester.MAX_VOICES - numAllVoices);
+		}
+
+		// Rows are the notes, and columns the Voices followed by the new Voices
+		double newVoiceCost = -scorer.getLogNewVoiceProbability();
+		double orderPenalty = scorer.getLogOrderPenalty();
+		double window = params.getPitchWindowSemitones();
+		double[][] costs = new double[notes.size()][numVoices + numNewVoices];
+
+		for (int row = 0; row < notes.size(); row++) {
+			MidiNote note = notes.get(row);
+			int pitch = note.getPitch();
+
+			for (int column = 0; column < numVoices; column++) {
+				Voice voice = voices.get(column);
+
+				if (!voice.canAddNoteAtTime(note.getOnsetTime(), note.getDurationTime(), params) ||
+						Math.abs(pitch - voice.getWeightedLastPitch(params)) > window) {
+					costs[row][column] = HmmVoiceSplittingModelChordAssignment.FORBIDDEN;
+					continue;
+				}
+
+				double cost = -scorer.getLogProbability(voice, note, params);
+				if (column > 0 && pitch < voices.get(column - 1).getMostRecentNote().getPitch()) {
+					cost += orderPenalty;
+				}
+				if (column < numVoices - 1 && pitch > voices.get(column + 1).getMostRecentNote().getPitch()) {
+					cost += orderPenalty;
+				}
+				costs[row][column] = cost;
+			}
+
+			for (int column = numVoices; column < costs[row].length; column++) {
+				costs[row][column] = newVoiceCost;
+			}
+		}
+
+		// Costs of positive infinity (probability 0) are forbidden as well
+		HmmVoiceSplittingModelChordAssignment assignment = HmmVoiceSplittingModelChordAssignment.solve(costs);
+		if (assignment == null) {
+			return false;
+		}
+
+		// Extend the existing Voices first, so that the new ones are placed among their new pitches
+		List<MidiNote> newVoiceNotes = new ArrayList<MidiNote>();
+		for (int row = 0; row < notes.size(); row++) {
+			int column = assignment.getColumn(row);
+
+			if (column < numVoices) {
+				voices.set(column, new Voice(notes.get(row), voices.get(column), params));
+
+			} else {
+				newVoiceNotes.add(notes.get(row));
+			}
+		}
+
+		for (MidiNote note : newVoiceNotes) {
+			int position = 0;
+			while (position < voices.size() && voices.get(position).getMostRecentNote().getPitch() <= note.getPitch()) {
+				position++;
+			}
+
+			voices.add(position, new Voice(note, params));
+		}
+
+		logProb += assignment.getLogProbability();
+		return true;
+	}
+
+	/**
+	 * Move every one of our {@link #voices} which has been silent for at least
+	 * {@link HmmVoiceSplittingModelParameters#getRetirementGapMicros()} by the given time onto the end of {@link #retired}.
+	 *
+	 * @param time The onset time of the next incoming notes.
+	 */
+	private void retireVoices(long time) {
+		double gap = params.getRetirementGapMicros();
+		int size = 0;
+
+		for (Voice voice : voices) {
+			if (time - voice.getMostRecentNote().getOffsetTime() >= gap) {
+				retired.add(voice);
+
+			} else {
+				voices.set(size++, voice);
+			}
+		}
+
+		voices.subList(size, voices.size()).clear();
+	}
+
+	/**
+	 * Return a {@link Beam} containing only the state reached from a copy of this one by adding the given notes
+	 * with {@link #addNotes(List)}. This state itself is unchanged. A {@link GreedyVoiceSplittingModel} does not
+	 * use this, since it changes its single state in place instead.
+	 *
+	 * @param notes The notes of the next onset.
+	 * @return A Beam containing the new state, or an empty Beam if the notes could not be added.
+	 */
+	@Override
+	public Beam<GreedyVoiceSplittingModelState> handleIncoming(List<MidiNote> notes) {
+		GreedyVoiceSplittingModelState state = new GreedyVoiceSplittingModelState(logProb, new ArrayList<Voice>(voices), new ArrayList<Voice>(retired), params);
+		Beam<GreedyVoiceSplittingModelState> newStates = new Beam<GreedyVoiceSplittingModelState>(1);
+
+		if (state.addNotes(notes)) {
+			newStates.add(state);
+		}
+
+		return newStates;
+	}
+
+	/**
+	 * Get the {@link Voice}s of this state. These are its active {@link #voices}, followed by its
+	 * {@link #retired} ones, if it has any.
+	 *
+	 * @return A List of all of this state's Voices.
+	 */
+	@Override
+	public List<Voice> getVoices() {
+		if (retired.isEmpty()) {
+			return voices;
+		}
+
+		List<Voice> allVoices = new ArrayList<Voice>(voices.size() + retired.size());
+		allVoices.addAll(voices);
+		allVoices.addAll(retired);
+		return allVoices;
+	}
+
+	@Override
+	public double getScore() {
+		return logProb;
+	}
+
+	/**
+	 * Compare the given state to this one. States are ordered by decreasing score, then by increasing
+	 * number of Voices.
+	 *
+	 * @param o The state we are comparing to.
+	 * @return A positive number if this state should come after the given one, a negative number if it
+	 * should come before, or 0 if they are equal.
+	 */
+	@Override
+	public int compareTo(GreedyVoiceSplittingModelState o) {
+		int result = Double.compare(o.logProb, logProb);
+		if (result != 0) {
+			return result;
+		}
+
+		return Integer.compare(voices.size() + retired.size(), o.voices.size() + o.retired.size());
+	}
+}
@@ -0,0 +1,12 @@
+/**
+ * Provides a low-latency greedy voice splitting model, which keeps a single hypothesis and assigns
+ * each chord by its most likely matching, using the same parameters and scores as the model in
+ * {@link voicesplitting.voice.hmm}.
+ * <p>
+ * It can be run with the <code>-q</code> flag of {@link voicesplitting.voice.hmm.HmmVoiceSplittingModelTester},
+ * or by checking the <code>Greedy</code> box in the GUI.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+package voicesplitting.voice.greedy;
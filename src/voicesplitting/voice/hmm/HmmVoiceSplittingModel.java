@@ -1,17 +1,42 @@
 package voicesplitting.voice.hmm;
 
 import java.util.List;
-import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
+import voicesplitting.generic.Beam;
 import voicesplitting.utils.MidiNote;
 import voicesplitting.voice.Voice;
+import voicesplitting.voice.VoiceArena;
 import voicesplitting.voice.VoiceSplittingModel;
+import voicesplitting.voice.VoiceTruncator;
 
 /**
  * An <code>HmmVoiceSplittingModel</code> is the model that performs voice separation as described
  * in the paper.
  * <p>
  * It contains a modified HMM, where the states are stored as {@link HmmVoiceSplittingModelState}s.
+ * <p>
+ * In parallel mode, the hypothesis states are each expanded on the common <code>ForkJoinPool</code>
+ * by {@link HmmVoiceSplittingModelExpansionTask}s. This gives the same results as the sequential mode.
+ * <p>
+ * The model can also recombine its hypotheses. Any two new states whose
+ * {@link HmmVoiceSplittingModelStateSignature}s are equal will score every future transition
+ * identically, so only the better of them is kept, leaving room in the beam for other states.
+ * <p>
+ * Finally, the model can store all of its {@link Voice}s in a {@link VoiceArena}, rather than as one
+ * object per note. The nodes which are no longer used by any hypothesis are then reclaimed
+ * periodically between onsets. This gives the same results, with far fewer objects for the garbage
+ * collector to trace on long songs.
+ * <p>
+ * If the parameters set an adaptive beam (see {@link HmmVoiceSplittingModelParameters#BEAM_MARGIN}),
+ * the hypothesis states which are too unlikely compared to the best one are dropped after each onset,
+ * and running statistics of the number of states kept each time are recorded (see {@link #getMeanBeamWidth()}).
+ * <p>
+ * A model can also be given a time budget with {@link #setTimeBudget(long, int)}. Before each onset,
+ * it then compares the time remaining with the number of onsets remaining, and if needed, expands
+ * only its best few hypothesis states into a narrower beam (which also limits how many assignments
+ * of a chord are tried, see {@link HmmVoiceSplittingModelState#handleIncoming(HmmVoiceSplittingModelScoreCache, Beam)}).
+ * {@link #isDegraded()} tells whether this was ever needed.
  * 
  * @author Andrew McLeod - 7 April, 2015
  * @version 1.0
@@ -20,10 +45,10 @@ import voicesplitting.voice.VoiceSplittingModel;
 public class HmmVoiceSplittingModel extends VoiceSplittingModel {
 	
 	/**
-	 * A TreeSet of the {@link HmmVoiceSplittingModelState}s containing the most likely Voices
+	 * A Beam of the {@link HmmVoiceSplittingModelState}s containing the most likely Voices
 	 * for the given song. 
 	 */
-	private TreeSet<HmmVoiceSplittingModelState> hypothesisStates;
+	private Beam<HmmVoiceSplittingModelState> hypothesisStates;
 	
 	/**
 	 * The parameters we are going to use for this run.
@@ -31,19 +56,146 @@ public class HmmVoiceSplittingModel extends VoiceSplittingModel {
 	private HmmVoiceSplittingModelParameters params;
 	
 	/**
-	 * Create a new HmmVoiceSplittingModel with the given parameters.
+	 * True if we want to expand the hypothesis states in parallel. False otherwise.
+	 */
+	private final boolean parallel;
+	
+	/**
+	 * True if we want to recombine equivalent hypothesis states. False otherwise.
+	 */
+	private final boolean recombine;
+	
+	/**
+	 * The arena in which all of our {@link Voice}s are stored, or null if they are stored as separate objects.
+	 */
+	private final VoiceArena arena;
+	
+	/**
+	 * The number of onsets handled so far.
+	 */
+	private int numHandledOnsets;
+	
+	/**
+	 * The total number of hypothesis states kept after each onset so far.
+	 */
+	private long beamWidthSum;
+	
+	/**
+	 * The smallest number of hypothesis states kept after any onset so far, or 0 if there are none.
+	 */
+	private int minBeamWidth;
+	
+	/**
+	 * The largest number of hypothesis states kept after any onset so far, or 0 if there are none.
+	 */
+	private int maxBeamWidth;
+	
+	/**
+	 * The time (from <code>System.nanoTime()</code>) by which the song should be finished, if
+	 * {@link #hasTimeBudget} is true.
+	 */
+	private long deadline;
+	
+	/**
+	 * True if this model has been given a time budget. False otherwise.
+	 */
+	private boolean hasTimeBudget;
+	
+	/**
+	 * The number of onsets which have yet to be handled within the time budget.
+	 */
+	private int remainingOnsets;
+	
+	/**
+	 * An estimate of the number of nanoseconds taken to expand a single hypothesis state,
+	 * or 0 if there is no estimate yet.
+	 */
+	private double nanosPerExpansion;
+	
+	/**
+	 * The number of onsets so far at which fewer than {@link HmmVoiceSplittingModelParameters#BEAM_SIZE}
+	 * hypothesis states could be used because of the time budget.
+	 */
+	private int numDegradedOnsets;
+	
+	/**
+	 * The number of times two equivalent hypothesis states have been recombined so far.
+	 */
+	private int numRecombinations;
+	
+	/**
+	 * The number of score lookups so far which found their {@link Voice} in the current
+	 * {@link HmmVoiceSplittingModelScoreCache}.
+	 */
+	private long numCacheHits;
+	
+	/**
+	 * The number of score lookups so far which had to score their {@link Voice}.
+	 */
+	private long numCacheMisses;
+	
+	/**
+	 * Create a new HmmVoiceSplittingModel with the given parameters, which expands its
+	 * hypothesis states sequentially and does not recombine them.
 	 * 
 	 * @param params {@link #params}
 	 */
 	public HmmVoiceSplittingModel(HmmVoiceSplittingModelParameters params) {
+		this(params, false, false);
+	}
+	
+	/**
+	 * Create a new HmmVoiceSplittingModel with the given parameters, which does not recombine
+	 * its hypothesis states.
+	 * 
+	 * @param params {@link #params}
+	 * @param parallel {@link #parallel}
+	 */
+	public HmmVoiceSplittingModel(HmmVoiceSplittingModelParameters params, boolean parallel) {
+		this(params, parallel, false);
+	}
+	
+	/**
+	 * Create a new HmmVoiceSplittingModel with the given parameters, which stores its
+	 * {@link Voice}s as separate objects.
+	 * 
+	 * @param params {@link #params}
+	 * @param parallel {@link #parallel}
+	 * @param recombine {@link #recombine}
+	 */
+	public HmmVoiceSplittingModel(HmmVoiceSplittingModelParameters params, boolean parallel, boolean recombine) {
+		this(params, parallel, recombine, false);
+	}
+	
+	/**
+	 * Create a new HmmVoiceSplittingModel with the given parameters.
+	 * 
+	 * @param params {@link #params}
+	 * @param parallel {@link #parallel}
+	 * @param recombine {@link #recombine}
+	 * @param useArena True to store our {@link Voice}s in a new {@link VoiceArena}. False otherwise.
+	 */
+	public HmmVoiceSplittingModel(HmmVoiceSplittingModelParameters params, boolean parallel, boolean recombine, boolean useArena) {
 		this.params = params;
+		this.parallel = parallel;
+		this.recombine = recombine;
+		arena = useArena ? new VoiceArena(params) : null;
+		numRecombinations = 0;
+		numCacheHits = 0;
+		numCacheMisses = 0;
+		numHandledOnsets = 0;
+		beamWidthSum = 0;
+		minBeamWidth = 0;
+		maxBeamWidth = 0;
+		hasTimeBudget = false;
+		numDegradedOnsets = 0;
 		
-		hypothesisStates = new TreeSet<HmmVoiceSplittingModelState>();
-		hypothesisStates.add(new HmmVoiceSplittingModelState(params));
+		hypothesisStates = new Beam<HmmVoiceSplittingModelState>(params.BEAM_SIZE);
+		hypothesisStates.add(new HmmVoiceSplittingModelState(params, arena));
 	}
 
 	/**
-	 * This method returns a TreeSet of the current hypothesis {@link HmmVoiceSplittingModelState}s
+	 * This method returns a {@link Beam} of the current hypothesis {@link HmmVoiceSplittingModelState}s
 	 * of this HmmVoiceSplittingModel.
 	 * <p>
 	 * The most highly scoring state can be retrieved by using <code>getHypotheses().first()</code>.
@@ -51,18 +203,19 @@ public class HmmVoiceSplittingModel extends VoiceSplittingModel {
 	 * NOTE: This is dependent on proper implimentation of the {@link HmmVoiceSplittingModelState}'s
 	 * <code>compareTo</code> method.
 	 * 
-	 * @return A TreeSet of the current hypothesis states of this HmmVoiceSplittingModel, in their natural order.
+	 * @return A Beam of the current hypothesis states of this HmmVoiceSplittingModel, in their natural order.
 	 */
 	@Override
-	public TreeSet<HmmVoiceSplittingModelState> getHypotheses() {
+	public Beam<HmmVoiceSplittingModelState> getHypotheses() {
 		return hypothesisStates;
 	}
 
 	/**
 	 * This method takes as input some List of {@link MidiNote}s, and then does some work on
 	 * the notes, updating its list of hypothesis {@link HmmVoiceSplittingModelState}s in the process.
-	 * Here, we also ensure that the {@link #hypothesisStates} list doesn't grow larger than
-	 * {@link HmmVoiceSplittingModelParameters#BEAM_SIZE}.
+	 * Here, every hypothesis state adds its new states into a single {@link Beam} of size
+	 * {@link HmmVoiceSplittingModelParameters#BEAM_SIZE}, so that candidates which cannot make it
+	 * into the new {@link #hypothesisStates} are rejected as early as possible.
 	 * <p>
 	 * NOTE: It is assumed that the note Lists passed into this method will be passed
 	 * chronologically. Specifically, each time this method is invoked, it should be passed
@@ -71,67 +224,243 @@ public class HmmVoiceSplittingModel extends VoiceSplittingModel {
 	 * method.
 	 * <p>
 	 * Usually, this method should do little more than simply passing along the notes list
-	 * to its {@link HmmVoiceSplittingModelState}'s {@link HmmVoiceSplittingModelState#handleIncoming(List)}
-	 * method and updating current hypotheses with the result.
+	 * to its {@link HmmVoiceSplittingModelState}'s
+	 * {@link HmmVoiceSplittingModelState#handleIncoming(HmmVoiceSplittingModelScoreCache, Beam)}
+	 * method and updating current hypotheses with the result. A single {@link HmmVoiceSplittingModelScoreCache}
+	 * is shared by all of the hypothesis states for each call.
+	 * <p>
+	 * If this model has a time budget, only the best {@link #getBudgetedBeamSize()} hypothesis states
+	 * are expanded, into a Beam of that size.
 	 *  
 	 * @param notes A List of the MidiNotes which we want to handle next.
 	 */
 	@Override
 	public void handleIncoming(List<MidiNote> notes) {
-		TreeSet<HmmVoiceSplittingModelState> newStates = new TreeSet<HmmVoiceSplittingModelState>();
+		Beam<HmmVoiceSplittingModelState> newStates;
+		HmmVoiceSplittingModelScoreCache cache = new HmmVoiceSplittingModelScoreCache(notes, params);
 		
-		for (HmmVoiceSplittingModelState state : hypothesisStates) {
-			newStates.addAll(state.handleIncoming(notes));
+		long start = System.nanoTime();
+		int beamSize = params.BEAM_SIZE;
+		List<HmmVoiceSplittingModelState> states = hypothesisStates.getOrderedStates();
+		
+		if (hasTimeBudget) {
+			beamSize = getBudgetedBeamSize();
+			
+			if (beamSize < params.BEAM_SIZE) {
+				numDegradedOnsets++;
+				states = states.subList(0, Math.min(beamSize, states.size()));
+			}
+		}
+		
+		if (parallel && states.size() > 1) {
+			newStates = ForkJoinPool.commonPool().invoke(
+					new HmmVoiceSplittingModelExpansionTask(states, cache, params, beamSize, recombine));
 			
-			while (newStates.size() > params.BEAM_SIZE) {
-				newStates.pollLast();
+		} else {
+			newStates = newBeam(params, beamSize, recombine);
+			
+			for (HmmVoiceSplittingModelState state : states) {
+				state.handleIncoming(cache, newStates);
 			}
 		}
 		
+		if (hasTimeBudget) {
+			// The first onset (from the empty state) also pays for any setup, so it is not used as an estimate
+			if (numHandledOnsets > 0) {
+				double nanos = ((double) (System.nanoTime() - start)) / Math.max(states.size(), 1);
+				nanosPerExpansion = nanosPerExpansion == 0 ? nanos : 0.8 * nanosPerExpansion + 0.2 * nanos;
+			}
+			remainingOnsets--;
+		}
+		
+		numRecombinations += newStates.getNumRecombinations();
+		numCacheHits += cache.getNumHits();
+		numCacheMisses += cache.getNumMisses();
+		
+		newStates.prune();
+		minBeamWidth = numHandledOnsets == 0 ? newStates.size() : Math.min(minBeamWidth, newStates.size());
+		maxBeamWidth = Math.max(maxBeamWidth, newStates.size());
+		beamWidthSum += newStates.size();
+		numHandledOnsets++;
 		hypothesisStates = newStates;
+		
+		if (arena != null && arena.shouldCollect()) {
+			arena.collect(hypothesisStates);
+		}
 	}
 	
 	/**
-	 * Get the F1-measure of the most likely {@link HmmVoiceSplittingModelState}'s {@link Voice}s
-	 * from the {@link #hypothesisStates} list.
+	 * Create a new empty {@link Beam} for the new hypothesis states of a single onset. It is adaptive if
+	 * the given parameters say so.
 	 * 
-	 * @param goldStandard The gold standard voices for the current song.
-	 * @return The F1-measure of the most likely {@link HmmVoiceSplittingModelState}'s {@link Voice}s
-	 * from the {@link #hypothesisStates} list, or 0 if that list is empty.
+	 * @param params The parameters we are using.
+	 * @param beamSize The maximum size of the Beam. This is usually {@link HmmVoiceSplittingModelParameters#BEAM_SIZE}.
+	 * @param recombine True if the Beam should recombine equivalent states. False otherwise.
+	 * @return A new empty Beam.
 	 */
-	public double getF1(List<List<MidiNote>> goldStandard) {
-		if (hypothesisStates == null || hypothesisStates.isEmpty()) {
-			return 0.0;
+	static Beam<HmmVoiceSplittingModelState> newBeam(HmmVoiceSplittingModelParameters params, int beamSize, boolean recombine) {
+		return new Beam<HmmVoiceSplittingModelState>(beamSize, recombine, Math.min(params.MIN_BEAM_SIZE, beamSize), params.BEAM_MARGIN);
+	}
+	
+	/**
+	 * Replace this model's hypothesis states with the given ones, which should be some of its current ones.
+	 * This is used by an {@link HmmVoiceSplittingModelStream} to drop the hypotheses which disagree with a
+	 * note it has committed.
+	 * 
+	 * @param states The hypothesis states to keep.
+	 */
+	void retainHypotheses(List<HmmVoiceSplittingModelState> states) {
+		Beam<HmmVoiceSplittingModelState> newStates = newBeam(params, params.BEAM_SIZE, recombine);
+		
+		for (HmmVoiceSplittingModelState state : states) {
+			newStates.add(state);
 		}
 		
-		List<Voice> voices = hypothesisStates.first().getVoices();
+		hypothesisStates = newStates;
+	}
+	
+	/**
+	 * Cut every note which began before the given time off of the Voices of this model's hypothesis states,
+	 * except for the few which are needed to score future notes (see {@link VoiceTruncator}). This should only
+	 * be done once every hypothesis agrees on the voices of those notes, and they have been stored elsewhere.
+	 * 
+	 * @param cutTime The time before which notes can be cut off, in microseconds.
+	 * @return The estimated number of bytes of Voice nodes which were cut off.
+	 */
+	public long releasePrefix(long cutTime) {
+		VoiceTruncator truncator = new VoiceTruncator(cutTime, params);
+		Beam<HmmVoiceSplittingModelState> newStates = newBeam(params, params.BEAM_SIZE, recombine);
 		
-		int totalPositives = 0;
-		int truePositives = 0;
-		int falsePositives = 0;
-		int falseNegatives = 0;
-
-		for (List<MidiNote> goldVoice : goldStandard) {
-			if (goldVoice.size() != 0) {
-				totalPositives += goldVoice.size() - 1;
-			}
+		for (HmmVoiceSplittingModelState state : hypothesisStates) {
+			newStates.add(state.truncate(truncator));
 		}
 		
-		for (Voice voice : voices) {
-			int voiceTruePositives = voice.getNumLinksCorrect(goldStandard);
-			int voiceFalsePositives = voice.getNumNotes() - 1 - voiceTruePositives;
-			
-			truePositives += voiceTruePositives;
-			falsePositives += voiceFalsePositives;
+		hypothesisStates = newStates;
+		return truncator.getNumBytesReleased();
+	}
+	
+	/**
+	 * Give this model a time budget for the rest of its song. From now on, it will narrow its beam whenever
+	 * the time it has spent per onset so far would not let it finish the remaining onsets on time.
+	 * 
+	 * @param budgetMillis The number of milliseconds in which the rest of the song should be handled.
+	 * @param numOnsets The number of onsets (calls to {@link #handleIncoming(List)}) in the rest of the song.
+	 */
+	public void setTimeBudget(long budgetMillis, int numOnsets) {
+		deadline = System.nanoTime() + budgetMillis * 1000000L;
+		remainingOnsets = numOnsets;
+		hasTimeBudget = true;
+	}
+	
+	/**
+	 * Get the size of the beam to use for the next onset so that, at the current rate of expansion, the
+	 * remaining onsets can be handled before the {@link #deadline}. Once the deadline has passed, this is 1.
+	 * 
+	 * @return The size of the beam to use for the next onset, between 1 and {@link HmmVoiceSplittingModelParameters#BEAM_SIZE}.
+	 */
+	private int getBudgetedBeamSize() {
+		if (nanosPerExpansion == 0) {
+			// No estimate yet
+			return params.BEAM_SIZE;
 		}
 		
-		falseNegatives = totalPositives - truePositives;
-		
-		double precision = ((double) truePositives) / (truePositives + falsePositives);
-		double recall = ((double) truePositives) / (truePositives + falseNegatives);
-		
-		double f1 = 2 * precision * recall / (precision + recall);
+		double nanosPerOnset = ((double) (deadline - System.nanoTime())) / Math.max(remainingOnsets, 1);
+		double beamSize = nanosPerOnset / nanosPerExpansion;
 		
-		return f1;
+		return (int) Math.max(1, Math.min(params.BEAM_SIZE, beamSize));
+	}
+	
+	/**
+	 * Decide whether the time budget of this model has forced it to use a narrower beam at any onset so far.
+	 * 
+	 * @return True if the beam has been narrowed because of the time budget. False otherwise.
+	 */
+	public boolean isDegraded() {
+		return numDegradedOnsets > 0;
+	}
+	
+	/**
+	 * Get the number of onsets so far at which the time budget of this model forced it to use a narrower beam.
+	 * 
+	 * @return {@link #numDegradedOnsets}
+	 */
+	public int getNumDegradedOnsets() {
+		return numDegradedOnsets;
+	}
+	
+	/**
+	 * Get the number of onsets which this model has handled so far.
+	 * 
+	 * @return {@link #numHandledOnsets}
+	 */
+	public int getNumHandledOnsets() {
+		return numHandledOnsets;
+	}
+	
+	/**
+	 * Get the mean number of hypothesis states kept after each onset so far. This is always
+	 * {@link HmmVoiceSplittingModelParameters#BEAM_SIZE} (once that many states exist) unless the beam is
+	 * adaptive or there is a time budget.
+	 * 
+	 * @return The mean number of hypothesis states kept after each onset, or 0 if there have been none.
+	 */
+	public double getMeanBeamWidth() {
+		return numHandledOnsets == 0 ? 0.0 : ((double) beamWidthSum) / numHandledOnsets;
+	}
+	
+	/**
+	 * Get the smallest number of hypothesis states kept after any onset so far.
+	 * 
+	 * @return {@link #minBeamWidth}
+	 */
+	public int getMinBeamWidth() {
+		return minBeamWidth;
+	}
+	
+	/**
+	 * Get the largest number of hypothesis states kept after any onset so far.
+	 * 
+	 * @return {@link #maxBeamWidth}
+	 */
+	public int getMaxBeamWidth() {
+		return maxBeamWidth;
+	}
+	
+	/**
+	 * Get the number of times that two equivalent hypothesis states have been recombined so far.
+	 * This will always be 0 if the model was not created to recombine states.
+	 * 
+	 * @return {@link #numRecombinations}
+	 */
+	public int getNumRecombinations() {
+		return numRecombinations;
+	}
+	
+	/**
+	 * Get the number of score lookups so far which found their {@link Voice} already scored in the
+	 * {@link HmmVoiceSplittingModelScoreCache} for their onset.
+	 * 
+	 * @return {@link #numCacheHits}
+	 */
+	public long getNumCacheHits() {
+		return numCacheHits;
+	}
+	
+	/**
+	 * Get the number of score lookups so far which had to score their {@link Voice}.
+	 * 
+	 * @return {@link #numCacheMisses}
+	 */
+	public long getNumCacheMisses() {
+		return numCacheMisses;
+	}
+	
+	/**
+	 * Get the arena in which this model's {@link Voice}s are stored.
+	 * 
+	 * @return {@link #arena}, which is null if this model stores its Voices as separate objects.
+	 */
+	public VoiceArena getVoiceArena() {
+		return arena;
 	}
 }
@@ -0,0 +1,258 @@
+package voicesplitting.voice.hmm;
+
+import java.util.Arrays;
+
+/**
+ * An <code>HmmVoiceSplittingModelChordAssignment</code> is one node of the search performed by an
+ * {@link HmmVoiceSplittingModelChordSolver}. It holds a cost matrix of incoming notes (rows) by
+ * voices (columns), in which some entries may be forbidden, along with the cheapest assignment of
+ * every row to a distinct column of that matrix, as found with the Hungarian method.
+ * <p>
+ * The costs are negative log probabilities, so the cheapest assignment is the most likely one.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelChordAssignment implements Comparable<HmmVoiceSplittingModelChordAssignment> {
+
+	/**
+	 * The cost of a forbidden entry in a cost matrix.
+	 */
+	public static final double FORBIDDEN = Double.POSITIVE_INFINITY;
+
+	/**
+	 * The cost matrix of this assignment's subproblem, indexed first by row. Rows which are the
+	 * same as in the parent subproblem are shared with it, so they must not be modified.
+	 */
+	private final double[][] costs;
+
+	/**
+	 * The column assigned to each row.
+	 */
+	private final int[] columns;
+
+	/**
+	 * The number of rows, from the first, which are fixed to their column in this assignment's subproblem.
+	 */
+	private final int numFixedRows;
+
+	/**
+	 * The log probability of this assignment, which is the negative of its total cost.
+	 */
+	private final double logProbability;
+
+	/**
+	 * Create a new assignment.
+	 *
+	 * @param costs {@link #costs}
+	 * @param columns {@link #columns}
+	 * @param numFixedRows {@link #numFixedRows}
+	 * @param logProbability {@link #logProbability}
+	 */
+	private HmmVoiceSplittingModelChordAssignment(double[][] costs, int[] columns, int numFixedRows, double logProbability) {
+		this.costs = costs;
+		this.columns = columns;
+		this.numFixedRows = numFixedRows;
+		this.logProbability = logProbability;
+	}
+
+	/**
+	 * Find the cheapest assignment of every row of the given cost matrix to a distinct column.
+	 *
+	 * @param costs The cost matrix, indexed first by row. It must have at least one row, and every
+	 * row must have the same length. Forbidden entries should be {@link #FORBIDDEN}.
+	 * @return The cheapest assignment, or null if every row cannot be assigned without using a
+	 * forbidden entry.
+	 */
+	public static HmmVoiceSplittingModelChordAssignment solve(double[][] costs) {
+		return solve(costs, new int[costs.length], 0);
+	}
+
+	/**
+	 * Find the cheapest assignment of every row of the given cost matrix to a distinct column,
+	 * where the first rows are already fixed to their columns. The other rows are assigned using
+	 * the Hungarian method in O(rows<sup>2</sup> * columns) time.
+	 *
+	 * @param costs The cost matrix, indexed first by row.
+	 * @param columns The column of each fixed row. The columns of the other rows are filled in here.
+	 * @param numFixedRows The number of fixed rows, from the first.
+	 * @return The cheapest assignment, or null if every row cannot be assigned without using a
+	 * forbidden entry.
+	 */
+	private static HmmVoiceSplittingModelChordAssignment solve(double[][] costs, int[] columns, int numFixedRows) {
+		int numTotalColumns = costs[0].length;
+
+		// The columns which are not used by any fixed row
+		boolean[] fixedColumns = new boolean[numTotalColumns];
+		for (int row = 0; row < numFixedRows; row++) {
+			fixedColumns[columns[row]] = true;
+		}
+
+		int[] freeColumns = new int[numTotalColumns - numFixedRows];
+		int numColumns = 0;
+		for (int column = 0; column < numTotalColumns; column++) {
+			if (!fixedColumns[column]) {
+				freeColumns[numColumns++] = column;
+			}
+		}
+
+		int numRows = costs.length - numFixedRows;
+		if (numRows > numColumns) {
+			return null;
+		}
+
+		// Arrays are 1-indexed, with row and column 0 used as a dummy
+		double[] rowPotentials = new double[numRows + 1];
+		double[] columnPotentials = new double[numColumns + 1];
+		int[] columnRows = new int[numColumns + 1];
+		int[] way = new int[numColumns + 1];
+		double[] minSlack = new double[numColumns + 1];
+		boolean[] used = new boolean[numColumns + 1];
+
+		for (int row = 1; row <= numRows; row++) {
+			columnRows[0] = row;
+			int column = 0;
+			Arrays.fill(minSlack, FORBIDDEN);
+			Arrays.fill(used, false);
+
+			// Find an augmenting path from this row to a free column
+			do {
+				used[column] = true;
+				int pathRow = columnRows[column];
+				double[] rowCosts = costs[numFixedRows + pathRow - 1];
+				double delta = FORBIDDEN;
+				int nextColumn = -1;
+
+				for (int j = 1; j <= numColumns; j++) {
+					if (!used[j]) {
+						double slack = rowCosts[freeColumns[j - 1]] - rowPotentials[pathRow] - columnPotentials[j];
+						if (slack < minSlack[j]) {
+							minSlack[j] = slack;
+							way[j] = column;
+						}
+
+						if (minSlack[j] < delta) {
+							delta = minSlack[j];
+							nextColumn = j;
+						}
+					}
+				}
+
+				if (nextColumn == -1) {
+					// Only forbidden entries remain
+					return null;
+				}
+
+				for (int j = 0; j <= numColumns; j++) {
+					if (used[j]) {
+						rowPotentials[columnRows[j]] += delta;
+						columnPotentials[j] -= delta;
+
+					} else {
+						minSlack[j] -= delta;
+					}
+				}
+
+				column = nextColumn;
+			} while (columnRows[column] != 0);
+
+			// Flip the path
+			do {
+				int previousColumn = way[column];
+				columnRows[column] = columnRows[previousColumn];
+				column = previousColumn;
+			} while (column != 0);
+		}
+
+		for (int j = 1; j <= numColumns; j++) {
+			if (columnRows[j] != 0) {
+				columns[numFixedRows + columnRows[j] - 1] = freeColumns[j - 1];
+			}
+		}
+
+		double cost = 0;
+		for (int row = 0; row < costs.length; row++) {
+			cost += costs[row][columns[row]];
+		}
+
+		return new HmmVoiceSplittingModelChordAssignment(costs, columns, numFixedRows, -cost);
+	}
+
+	/**
+	 * Solve one of the subproblems of Murty's partition of this assignment's subproblem. In it,
+	 * every row before the given one is fixed to its column in this assignment, and the given row
+	 * may not use its column in this assignment. The subproblems for every row which is not already
+	 * fixed (see {@link #getNumFixedRows()}) are disjoint, and together they contain every assignment
+	 * of this subproblem except this one.
+	 * <p>
+	 * The columns from the given index onwards are interchangeable, so they are treated as a single
+	 * column: if the given row uses one of them, it may use none of them in the subproblem.
+	 *
+	 * @param row The row to partition on. It must not be fixed already.
+	 * @param firstInterchangeableColumn The index of the first of the interchangeable columns.
+	 * @return The cheapest assignment of the subproblem, or null if it has none.
+	 */
+	public HmmVoiceSplittingModelChordAssignment partition(int row, int firstInterchangeableColumn) {
+		// Only the given row changes
+		double[][] subCosts = costs.clone();
+		subCosts[row] = costs[row].clone();
+
+		if (columns[row] >= firstInterchangeableColumn) {
+			Arrays.fill(subCosts[row], firstInterchangeableColumn, subCosts[row].length, FORBIDDEN);
+
+		} else {
+			subCosts[row][columns[row]] = FORBIDDEN;
+		}
+
+		return solve(subCosts, Arrays.copyOf(columns, columns.length), row);
+	}
+
+	/**
+	 * Get the number of rows, from the first, which are fixed to their column in this assignment's subproblem.
+	 *
+	 * @return {@link #numFixedRows}
+	 */
+	public int getNumFixedRows() {
+		return numFixedRows;
+	}
+
+	/**
+	 * Get the column assigned to the given row.
+	 *
+	 * @param row The index of the row.
+	 * @return The column assigned to the given row.
+	 */
+	public int getColumn(int row) {
+		return columns[row];
+	}
+
+	/**
+	 * Get the number of rows in this assignment.
+	 *
+	 * @return The number of rows in this assignment.
+	 */
+	public int getNumRows() {
+		return columns.length;
+	}
+
+	/**
+	 * Get the log probability of this assignment.
+	 *
+	 * @return {@link #logProbability}
+	 */
+	public double getLogProbability() {
+		return logProbability;
+	}
+
+	/**
+	 * Compare the given assignment to this one. The more likely assignment comes first.
+	 *
+	 * @param o The assignment we are comparing to.
+	 * @return A positive number if the given assignment should come first, negative if this one
+	 * should come first, or 0 if they are equally likely.
+	 */
+	@Override
+	public int compareTo(HmmVoiceSplittingModelChordAssignment o) {
+		return Double.compare(o.logProbability, logProbability);
+	}
+}
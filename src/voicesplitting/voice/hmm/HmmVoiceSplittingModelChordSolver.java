@@ -0,0 +1,196 @@
+package voicesplitting.voice.hmm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelChordSolver</code> lists the ways in which the notes of a single
+ * large chord can be assigned to the {@link Voice}s of an {@link HmmVoiceSplittingModelState}, from
+ * most to least likely, without enumerating all of them.
+ * <p>
+ * Each note is assigned either to one of its open Voices or to a new Voice, and each Voice can receive
+ * at most one note. The score of an assignment is the sum of the log probabilities of its notes'
+ * transitions, ignoring any penalty for pitch ordering. Since that penalty can only lower a transition's
+ * probability, this score is an upper bound on the log probability of every State which the assignment
+ * leads to. The assignments are found using Murty's algorithm on top of the Hungarian method, so each one
+ * costs polynomial time in the number of notes and Voices.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelChordSolver {
+
+	/**
+	 * The number of notes a chord must have for its transitions to use an HmmVoiceSplittingModelChordSolver.
+	 * Smaller chords are cheaper to enumerate directly.
+	 */
+	public static final int MIN_CHORD_SIZE = 12;
+
+	/**
+	 * The maximum number of assignments which are tried by each state for each state in the beam. If this
+	 * many are tried, any remaining ones are skipped, even if they could have entered the beam.
+	 */
+	public static final int ASSIGNMENTS_PER_BEAM_STATE = 4;
+
+	/**
+	 * The relative tolerance added to an assignment's score before comparing it to the beam, since
+	 * its transitions are summed in a different order during the recursion.
+	 */
+	private static final double ROUNDING_TOLERANCE = 1E-9;
+
+	/**
+	 * The Voice of each column of the cost matrix, or null for a column representing a new Voice.
+	 */
+	private final Voice[] columnVoices;
+
+	/**
+	 * The index of the first column representing a new Voice. Every column from here on is interchangeable.
+	 */
+	private final int firstNewColumn;
+
+	/**
+	 * The assignments which have been found but not yet returned, each heading one subproblem of Murty's partition.
+	 */
+	private final PriorityQueue<HmmVoiceSplittingModelChordAssignment> queue;
+
+	/**
+	 * Create a new solver for the given notes and Voices, and find its most likely assignment.
+	 *
+	 * @param columnVoices {@link #columnVoices}
+	 * @param firstNewColumn {@link #firstNewColumn}
+	 * @param costs The cost of each note (row) in each column, or {@link HmmVoiceSplittingModelChordAssignment#FORBIDDEN}.
+	 */
+	private HmmVoiceSplittingModelChordSolver(Voice[] columnVoices, int firstNewColumn, double[][] costs) {
+		this.columnVoices = columnVoices;
+		this.firstNewColumn = firstNewColumn;
+		queue = new PriorityQueue<HmmVoiceSplittingModelChordAssignment>();
+
+		HmmVoiceSplittingModelChordAssignment best = HmmVoiceSplittingModelChordAssignment.solve(costs);
+		if (best != null) {
+			queue.add(best);
+		}
+	}
+
+	/**
+	 * Create a solver for the transition of the given State's Voices on the incoming notes of the given cache.
+	 *
+	 * @param cache The score cache for the incoming notes.
+	 * @param voices The Voices of the State which is transitioning.
+	 * @param numRetired The number of Voices which that State has retired, which count towards
+	 * {@link HmmVoiceSplittingModelTester#MAX_VOICES} along with the given ones.
+	 * @param openVoices The open voices of each note, for the given Voices.
+	 * @return A new solver, or null if some possible transition has a log probability of negative infinity
+	 * (in which case, the scores of the assignments could not be summed reliably).
+	 */
+	public static HmmVoiceSplittingModelChordSolver create(HmmVoiceSplittingModelScoreCache cache, List<Voice> voices, int numRetired,
+			HmmVoiceSplittingModelOpenVoices openVoices) {
+		int numNotes = cache.getIncoming().size();
+
+		int numVoices = voices.size() + numRetired;
+		int numNewVoices = 0;
+		if (numVoices < HmmVoiceSplittingModelTester.MAX_VOICES) {
+			numNewVoices = Math.min(numNotes, HmmVoiceSplittingModelTester.MAX_VOICES - numVoices);
+		}
+
+		double newVoiceLogProb = cache.getScorer().getLogNewVoiceProbability();
+		if (numNewVoices > 0 && newVoiceLogProb == Double.NEGATIVE_INFINITY) {
+			return null;
+		}
+
+		// Only Voices which are open for some note need a column
+		List<Integer> voiceIndices = new ArrayList<Integer>();
+		for (int i = 0; i < voices.size(); i++) {
+			for (int note = 0; note < numNotes; note++) {
+				if (openVoices.isOpen(note, i)) {
+					voiceIndices.add(i);
+					break;
+				}
+			}
+		}
+
+		Voice[] columnVoices = new Voice[voiceIndices.size() + numNewVoices];
+		double[][] costs = new double[numNotes][columnVoices.length];
+
+		for (int column = 0; column < voiceIndices.size(); column++) {
+			int voiceIndex = voiceIndices.get(column);
+			columnVoices[column] = voices.get(voiceIndex);
+
+			for (int note = 0; note < numNotes; note++) {
+				if (openVoices.isOpen(note, voiceIndex)) {
+					double logProb = cache.getLogProbability(columnVoices[column], note);
+					if (logProb == Double.NEGATIVE_INFINITY) {
+						return null;
+					}
+
+					costs[note][column] = -logProb;
+
+				} else {
+					costs[note][column] = HmmVoiceSplittingModelChordAssignment.FORBIDDEN;
+				}
+			}
+		}
+
+		for (int note = 0; note < numNotes; note++) {
+			for (int column = voiceIndices.size(); column < columnVoices.length; column++) {
+				costs[note][column] = -newVoiceLogProb;
+			}
+		}
+
+		return new HmmVoiceSplittingModelChordSolver(columnVoices, voiceIndices.size(), costs);
+	}
+
+	/**
+	 * Get the next most likely assignment, and add the most likely assignment of each subproblem of its
+	 * partition into {@link #queue}. Assignments which differ only in which new Voice columns they use are
+	 * treated as the same assignment, and only one of them is ever returned.
+	 *
+	 * @return The next most likely assignment, or null if every assignment has been returned.
+	 */
+	public HmmVoiceSplittingModelChordAssignment next() {
+		HmmVoiceSplittingModelChordAssignment assignment = queue.poll();
+		if (assignment == null) {
+			return null;
+		}
+
+		for (int row = assignment.getNumFixedRows(); row < assignment.getNumRows(); row++) {
+			HmmVoiceSplittingModelChordAssignment child = assignment.partition(row, firstNewColumn);
+			if (child != null) {
+				queue.add(child);
+			}
+		}
+
+		return assignment;
+	}
+
+	/**
+	 * Get the Voice to which each note is assigned in the given assignment.
+	 *
+	 * @param assignment An assignment returned by {@link #next()}.
+	 * @return The Voice to which each note is assigned, or null for a note assigned to a new Voice.
+	 */
+	public Voice[] getVoices(HmmVoiceSplittingModelChordAssignment assignment) {
+		Voice[] voices = new Voice[assignment.getNumRows()];
+
+		for (int note = 0; note < voices.length; note++) {
+			voices[note] = columnVoices[assignment.getColumn(note)];
+		}
+
+		return voices;
+	}
+
+	/**
+	 * Get an upper bound on the log probability of any State reached from a State with the given log
+	 * probability using the given assignment.
+	 *
+	 * @param logProb The log probability of the State which is transitioning.
+	 * @param assignment An assignment returned by {@link #next()}.
+	 * @return An upper bound on the log probability of any State reached with the given assignment.
+	 */
+	public static double getUpperBound(double logProb, HmmVoiceSplittingModelChordAssignment assignment) {
+		double bound = logProb + assignment.getLogProbability();
+		return bound + Math.abs(bound) * ROUNDING_TOLERANCE;
+	}
+}
@@ -0,0 +1,96 @@
+package voicesplitting.voice.hmm;
+
+import java.util.List;
+import java.util.concurrent.RecursiveTask;
+
+import voicesplitting.generic.Beam;
+
+/**
+ * An <code>HmmVoiceSplittingModelExpansionTask</code> is used by an {@link HmmVoiceSplittingModel}
+ * in parallel mode to expand some of its hypothesis {@link HmmVoiceSplittingModelState}s on a
+ * <code>ForkJoinPool</code>.
+ * <p>
+ * Each task splits its List of states in half until only one remains, which is then expanded
+ * into its own {@link Beam}. The resulting Beams are merged in the order of the given states, so
+ * the outcome does not depend on the scheduling of the tasks.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelExpansionTask extends RecursiveTask<Beam<HmmVoiceSplittingModelState>> {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2739612864715389604L;
+
+	/**
+	 * The hypothesis states which this task should expand.
+	 */
+	private final List<HmmVoiceSplittingModelState> states;
+
+	/**
+	 * The score cache of the incoming notes on which to expand the states. This is shared by all tasks.
+	 */
+	private final HmmVoiceSplittingModelScoreCache cache;
+
+	/**
+	 * The parameters we are using.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * The size of the Beam to return.
+	 */
+	private final int beamSize;
+
+	/**
+	 * True if the returned Beam should recombine equivalent states. False otherwise.
+	 */
+	private final boolean recombine;
+
+	/**
+	 * Create a new task to expand the given states on the incoming notes of the given cache.
+	 *
+	 * @param states {@link #states}
+	 * @param cache {@link #cache}
+	 * @param params {@link #params}
+	 * @param beamSize {@link #beamSize}
+	 * @param recombine {@link #recombine}
+	 */
+	public HmmVoiceSplittingModelExpansionTask(List<HmmVoiceSplittingModelState> states, HmmVoiceSplittingModelScoreCache cache,
+			HmmVoiceSplittingModelParameters params, int beamSize, boolean recombine) {
+		this.states = states;
+		this.cache = cache;
+		this.params = params;
+		this.beamSize = beamSize;
+		this.recombine = recombine;
+	}
+
+	/**
+	 * Expand our {@link #states}, splitting the work in half into new tasks if there is more
+	 * than one of them.
+	 *
+	 * @return A Beam containing the best new states from all of our {@link #states}.
+	 */
+	@Override
+	protected Beam<HmmVoiceSplittingModelState> compute() {
+		if (states.size() <= 1) {
+			Beam<HmmVoiceSplittingModelState> newStates = HmmVoiceSplittingModel.newBeam(params, beamSize, recombine);
+			for (HmmVoiceSplittingModelState state : states) {
+				state.handleIncoming(cache, newStates);
+			}
+			return newStates;
+		}
+
+		int middle = states.size() / 2;
+		HmmVoiceSplittingModelExpansionTask first = new HmmVoiceSplittingModelExpansionTask(states.subList(0, middle), cache, params, beamSize, recombine);
+		HmmVoiceSplittingModelExpansionTask second = new HmmVoiceSplittingModelExpansionTask(states.subList(middle, states.size()), cache, params, beamSize, recombine);
+
+		second.fork();
+		Beam<HmmVoiceSplittingModelState> newStates = first.compute();
+		newStates.addAll(second.join());
+
+		return newStates;
+	}
+}
@@ -0,0 +1,158 @@
+package voicesplitting.voice.hmm;
+
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelOpenVoices</code> tracks, for each incoming note of a single
+ * {@link HmmVoiceSplittingModelState} transition, the indices of the {@link Voice}s into which it
+ * could still be added. It is used and modified during that state's chord recursion.
+ * <p>
+ * Each note's open voices are stored as a bitset, with one <code>long</code> word per 64 voices,
+ * so setting, clearing, and restoring a single voice is constant-time. Adding a new Voice into the
+ * recursion's List of Voices shifts the indices of all of the Voices after it, which is done by
+ * {@link #insertVoice(int, int)} and undone by {@link #removeVoice(int, int)}.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelOpenVoices {
+
+	/**
+	 * The open voice bitset of each note. Bit i of word w of <code>bits[note]</code> is set if
+	 * the Voice at index <code>64 * w + i</code> is open for that note.
+	 */
+	private final long[][] bits;
+
+	/**
+	 * Create the open voices of the given incoming notes for the given List of Voices.
+	 *
+	 * @param scores The transition scores of the incoming notes for the Voices of the state which is
+	 * transitioning, used to decide whether each voice is open.
+	 */
+	public HmmVoiceSplittingModelOpenVoices(HmmVoiceSplittingModelTransitionScores scores) {
+		int numNotes = scores.getIncoming().size();
+		int numVoices = scores.getNumVoices();
+
+		// Every note could add a new voice
+		int numWords = ((numVoices + numNotes) >>> 6) + 1;
+		bits = new long[numNotes][numWords];
+
+		for (int note = 0; note < numNotes; note++) {
+			for (int i = 0; i < numVoices; i++) {
+				if (scores.isOpen(note, i)) {
+					bits[note][i >>> 6] |= 1L << i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decide whether the Voice at the given index is open for the given note.
+	 *
+	 * @param note The index of the incoming note.
+	 * @param voice The index of the Voice.
+	 * @return True if the given Voice is open for the given note. False otherwise.
+	 */
+	public boolean isOpen(int note, int voice) {
+		return (bits[note][voice >>> 6] & (1L << voice)) != 0;
+	}
+
+	/**
+	 * Mark the Voice at the given index as open for the given note.
+	 *
+	 * @param note The index of the incoming note.
+	 * @param voice The index of the Voice.
+	 */
+	public void open(int note, int voice) {
+		bits[note][voice >>> 6] |= 1L << voice;
+	}
+
+	/**
+	 * Mark the Voice at the given index as closed for the given note.
+	 *
+	 * @param note The index of the incoming note.
+	 * @param voice The index of the Voice.
+	 * @return True if the Voice was open before this call (so that it can be reopened with
+	 * {@link #open(int, int)}). False otherwise.
+	 */
+	public boolean close(int note, int voice) {
+		long mask = 1L << voice;
+		long word = bits[note][voice >>> 6];
+
+		bits[note][voice >>> 6] = word & ~mask;
+		return (word & mask) != 0;
+	}
+
+	/**
+	 * Get the indices of the Voices which are open for the given note.
+	 *
+	 * @param note The index of the incoming note.
+	 * @return The indices of the open Voices, in increasing order.
+	 */
+	public int[] getOpenVoices(int note) {
+		long[] words = bits[note];
+
+		int count = 0;
+		for (long word : words) {
+			count += Long.bitCount(word);
+		}
+
+		int[] open = new int[count];
+		int i = 0;
+		for (int w = 0; w < words.length; w++) {
+			for (long word = words[w]; word != 0; word &= word - 1) {
+				open[i++] = (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+		}
+
+		return open;
+	}
+
+	/**
+	 * Shift the open voices of the given note and all later notes to account for a new (closed)
+	 * Voice being inserted at the given index.
+	 *
+	 * @param fromNote The first note to update.
+	 * @param voice The index at which the new Voice was inserted.
+	 */
+	public void insertVoice(int fromNote, int voice) {
+		int w = voice >>> 6;
+		long lowMask = (1L << voice) - 1;
+
+		for (int note = fromNote; note < bits.length; note++) {
+			long[] words = bits[note];
+
+			long carry = words[w] >>> 63;
+			words[w] = (words[w] & lowMask) | ((words[w] & ~lowMask) << 1);
+
+			for (int i = w + 1; i < words.length; i++) {
+				long next = words[i] >>> 63;
+				words[i] = (words[i] << 1) | carry;
+				carry = next;
+			}
+		}
+	}
+
+	/**
+	 * Shift the open voices of the given note and all later notes to account for the (closed)
+	 * Voice at the given index being removed. This undoes {@link #insertVoice(int, int)}.
+	 *
+	 * @param fromNote The first note to update.
+	 * @param voice The index of the removed Voice.
+	 */
+	public void removeVoice(int fromNote, int voice) {
+		int w = voice >>> 6;
+		long lowMask = (1L << voice) - 1;
+
+		for (int note = fromNote; note < bits.length; note++) {
+			long[] words = bits[note];
+
+			words[w] = (words[w] & lowMask) | ((words[w] >>> 1) & ~lowMask);
+
+			for (int i = w + 1; i < words.length; i++) {
+				words[i - 1] |= words[i] << 63;
+				words[i] >>>= 1;
+			}
+		}
+	}
+}
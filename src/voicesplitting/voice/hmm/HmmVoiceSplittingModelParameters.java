@@ -4,7 +4,8 @@ package voicesplitting.voice.hmm;
  * An <code>HmmVoiceSplittingModelParameters</code> contains the parameters to use for
  * an {@link HmmVoiceSplittingModel}.
  * <p>
- * All of the fields contained within are final.
+ * All of the parameter fields contained within are final. The {@link HmmVoiceSplittingModelScorer}
+ * compiled from them is created lazily by {@link #getScorer()}.
  * 
  * @author Andrew McLeod - 13 April, 2015
  * @version 1.0
@@ -75,7 +76,82 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 	public static final int BEAM_SIZE_DEFAULT = 25;
 	
 	/**
-	 * Create a new params object with the given values.
+	 * The largest difference in log probability from the best hypothesis state which a state can have
+	 * and still be kept after each step of the search, making the beam adaptive. Its width is then
+	 * between {@link #MIN_BEAM_SIZE} and {@link #BEAM_SIZE}. If this is infinite, the beam always
+	 * keeps {@link #BEAM_SIZE} states.
+	 */
+	public final double BEAM_MARGIN;
+	
+	/**
+	 * The default value for {@link #BEAM_MARGIN}, which disables the adaptive beam.
+	 */
+	public static final double BEAM_MARGIN_DEFAULT = Double.POSITIVE_INFINITY;
+	
+	/**
+	 * The minimum number of hypothesis states kept after each step of the search when the beam is
+	 * adaptive (see {@link #BEAM_MARGIN}).
+	 */
+	public final int MIN_BEAM_SIZE;
+	
+	/**
+	 * The default value for {@link #MIN_BEAM_SIZE}.
+	 */
+	public static final int MIN_BEAM_SIZE_DEFAULT = 1;
+	
+	/**
+	 * The largest distance, in multiples of {@link #PITCH_STD}, between a note's pitch and a Voice's
+	 * weighted pitch at which the note can still be added into that Voice. Voices further away are
+	 * dropped as candidates before they are scored. If this is infinite, no Voice is dropped.
+	 */
+	public final double PITCH_WINDOW;
+	
+	/**
+	 * The default value for {@link #PITCH_WINDOW}, which drops no candidates.
+	 */
+	public static final double PITCH_WINDOW_DEFAULT = Double.POSITIVE_INFINITY;
+	
+	/**
+	 * The length of silence, in microseconds, after which a Voice is retired: it is moved out of the
+	 * active Voices of a state into an archive, which is still part of the output but is never scored
+	 * again. Voices are never retired before their gap score has reached {@link #MIN_GAP_SCORE}. If this
+	 * is infinite, no Voice is retired.
+	 * <p>
+	 * Retiring a Voice changes later scores: it can no longer be continued, and it is no longer part of the
+	 * pitch order, so no note is penalized for being out of order with it, and new Voices are placed among
+	 * the active Voices only. It still counts towards {@link HmmVoiceSplittingModelTester#MAX_VOICES}.
+	 */
+	public final double RETIREMENT_GAP_MICROS;
+	
+	/**
+	 * The default value for {@link #RETIREMENT_GAP_MICROS}, which retires no Voices.
+	 */
+	public static final double RETIREMENT_GAP_MICROS_DEFAULT = Double.POSITIVE_INFINITY;
+	
+	/**
+	 * True if every chord's transitions are found by trying all of its assignments of notes to Voices.
+	 * Otherwise, chords of at least {@link HmmVoiceSplittingModelChordSolver#MIN_CHORD_SIZE} notes are
+	 * assigned by an {@link HmmVoiceSplittingModelChordSolver}, which tries only as many of their
+	 * assignments as could fit in the beam. That search is then approximate, but polynomial, whereas
+	 * trying every assignment of a very large chord can take exponential time.
+	 */
+	public final boolean EXACT_CHORDS;
+	
+	/**
+	 * The default value for {@link #EXACT_CHORDS}, which uses the chord solver for large chords.
+	 */
+	public static final boolean EXACT_CHORDS_DEFAULT = false;
+	
+	/**
+	 * The scorer compiled from these parameters. This is null until {@link #getScorer()} is first called.
+	 */
+	private volatile HmmVoiceSplittingModelScorer scorer;
+	
+	/**
+	 * Create a new params object with the given values. The search options ({@link #BEAM_MARGIN},
+	 * {@link #MIN_BEAM_SIZE}, {@link #PITCH_WINDOW}, {@link #RETIREMENT_GAP_MICROS}, and {@link #EXACT_CHORDS})
+	 * take their default values, and can be changed with {@link #withAdaptiveBeam(double, int)},
+	 * {@link #withPitchWindow(double)}, {@link #withRetirementGap(double)}, and {@link #withExactChords(boolean)}.
 	 * 
 	 * @param BS {@link #BEAM_SIZE}
 	 * @param NVP {@link #NEW_VOICE_PROBABILITY}
@@ -85,12 +161,38 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 	 * @param MGS {@link #MIN_GAP_SCORE}
 	 */
 	public HmmVoiceSplittingModelParameters(int BS, double NVP, int PHL, double GSM, double PS, double MGS) {
+		this(BS, NVP, PHL, GSM, PS, MGS, BEAM_MARGIN_DEFAULT, MIN_BEAM_SIZE_DEFAULT, PITCH_WINDOW_DEFAULT, RETIREMENT_GAP_MICROS_DEFAULT,
+				EXACT_CHORDS_DEFAULT);
+	}
+	
+	/**
+	 * Create a new params object with the given values.
+	 * 
+	 * @param BS {@link #BEAM_SIZE}
+	 * @param NVP {@link #NEW_VOICE_PROBABILITY}
+	 * @param PHL {@link #PITCH_HISTORY_LENGTH}
+	 * @param GSM {@link #GAP_STD_MICROS}
+	 * @param PS {@link #PITCH_STD}
+	 * @param MGS {@link #MIN_GAP_SCORE}
+	 * @param BM {@link #BEAM_MARGIN}
+	 * @param MBS {@link #MIN_BEAM_SIZE}
+	 * @param PW {@link #PITCH_WINDOW}
+	 * @param RGM {@link #RETIREMENT_GAP_MICROS}
+	 * @param EC {@link #EXACT_CHORDS}
+	 */
+	private HmmVoiceSplittingModelParameters(int BS, double NVP, int PHL, double GSM, double PS, double MGS, double BM, int MBS, double PW,
+			double RGM, boolean EC) {
 		BEAM_SIZE = BS;
 		NEW_VOICE_PROBABILITY = NVP;
 		PITCH_HISTORY_LENGTH = PHL;
 		GAP_STD_MICROS = GSM;
 		PITCH_STD = PS;
 		MIN_GAP_SCORE = MGS;
+		BEAM_MARGIN = BM;
+		MIN_BEAM_SIZE = MBS;
+		PITCH_WINDOW = PW;
+		RETIREMENT_GAP_MICROS = RGM;
+		EXACT_CHORDS = EC;
 	}
 	
 	/**
@@ -117,6 +219,123 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 		this(BEAM_SIZE_DEFAULT, NEW_VOICE_PROBABILITY_DEFAULT, PITCH_HISTORY_LENGTH_DEFAULT, GAP_STD_MICROS_DEFAULT, PITCH_STD_DEFAULT, MIN_GAP_SCORE_DEFAULT);
 	}
 	
+	/**
+	 * Get a copy of these parameters with the given adaptive beam settings.
+	 * 
+	 * @param BM {@link #BEAM_MARGIN}
+	 * @param MBS {@link #MIN_BEAM_SIZE}
+	 * @return A copy of these parameters, with the given {@link #BEAM_MARGIN} and {@link #MIN_BEAM_SIZE}.
+	 */
+	public HmmVoiceSplittingModelParameters withAdaptiveBeam(double BM, int MBS) {
+		return new HmmVoiceSplittingModelParameters(BEAM_SIZE, NEW_VOICE_PROBABILITY, PITCH_HISTORY_LENGTH, GAP_STD_MICROS, PITCH_STD,
+				MIN_GAP_SCORE, BM, MBS, PITCH_WINDOW, RETIREMENT_GAP_MICROS, EXACT_CHORDS);
+	}
+	
+	/**
+	 * Get a copy of these parameters with the given pitch window.
+	 * 
+	 * @param PW {@link #PITCH_WINDOW}
+	 * @return A copy of these parameters, with the given {@link #PITCH_WINDOW}.
+	 */
+	public HmmVoiceSplittingModelParameters withPitchWindow(double PW) {
+		return new HmmVoiceSplittingModelParameters(BEAM_SIZE, NEW_VOICE_PROBABILITY, PITCH_HISTORY_LENGTH, GAP_STD_MICROS, PITCH_STD,
+				MIN_GAP_SCORE, BEAM_MARGIN, MIN_BEAM_SIZE, PW, RETIREMENT_GAP_MICROS, EXACT_CHORDS);
+	}
+	
+	/**
+	 * Get a copy of these parameters with the given Voice retirement gap.
+	 * 
+	 * @param RGM {@link #RETIREMENT_GAP_MICROS}
+	 * @return A copy of these parameters, with the given {@link #RETIREMENT_GAP_MICROS}.
+	 */
+	public HmmVoiceSplittingModelParameters withRetirementGap(double RGM) {
+		return new HmmVoiceSplittingModelParameters(BEAM_SIZE, NEW_VOICE_PROBABILITY, PITCH_HISTORY_LENGTH, GAP_STD_MICROS, PITCH_STD,
+				MIN_GAP_SCORE, BEAM_MARGIN, MIN_BEAM_SIZE, PITCH_WINDOW, RGM, EXACT_CHORDS);
+	}
+	
+	/**
+	 * Get a copy of these parameters which does or does not try every assignment of each chord.
+	 * 
+	 * @param EC {@link #EXACT_CHORDS}
+	 * @return A copy of these parameters, with the given {@link #EXACT_CHORDS}.
+	 */
+	public HmmVoiceSplittingModelParameters withExactChords(boolean EC) {
+		return new HmmVoiceSplittingModelParameters(BEAM_SIZE, NEW_VOICE_PROBABILITY, PITCH_HISTORY_LENGTH, GAP_STD_MICROS, PITCH_STD,
+				MIN_GAP_SCORE, BEAM_MARGIN, MIN_BEAM_SIZE, PITCH_WINDOW, RETIREMENT_GAP_MICROS, EC);
+	}
+	
+	/**
+	 * Decide whether these parameters use an adaptive beam.
+	 * 
+	 * @return True if {@link #BEAM_MARGIN} is finite. False otherwise.
+	 */
+	public boolean isBeamAdaptive() {
+		return BEAM_MARGIN != Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Decide whether these parameters drop the candidate Voices which are too far from a note's pitch.
+	 * 
+	 * @return True if {@link #PITCH_WINDOW} is finite. False otherwise.
+	 */
+	public boolean hasPitchWindow() {
+		return PITCH_WINDOW != Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Get the largest distance between a note's pitch and a Voice's weighted pitch at which the note can
+	 * still be added into that Voice.
+	 * 
+	 * @return {@link #PITCH_WINDOW} times {@link #PITCH_STD}, in semitones.
+	 */
+	public double getPitchWindowSemitones() {
+		return PITCH_WINDOW * PITCH_STD;
+	}
+	
+	/**
+	 * Decide whether these parameters retire the Voices which have been silent for long enough.
+	 * 
+	 * @return True if {@link #RETIREMENT_GAP_MICROS} is finite. False otherwise.
+	 */
+	public boolean hasRetirement() {
+		return RETIREMENT_GAP_MICROS != Double.POSITIVE_INFINITY;
+	}
+	
+	/**
+	 * Get the length of silence after which a Voice is retired. This is never shorter than the gap at
+	 * which the gap score reaches {@link #MIN_GAP_SCORE}, so that a retired Voice would have been given
+	 * the same gap score by every later note.
+	 * 
+	 * @return The larger of {@link #RETIREMENT_GAP_MICROS} and
+	 * {@link HmmVoiceSplittingModelScorer#getMinGapScoreGap()}, in microseconds.
+	 */
+	public double getRetirementGapMicros() {
+		return Math.max(RETIREMENT_GAP_MICROS, getScorer().getMinGapScoreGap());
+	}
+	
+	/**
+	 * Get the {@link HmmVoiceSplittingModelScorer} compiled from these parameters. It is only
+	 * created the first time this method is called, so that tuning, which creates many parameter
+	 * objects, only pays for the ones that are actually used.
+	 * 
+	 * @return {@link #scorer}
+	 */
+	public HmmVoiceSplittingModelScorer getScorer() {
+		HmmVoiceSplittingModelScorer result = scorer;
+		
+		if (result == null) {
+			synchronized (this) {
+				result = scorer;
+				if (result == null) {
+					result = new HmmVoiceSplittingModelScorer(this);
+					scorer = result;
+				}
+			}
+		}
+		
+		return result;
+	}
+	
 	/**
 	 * Return whether the given Object is equal to this one, which is only the case
 	 * when the given Object is an HmmVoiceSplittingModelParameters, and all of its
@@ -138,7 +357,12 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 				&& PITCH_HISTORY_LENGTH == p.PITCH_HISTORY_LENGTH
 				&& GAP_STD_MICROS == p.GAP_STD_MICROS
 				&& PITCH_STD == p.PITCH_STD
-				&& MIN_GAP_SCORE == p.MIN_GAP_SCORE;		
+				&& MIN_GAP_SCORE == p.MIN_GAP_SCORE
+				&& BEAM_MARGIN == p.BEAM_MARGIN
+				&& MIN_BEAM_SIZE == p.MIN_BEAM_SIZE
+				&& PITCH_WINDOW == p.PITCH_WINDOW
+				&& RETIREMENT_GAP_MICROS == p.RETIREMENT_GAP_MICROS
+				&& EXACT_CHORDS == p.EXACT_CHORDS;
 	}
 	
 	/**
@@ -153,13 +377,21 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 				PITCH_HISTORY_LENGTH +
 				Double.valueOf(GAP_STD_MICROS).hashCode() +
 				Double.valueOf(PITCH_STD).hashCode() + 
-				Double.valueOf(MIN_GAP_SCORE).hashCode();
+				Double.valueOf(MIN_GAP_SCORE).hashCode() +
+				Double.valueOf(BEAM_MARGIN).hashCode() +
+				MIN_BEAM_SIZE +
+				Double.valueOf(PITCH_WINDOW).hashCode() +
+				Double.valueOf(RETIREMENT_GAP_MICROS).hashCode() +
+				Boolean.valueOf(EXACT_CHORDS).hashCode();
 	}
 	
 	/**
 	 * Get the String representation of this object, which is in the following format:
 	 * <p>
 	 * <code>({@link #BEAM_SIZE},{@link #NEW_VOICE_PROBABILITY},{@link #PITCH_HISTORY_LENGTH},{@link #GAP_STD_MICROS},{@link #PITCH_STD},{@link #MIN_GAP_SCORE})</code>
+	 * <p>
+	 * If the beam is adaptive, {@link #BEAM_MARGIN} and {@link #MIN_BEAM_SIZE} are also appended, in that order,
+	 * followed by {@link #PITCH_WINDOW} and {@link #RETIREMENT_GAP_MICROS}, each if it is finite.
 	 * 
 	 * @return The String representation of this HmmVoiceSplittingModelParameters object.
 	 */
@@ -172,7 +404,22 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 		sb.append(PITCH_HISTORY_LENGTH).append(',');
 		sb.append(GAP_STD_MICROS).append(',');
 		sb.append(PITCH_STD).append(',');
-		sb.append(MIN_GAP_SCORE).append(')');
+		sb.append(MIN_GAP_SCORE);
+		
+		if (isBeamAdaptive()) {
+			sb.append(',').append(BEAM_MARGIN);
+			sb.append(',').append(MIN_BEAM_SIZE);
+		}
+		
+		if (hasPitchWindow()) {
+			sb.append(',').append(PITCH_WINDOW);
+		}
+		
+		if (hasRetirement()) {
+			sb.append(',').append(RETIREMENT_GAP_MICROS);
+		}
+		
+		sb.append(')');
 		
 		return sb.toString();
 	}
@@ -180,8 +427,9 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 	/**
 	 * Compare the given HmmVoiceSplittingModelParameters to this one and return their difference.
 	 * They are ordered first by their {@link #BEAM_SIZE}, followed by their {@link #MIN_GAP_SCORE},
-	 * {@link #PITCH_STD}, {@link #GAP_STD_MICROS}, {@link #NEW_VOICE_PROBABILITY}, and
-	 * {@link #PITCH_HISTORY_LENGTH} respectively.
+	 * {@link #PITCH_STD}, {@link #GAP_STD_MICROS}, {@link #NEW_VOICE_PROBABILITY},
+	 * {@link #PITCH_HISTORY_LENGTH}, {@link #BEAM_MARGIN}, {@link #MIN_BEAM_SIZE}, {@link #PITCH_WINDOW},
+	 * {@link #RETIREMENT_GAP_MICROS}, and {@link #EXACT_CHORDS} respectively.
 	 * 
 	 * @param o The HmmVoiceSplittingModelParameters we are comparing to.
 	 * @return A positive number if this HmmVoiceSplittingModelParameters should come first, negative
@@ -218,6 +466,31 @@ public class HmmVoiceSplittingModelParameters implements Comparable<HmmVoiceSpli
 			return result;
 		}
 		
-		return Integer.compare(PITCH_HISTORY_LENGTH, o.PITCH_HISTORY_LENGTH);
+		result = Integer.compare(PITCH_HISTORY_LENGTH, o.PITCH_HISTORY_LENGTH);
+		if (result != 0) {
+			return result;
+		}
+		
+		result = Double.compare(BEAM_MARGIN, o.BEAM_MARGIN);
+		if (result != 0) {
+			return result;
+		}
+		
+		result = Integer.compare(MIN_BEAM_SIZE, o.MIN_BEAM_SIZE);
+		if (result != 0) {
+			return result;
+		}
+		
+		result = Double.compare(PITCH_WINDOW, o.PITCH_WINDOW);
+		if (result != 0) {
+			return result;
+		}
+		
+		result = Double.compare(RETIREMENT_GAP_MICROS, o.RETIREMENT_GAP_MICROS);
+		if (result != 0) {
+			return result;
+		}
+		
+		return Boolean.compare(EXACT_CHORDS, o.EXACT_CHORDS);
 	}
 }
@@ -0,0 +1,429 @@
+package voicesplitting.voice.hmm;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelPitchIndex</code> orders the {@link Voice}s of a single
+ * {@link HmmVoiceSplittingModelState} by their weighted pitch (see
+ * {@link Voice#getWeightedLastPitch(HmmVoiceSplittingModelParameters)}), so that the Voices within
+ * a range of pitches can be found by binary search.
+ * <p>
+ * It is used to apply the {@link HmmVoiceSplittingModelParameters#PITCH_WINDOW}: only the Voices in
+ * the window around an incoming note's pitch are candidates for that note.
+ * <p>
+ * Each state keeps its own index. A state's index is derived from the index of the state it came from,
+ * along with the changes which were made to that state's List of Voices (see
+ * {@link #HmmVoiceSplittingModelPitchIndex(HmmVoiceSplittingModelPitchIndex, int[], Voice[], boolean[], int)}).
+ * It is only built the first time it is queried, by merging the changed Voices into the previous index
+ * in a single pass, so the Voices are never sorted again. It must not be queried from more than one thread
+ * at once before then.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelPitchIndex {
+
+	/**
+	 * The weighted pitch of each Voice, in increasing order, or null if this index has not been built yet.
+	 */
+	private double[] pitches;
+
+	/**
+	 * The index, in the state's List of Voices, of the Voice with each of the {@link #pitches}.
+	 * Voices with equal pitches are ordered by this index.
+	 */
+	private int[] voices;
+
+	/**
+	 * The index from which this one is derived, or null once this index has been built.
+	 */
+	private HmmVoiceSplittingModelPitchIndex previous;
+
+	/**
+	 * The index in the List of Voices of each change made to the {@link #previous} index's List, in order.
+	 * Each index is into the List as it is after all of the earlier changes.
+	 */
+	private int[] changePositions;
+
+	/**
+	 * The Voice placed into the List by each change, or null if the change removed the Voice there.
+	 */
+	private Voice[] changeVoices;
+
+	/**
+	 * Whether each change inserted its Voice (true) or replaced or removed the one there (false).
+	 */
+	private boolean[] changeInserts;
+
+	/**
+	 * The parameters we are using.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * Create a new index of the given Voices, in time O(n log n).
+	 *
+	 * @param voices The Voices to index.
+	 * @param params {@link #params}
+	 */
+	public HmmVoiceSplittingModelPitchIndex(List<Voice> voices, HmmVoiceSplittingModelParameters params) {
+		this.params = params;
+
+		final double[] voicePitches = new double[voices.size()];
+		Integer[] order = new Integer[voices.size()];
+
+		int i = 0;
+		for (Voice voice : voices) {
+			voicePitches[i] = voice.getWeightedLastPitch(params);
+			order[i] = i;
+			i++;
+		}
+
+		// The sort is stable, so equal pitches stay in List order
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Double.compare(voicePitches[o1], voicePitches[o2]);
+			}
+		});
+
+		pitches = new double[order.length];
+		this.voices = new int[order.length];
+		for (int rank = 0; rank < order.length; rank++) {
+			pitches[rank] = voicePitches[order[rank]];
+			this.voices[rank] = order[rank];
+		}
+	}
+
+	/**
+	 * Create a new index of the List of Voices made by applying the given changes, in order, to the List
+	 * indexed by the given index, which is built now if it has not been yet. This index is only built when
+	 * it is first queried.
+	 *
+	 * @param previous {@link #previous}
+	 * @param changePositions {@link #changePositions}
+	 * @param changeVoices {@link #changeVoices}
+	 * @param changeInserts {@link #changeInserts}
+	 * @param numChanges The number of changes to use from the given arrays.
+	 */
+	public HmmVoiceSplittingModelPitchIndex(HmmVoiceSplittingModelPitchIndex previous, int[] changePositions, Voice[] changeVoices,
+			boolean[] changeInserts, int numChanges) {
+		// Every index derived from the previous one can then be built from a different thread
+		previous.build();
+
+		this.previous = previous;
+		this.changePositions = Arrays.copyOf(changePositions, numChanges);
+		this.changeVoices = Arrays.copyOf(changeVoices, numChanges);
+		this.changeInserts = Arrays.copyOf(changeInserts, numChanges);
+		params = previous.params;
+	}
+
+	/**
+	 * Build this index from the {@link #previous} one, if that has not been done yet. This takes time
+	 * linear in the number of Voices, plus quadratic in the number of changes.
+	 * <p>
+	 * The changes are first replayed on only the changed Voices, to find which of the previous index's
+	 * Voices were removed (or replaced), and where each added Voice ends up. The remaining Voices keep their
+	 * order, so the new index is a merge of the previous one with the added Voices, sorted by pitch.
+	 */
+	private void build() {
+		if (pitches != null) {
+			return;
+		}
+
+		int[] previousVoices = previous.getVoices();
+		double[] previousPitches = previous.pitches;
+		int numChanges = changePositions.length;
+
+		// The current position and Voice of each added Voice, and the previous position of each removed one
+		int[] addedPositions = new int[numChanges];
+		Voice[] addedVoices = new Voice[numChanges];
+		int numAdded = 0;
+		int[] removed = new int[numChanges];
+		int numRemoved = 0;
+
+		for (int change = 0; change < numChanges; change++) {
+			int position = changePositions[change];
+
+			if (changeInserts[change]) {
+				shiftPositions(addedPositions, numAdded, position, 1);
+				addedPositions[numAdded] = position;
+				addedVoices[numAdded++] = changeVoices[change];
+				continue;
+			}
+
+			int added = indexOf(addedPositions, numAdded, position);
+			if (added == -1) {
+				// The Voice there is from the previous List
+				numRemoved = insertSorted(removed, numRemoved, getPreviousPosition(position, addedPositions, numAdded, removed, numRemoved));
+
+				if (changeVoices[change] != null) {
+					addedPositions[numAdded] = position;
+					addedVoices[numAdded++] = changeVoices[change];
+
+				} else {
+					shiftPositions(addedPositions, numAdded, position, -1);
+				}
+
+			} else if (changeVoices[change] != null) {
+				addedVoices[added] = changeVoices[change];
+
+			} else {
+				numAdded--;
+				addedPositions[added] = addedPositions[numAdded];
+				addedVoices[added] = addedVoices[numAdded];
+				shiftPositions(addedPositions, numAdded, position, -1);
+			}
+		}
+
+		// The added Voices, ordered by pitch and then position, to be merged in
+		double[] addedPitches = new double[numAdded];
+		for (int i = 0; i < numAdded; i++) {
+			double pitch = addedVoices[i].getWeightedLastPitch(params);
+			int position = addedPositions[i];
+
+			int j = i;
+			for (; j > 0 && (addedPitches[j - 1] > pitch || (addedPitches[j - 1] == pitch && addedPositions[j - 1] > position)); j--) {
+				addedPitches[j] = addedPitches[j - 1];
+				addedPositions[j] = addedPositions[j - 1];
+			}
+
+			addedPitches[j] = pitch;
+			addedPositions[j] = position;
+		}
+
+		int[] newPositions = getNewPositions(previousVoices.length, addedPositions, numAdded, removed, numRemoved);
+
+		pitches = new double[previousVoices.length - numRemoved + numAdded];
+		voices = new int[pitches.length];
+
+		int rank = 0;
+		int added = 0;
+		for (int previousRank = 0; previousRank < previousVoices.length; previousRank++) {
+			int position = newPositions[previousVoices[previousRank]];
+			if (position == -1) {
+				continue;
+			}
+
+			double pitch = previousPitches[previousRank];
+			for (; added < numAdded && (addedPitches[added] < pitch || (addedPitches[added] == pitch && addedPositions[added] < position)); added++) {
+				pitches[rank] = addedPitches[added];
+				voices[rank++] = addedPositions[added];
+			}
+
+			pitches[rank] = pitch;
+			voices[rank++] = position;
+		}
+
+		for (; added < numAdded; added++) {
+			pitches[rank] = addedPitches[added];
+			voices[rank++] = addedPositions[added];
+		}
+
+		previous = null;
+		changePositions = null;
+		changeVoices = null;
+		changeInserts = null;
+	}
+
+	/**
+	 * Get the position in the previous List of the Voice which is at the given position in the current List.
+	 * That Voice must be one from the previous List.
+	 *
+	 * @param position The position in the current List.
+	 * @param addedPositions The current positions of the Voices added so far.
+	 * @param numAdded The number of Voices added so far.
+	 * @param removed The previous positions of the Voices removed so far, in increasing order.
+	 * @param numRemoved The number of Voices removed so far.
+	 * @return The position of the Voice in the previous List.
+	 */
+	private static int getPreviousPosition(int position, int[] addedPositions, int numAdded, int[] removed, int numRemoved) {
+		int previousPosition = position;
+		for (int i = 0; i < numAdded; i++) {
+			if (addedPositions[i] < position) {
+				previousPosition--;
+			}
+		}
+
+		for (int i = 0; i < numRemoved && removed[i] <= previousPosition; i++) {
+			previousPosition++;
+		}
+
+		return previousPosition;
+	}
+
+	/**
+	 * Get the position in the new List of each Voice of the previous List.
+	 *
+	 * @param numPrevious The number of Voices in the previous List.
+	 * @param addedPositions The positions of the added Voices in the new List.
+	 * @param numAdded The number of added Voices.
+	 * @param removed The positions of the removed Voices in the previous List, in increasing order.
+	 * @param numRemoved The number of removed Voices.
+	 * @return The position in the new List of each Voice of the previous List, or -1 for those which were removed.
+	 */
+	private static int[] getNewPositions(int numPrevious, int[] addedPositions, int numAdded, int[] removed, int numRemoved) {
+		int[] added = Arrays.copyOf(addedPositions, numAdded);
+		Arrays.sort(added);
+
+		int[] newPositions = new int[numPrevious];
+		int nextAdded = 0;
+		int nextRemoved = 0;
+		int position = 0;
+
+		for (int previousPosition = 0; previousPosition < numPrevious; previousPosition++) {
+			if (nextRemoved < numRemoved && removed[nextRemoved] == previousPosition) {
+				newPositions[previousPosition] = -1;
+				nextRemoved++;
+				continue;
+			}
+
+			for (; nextAdded < numAdded && added[nextAdded] == position; nextAdded++) {
+				position++;
+			}
+
+			newPositions[previousPosition] = position++;
+		}
+
+		return newPositions;
+	}
+
+	/**
+	 * Add the given amount to each of the given positions which is at least the given one.
+	 *
+	 * @param positions The positions.
+	 * @param size The number of positions to use.
+	 * @param from The lowest position to shift. When shifting down, the given position itself is not shifted.
+	 * @param shift The amount to add, 1 or -1.
+	 */
+	private static void shiftPositions(int[] positions, int size, int from, int shift) {
+		for (int i = 0; i < size; i++) {
+			if (positions[i] > from || (positions[i] == from && shift > 0)) {
+				positions[i] += shift;
+			}
+		}
+	}
+
+	/**
+	 * Find the given value in the given array.
+	 *
+	 * @param values The array.
+	 * @param size The number of values to search.
+	 * @param value The value to find.
+	 * @return The index of the value, or -1 if it is not there.
+	 */
+	private static int indexOf(int[] values, int size, int value) {
+		for (int i = 0; i < size; i++) {
+			if (values[i] == value) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Insert the given value into the given sorted array.
+	 *
+	 * @param values The array, which must have room for one more value.
+	 * @param size The number of values in the array.
+	 * @param value The value to insert.
+	 * @return The new number of values in the array.
+	 */
+	private static int insertSorted(int[] values, int size, int value) {
+		int i = size;
+		for (; i > 0 && values[i - 1] > value; i--) {
+			values[i] = values[i - 1];
+		}
+
+		values[i] = value;
+		return size + 1;
+	}
+
+	/**
+	 * Get the rank of the first Voice whose weighted pitch is at least the given one.
+	 *
+	 * @param pitch The lowest pitch of the range.
+	 * @return The rank of the first Voice in the range, or {@link #size()} if there is none.
+	 */
+	public int getFirst(double pitch) {
+		build();
+
+		int low = 0;
+		int high = pitches.length;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (pitches[middle] < pitch) {
+				low = middle + 1;
+
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Get the rank after that of the last Voice whose weighted pitch is at most the given one.
+	 *
+	 * @param pitch The highest pitch of the range.
+	 * @return The rank after the last Voice in the range, or 0 if there is none.
+	 */
+	public int getEnd(double pitch) {
+		build();
+
+		int low = 0;
+		int high = pitches.length;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+
+			if (pitches[middle] <= pitch) {
+				low = middle + 1;
+
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/**
+	 * Get the Voice with the given rank.
+	 *
+	 * @param rank The rank of the Voice, in increasing order of weighted pitch.
+	 * @return The index of that Voice in the state's List of Voices.
+	 */
+	public int getVoice(int rank) {
+		build();
+		return voices[rank];
+	}
+
+	/**
+	 * Get the index in the state's List of Voices of each Voice, in increasing order of weighted pitch.
+	 *
+	 * @return {@link #voices}
+	 */
+	private int[] getVoices() {
+		build();
+		return voices;
+	}
+
+	/**
+	 * Get the number of Voices in this index.
+	 *
+	 * @return The number of Voices in this index.
+	 */
+	public int size() {
+		build();
+		return voices.length;
+	}
+}
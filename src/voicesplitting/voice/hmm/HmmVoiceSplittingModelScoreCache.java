@@ -0,0 +1,231 @@
+package voicesplitting.voice.hmm;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelScoreCache</code> stores the scoring work done for the
+ * {@link Voice}s of an {@link HmmVoiceSplittingModel}'s hypothesis states on a single onset.
+ * <p>
+ * Voices are immutable, and most of them are shared between many hypothesis states. So, for each
+ * Voice (by identity), the first time it is seen we calculate, for every incoming note, whether
+ * the note can be added to it and if so, the log probability of that transition. Any other state
+ * holding the same Voice can then reuse these values.
+ * <p>
+ * The scores are calculated by an {@link HmmVoiceSplittingModelScoreKernel}. {@link #getScores(List)}
+ * looks up all of a state's Voices at once, and scores those which are not yet cached in a single batch.
+ * <p>
+ * A new cache should be created for each List of incoming notes. It is safe to use from multiple
+ * threads at once.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelScoreCache {
+
+	/**
+	 * The incoming notes whose scores this cache holds.
+	 */
+	private final List<MidiNote> incoming;
+
+	/**
+	 * The parameters we are using.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * The scorer compiled from {@link #params}.
+	 */
+	private final HmmVoiceSplittingModelScorer scorer;
+
+	/**
+	 * The kernel which calculates the scores of the {@link #incoming} notes.
+	 */
+	private final HmmVoiceSplittingModelScoreKernel kernel;
+
+	/**
+	 * A Map containing the cached values of each Voice we have seen so far. For each Voice, the value
+	 * at index i is the log probability of adding the ith incoming note into it, or {@link Double#NaN}
+	 * if that note cannot be added to it (as decided by
+	 * {@link Voice#canAddNoteAtTime(long, long, HmmVoiceSplittingModelParameters)}).
+	 * <p>
+	 * Voice does not override equals, so this is keyed on identity.
+	 */
+	private final Map<Voice, double[]> cache;
+
+	/**
+	 * The number of lookups whose Voice was already in the cache.
+	 */
+	private final LongAdder hits;
+
+	/**
+	 * The number of lookups whose Voice had to be scored and added to the cache.
+	 */
+	private final LongAdder misses;
+
+	/**
+	 * Create a new empty cache for the given incoming notes.
+	 *
+	 * @param incoming {@link #incoming}
+	 * @param params {@link #params}
+	 */
+	public HmmVoiceSplittingModelScoreCache(List<MidiNote> incoming, HmmVoiceSplittingModelParameters params) {
+		this.incoming = incoming;
+		this.params = params;
+		scorer = params.getScorer();
+		kernel = new HmmVoiceSplittingModelScoreKernel(incoming, params);
+
+		cache = new ConcurrentHashMap<Voice, double[]>();
+		hits = new LongAdder();
+		misses = new LongAdder();
+	}
+
+	/**
+	 * Decide whether the incoming note at the given index can be added into the given Voice.
+	 *
+	 * @param voice The Voice we want to check.
+	 * @param noteIndex The index of the incoming note.
+	 * @return True if the note can be added into the Voice. False otherwise.
+	 */
+	public boolean isOpen(Voice voice, int noteIndex) {
+		return !Double.isNaN(getScores(voice)[noteIndex]);
+	}
+
+	/**
+	 * Get the log of {@link Voice#getProbability(MidiNote, HmmVoiceSplittingModelParameters)} for the
+	 * given Voice and incoming note, as calculated by {@link HmmVoiceSplittingModelScorer#getLogProbability(Voice, MidiNote, HmmVoiceSplittingModelParameters)}.
+	 *
+	 * @param voice The Voice we want to add the note into.
+	 * @param noteIndex The index of the incoming note.
+	 * @return The log probability of the given note belonging to the given Voice.
+	 */
+	public double getLogProbability(Voice voice, int noteIndex) {
+		double logProb = getScores(voice)[noteIndex];
+
+		if (Double.isNaN(logProb)) {
+			// Not an open voice, so it wasn't cached
+			logProb = scorer.getLogProbability(voice, incoming.get(noteIndex), params);
+		}
+
+		return logProb;
+	}
+
+	/**
+	 * Get the cached values of the given Voice, calculating them if they have not been yet.
+	 *
+	 * @param voice The Voice whose values we want.
+	 * @return The cached values of the given Voice, as described in {@link #cache}.
+	 */
+	private double[] getScores(Voice voice) {
+		double[] scores = cache.get(voice);
+
+		if (scores != null) {
+			hits.increment();
+			return scores;
+		}
+
+		misses.increment();
+		scores = kernel.score(new Voice[] { voice }, 1);
+
+		// If another thread has just done the same, its values are identical
+		cache.put(voice, scores);
+		return scores;
+	}
+
+	/**
+	 * Get the cached values of each of the given Voices, calculating those which have not been yet
+	 * in a single batch.
+	 *
+	 * @param voices The Voices whose values we want, which must be distinct.
+	 * @return The cached values of each of the given Voices, as described in {@link #cache}, one after
+	 * another in a single array. That is, the value at index (v * n + note), where n is the number of
+	 * incoming notes, is the value of that note for the vth Voice.
+	 */
+	public double[] getScores(List<Voice> voices) {
+		int numNotes = incoming.size();
+		double[] scores = new double[voices.size() * numNotes];
+		Voice[] missing = new Voice[voices.size()];
+		int[] missingIndices = new int[voices.size()];
+		int numMissing = 0;
+
+		for (int i = 0; i < voices.size(); i++) {
+			double[] cached = cache.get(voices.get(i));
+
+			if (cached == null) {
+				missingIndices[numMissing] = i;
+				missing[numMissing++] = voices.get(i);
+
+			} else {
+				System.arraycopy(cached, 0, scores, i * numNotes, numNotes);
+			}
+		}
+
+		hits.add(voices.size() - numMissing);
+		if (numMissing == 0) {
+			return scores;
+		}
+
+		misses.add(numMissing);
+		double[] missingScores = kernel.score(missing, numMissing);
+
+		for (int j = 0; j < numMissing; j++) {
+			System.arraycopy(missingScores, j * numNotes, scores, missingIndices[j] * numNotes, numNotes);
+
+			// If another thread has just done the same, its values are identical
+			cache.put(missing[j], Arrays.copyOfRange(missingScores, j * numNotes, (j + 1) * numNotes));
+		}
+
+		return scores;
+	}
+
+	/**
+	 * Get the incoming notes whose scores this cache holds.
+	 *
+	 * @return {@link #incoming}
+	 */
+	public List<MidiNote> getIncoming() {
+		return incoming;
+	}
+
+	/**
+	 * Get the scorer used by this cache.
+	 *
+	 * @return {@link #scorer}
+	 */
+	public HmmVoiceSplittingModelScorer getScorer() {
+		return scorer;
+	}
+
+	/**
+	 * Get the parameters used by this cache.
+	 *
+	 * @return {@link #params}
+	 */
+	public HmmVoiceSplittingModelParameters getParams() {
+		return params;
+	}
+
+	/**
+	 * Get the number of lookups so far whose Voice was already in this cache.
+	 *
+	 * @return The number of cache hits.
+	 */
+	public long getNumHits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of lookups so far whose Voice had to be scored.
+	 *
+	 * @return The number of cache misses.
+	 */
+	public long getNumMisses() {
+		return misses.sum();
+	}
+}
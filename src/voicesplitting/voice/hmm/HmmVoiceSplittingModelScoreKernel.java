@@ -0,0 +1,106 @@
+package voicesplitting.voice.hmm;
+
+import java.util.List;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelScoreKernel</code> calculates the transition log probabilities of
+ * every incoming note of a single onset into every one of a batch of {@link Voice}s at once.
+ * <p>
+ * The incoming notes' pitches and durations are read once, when the kernel is created. Then, since all of
+ * the incoming notes share the same onset time, each Voice's weighted pitch, gap score, and overlap are
+ * only calculated once, rather than once per note, and only the pitch score is calculated for each note.
+ * The scores are returned in a single flat array, one Voice's row after another, so that each row is
+ * written contiguously and the whole batch is a single allocation.
+ * <p>
+ * The results are identical to those of
+ * {@link HmmVoiceSplittingModelScorer#getLogProbability(Voice, MidiNote, HmmVoiceSplittingModelParameters)}
+ * and {@link Voice#canAddNoteAtTime(long, long, HmmVoiceSplittingModelParameters)}. A kernel is
+ * immutable, and can be shared by any number of threads.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelScoreKernel {
+
+	/**
+	 * The onset time of the incoming notes.
+	 */
+	private final long onsetTime;
+
+	/**
+	 * The pitch of each incoming note.
+	 */
+	private final int[] pitches;
+
+	/**
+	 * The duration of each incoming note, in microseconds.
+	 */
+	private final long[] durations;
+
+	/**
+	 * The parameters we are using.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * The scorer compiled from {@link #params}.
+	 */
+	private final HmmVoiceSplittingModelScorer scorer;
+
+	/**
+	 * Create a new kernel for the given incoming notes, which must all have the same onset time.
+	 *
+	 * @param incoming The incoming notes.
+	 * @param params {@link #params}
+	 */
+	public HmmVoiceSplittingModelScoreKernel(List<MidiNote> incoming, HmmVoiceSplittingModelParameters params) {
+		this.params = params;
+		scorer = params.getScorer();
+		onsetTime = incoming.isEmpty() ? 0L : incoming.get(0).getOnsetTime();
+
+		pitches = new int[incoming.size()];
+		durations = new long[incoming.size()];
+		for (int i = 0; i < pitches.length; i++) {
+			pitches[i] = incoming.get(i).getPitch();
+			durations[i] = incoming.get(i).getDurationTime();
+		}
+	}
+
+	/**
+	 * Calculate the scores of the incoming notes in each of the given Voices.
+	 *
+	 * @param voices The Voices to score. Only the first numVoices are used.
+	 * @param numVoices The number of Voices to score.
+	 * @return The scores, in Voice-major order: the value at index (v * n + note), where n is the number
+	 * of incoming notes, is the log probability of adding that note into the vth Voice, or
+	 * {@link Double#NaN} if the note cannot be added to it.
+	 */
+	public double[] score(Voice[] voices, int numVoices) {
+		double[] scores = new double[numVoices * pitches.length];
+
+		for (int v = 0, base = 0; v < numVoices; v++, base += pitches.length) {
+			MidiNote last = voices[v].getMostRecentNote();
+
+			// As in Voice.canAddNoteAtTime, but shared by every note
+			long overlap = last.getOffsetTime() - onsetTime;
+			boolean overlapFits = overlap <= last.getDurationTime() / 2;
+
+			double weightedPitch = voices[v].getWeightedLastPitch(params);
+			double gapScore = scorer.getLogGapScore(onsetTime, last.getOffsetTime());
+
+			for (int note = 0; note < pitches.length; note++) {
+				if (overlapFits && overlap < durations[note]) {
+					scores[base + note] = scorer.getLogPitchScore(weightedPitch, pitches[note]) + gapScore;
+
+				} else {
+					scores[base + note] = Double.NaN;
+				}
+			}
+		}
+
+		return scores;
+	}
+}
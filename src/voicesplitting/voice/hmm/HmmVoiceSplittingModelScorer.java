@@ -0,0 +1,213 @@
+package voicesplitting.voice.hmm;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelScorer</code> calculates the log probabilities used by an
+ * {@link HmmVoiceSplittingModel}, compiled from a single {@link HmmVoiceSplittingModelParameters}
+ * object. It should be retrieved with {@link HmmVoiceSplittingModelParameters#getScorer()}, so that
+ * only one is ever built for each set of parameters.
+ * <p>
+ * All of the scores are calculated directly in the log domain:
+ * <ul>
+ * <li>The logs of the constant probabilities (for a new voice and for a voice ordering penalty)
+ * are precomputed.</li>
+ * <li>The log of the Gaussian pitch score from {@link voicesplitting.utils.MathUtils#gaussianWindow(double, double, double)}
+ * is simply its exponent, so no <code>exp</code> or <code>log</code> is needed.</li>
+ * <li>The log of the gap score is read from a table of {@link #GAP_TABLE_SIZE} values with linear
+ * interpolation. The table only covers the gaps where the score's curvature is low, so this
+ * is accurate to well within 1E-7. Longer gaps are calculated exactly, and any gap whose score
+ * is {@link HmmVoiceSplittingModelParameters#MIN_GAP_SCORE} returns a constant.</li>
+ * </ul>
+ * A scorer is immutable, and can be shared by any number of threads.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelScorer {
+
+	/**
+	 * The number of values in the gap score table.
+	 */
+	public static final int GAP_TABLE_SIZE = 8192;
+
+	/**
+	 * The lowest gap score (before the log is taken) which is covered by the gap score table.
+	 * Below this, the log's curvature is too high for linear interpolation.
+	 */
+	private static final double GAP_TABLE_MIN_SCORE = 0.25;
+
+	/**
+	 * The log of {@link HmmVoiceSplittingModelParameters#NEW_VOICE_PROBABILITY}.
+	 */
+	private final double logNewVoiceProbability;
+
+	/**
+	 * The log probability penalty for a note being added out of pitch order with a neighbouring voice.
+	 * This is the log of 1/2.
+	 */
+	private final double logOrderPenalty;
+
+	/**
+	 * {@link HmmVoiceSplittingModelParameters#PITCH_STD}.
+	 */
+	private final double pitchStd;
+
+	/**
+	 * {@link HmmVoiceSplittingModelParameters#GAP_STD_MICROS}.
+	 */
+	private final double gapStdMicros;
+
+	/**
+	 * {@link HmmVoiceSplittingModelParameters#MIN_GAP_SCORE}.
+	 */
+	private final double minGapScore;
+
+	/**
+	 * The log of {@link HmmVoiceSplittingModelParameters#MIN_GAP_SCORE}.
+	 */
+	private final double logMinGapScore;
+
+	/**
+	 * The gap length (in microseconds) at and beyond which the gap score is always
+	 * {@link HmmVoiceSplittingModelParameters#MIN_GAP_SCORE}.
+	 */
+	private final double minGapScoreGap;
+
+	/**
+	 * The longest gap (in microseconds) covered by {@link #gapTable}.
+	 */
+	private final double gapTableLimit;
+
+	/**
+	 * The gap length (in microseconds) between consecutive values of {@link #gapTable}.
+	 */
+	private final double gapTableStep;
+
+	/**
+	 * The log gap scores of gaps evenly spaced between 0 and {@link #gapTableLimit}, inclusive.
+	 */
+	private final double[] gapTable;
+
+	/**
+	 * Compile a new scorer from the given parameters. This should only be called by
+	 * {@link HmmVoiceSplittingModelParameters#getScorer()}.
+	 *
+	 * @param params The parameters to compile.
+	 */
+	HmmVoiceSplittingModelScorer(HmmVoiceSplittingModelParameters params) {
+		logNewVoiceProbability = Math.log(params.NEW_VOICE_PROBABILITY);
+		logOrderPenalty = Math.log(2);
+
+		pitchStd = params.PITCH_STD;
+		gapStdMicros = params.GAP_STD_MICROS;
+		minGapScore = params.MIN_GAP_SCORE;
+		logMinGapScore = Math.log(minGapScore);
+
+		// log(1 - gap / std) + 1 = score  <=>  gap = std * (1 - e ^ (score - 1))
+		minGapScoreGap = gapStdMicros > 0 ? Math.max(0, gapStdMicros * (1 - Math.exp(minGapScore - 1))) : 0;
+		double tableLimit = gapStdMicros > 0 ? gapStdMicros * (1 - Math.exp(GAP_TABLE_MIN_SCORE - 1)) : 0;
+		gapTableLimit = Math.min(tableLimit, minGapScoreGap);
+
+		gapTable = new double[gapTableLimit > 0 ? GAP_TABLE_SIZE : 0];
+		gapTableStep = gapTableLimit / (GAP_TABLE_SIZE - 1);
+
+		for (int i = 0; i < gapTable.length; i++) {
+			gapTable[i] = calculateLogGapScore(i * gapTableStep);
+		}
+	}
+
+	/**
+	 * Get the log probability of the given note belonging to the given Voice. This is the log of
+	 * {@link Voice#getProbability(MidiNote, HmmVoiceSplittingModelParameters)}.
+	 *
+	 * @param voice The Voice we want to add the note into.
+	 * @param note The note we want to add.
+	 * @param params The parameters this scorer was compiled from.
+	 * @return The log probability of the given note belonging to the given Voice.
+	 */
+	public double getLogProbability(Voice voice, MidiNote note, HmmVoiceSplittingModelParameters params) {
+		double pitch = getLogPitchScore(voice.getWeightedLastPitch(params), note.getPitch());
+		double gap = getLogGapScore(note.getOnsetTime(), voice.getMostRecentNote().getOffsetTime());
+		return pitch + gap;
+	}
+
+	/**
+	 * Get the log of the pitch score of the two given pitches. That is, the log of the Gaussian window
+	 * used in {@link Voice#getProbability(MidiNote, HmmVoiceSplittingModelParameters)}.
+	 *
+	 * @param weightedPitch A weighted pitch, drawn from {@link Voice#getWeightedLastPitch(HmmVoiceSplittingModelParameters)}.
+	 * @param pitch An exact pitch.
+	 * @return The log pitch score of the given two pitches, a value of at most 0.
+	 */
+	public double getLogPitchScore(double weightedPitch, int pitch) {
+		double fraction = (pitch - weightedPitch) / pitchStd;
+		return -(fraction * fraction) / 2.0;
+	}
+
+	/**
+	 * Get the log of the gap score of the two given times, as used in
+	 * {@link Voice#getProbability(MidiNote, HmmVoiceSplittingModelParameters)}.
+	 *
+	 * @param time1 A time.
+	 * @param time2 Another time.
+	 * @return The log gap score of the two given time values, a value of at most 0.
+	 */
+	public double getLogGapScore(long time1, long time2) {
+		double timeDiff = Math.abs(time2 - time1);
+
+		if (timeDiff >= minGapScoreGap) {
+			return logMinGapScore;
+		}
+
+		if (timeDiff < gapTableLimit) {
+			double position = timeDiff / gapTableStep;
+			int index = (int) position;
+			double fraction = position - index;
+
+			return fraction == 0.0 ? gapTable[index] : gapTable[index] + fraction * (gapTable[index + 1] - gapTable[index]);
+		}
+
+		return calculateLogGapScore(timeDiff);
+	}
+
+	/**
+	 * Calculate the log gap score of the given gap exactly, without using {@link #gapTable}.
+	 *
+	 * @param timeDiff The length of the gap, in microseconds.
+	 * @return The log gap score of the given gap.
+	 */
+	private double calculateLogGapScore(double timeDiff) {
+		double inside = Math.max(0, -timeDiff / gapStdMicros + 1);
+		double log = Math.log(inside) + 1;
+		return Math.log(Math.max(log, minGapScore));
+	}
+
+	/**
+	 * Get the gap length at and beyond which the gap score is always {@link HmmVoiceSplittingModelParameters#MIN_GAP_SCORE}.
+	 *
+	 * @return {@link #minGapScoreGap}, in microseconds.
+	 */
+	public double getMinGapScoreGap() {
+		return minGapScoreGap;
+	}
+
+	/**
+	 * Get the log of {@link HmmVoiceSplittingModelParameters#NEW_VOICE_PROBABILITY}.
+	 *
+	 * @return {@link #logNewVoiceProbability}
+	 */
+	public double getLogNewVoiceProbability() {
+		return logNewVoiceProbability;
+	}
+
+	/**
+	 * Get the log probability penalty for adding a note out of pitch order with a neighbouring voice.
+	 *
+	 * @return {@link #logOrderPenalty}
+	 */
+	public double getLogOrderPenalty() {
+		return logOrderPenalty;
+	}
+}
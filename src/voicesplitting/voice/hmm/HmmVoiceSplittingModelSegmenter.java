@@ -0,0 +1,258 @@
+package voicesplitting.voice.hmm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelSegmenter</code> splits a song into segments at its long silences,
+ * runs a separate {@link HmmVoiceSplittingModel} on each segment in parallel, and then stitches the
+ * resulting voices back together.
+ * <p>
+ * A song is split before an onset group when no note is sounding and the silence before it is at least
+ * {@link HmmVoiceSplittingModelScorer#getMinGapScoreGap()} long. Every Voice then has the minimum gap score
+ * for that group's notes, so the only link from the past into the new segment is the pitch of each Voice.
+ * <p>
+ * The voices of each segment are joined to those of the segments before it by pitch proximity: the
+ * first note of each new voice is either appended to an existing voice or begins a new one, using the
+ * model's own transition scores, and the most likely such assignment is found with the Hungarian method
+ * (see {@link HmmVoiceSplittingModelChordAssignment}). The result is usually, but not always, the same
+ * as that of running a single model over the whole song.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelSegmenter {
+
+	/**
+	 * The parameters to use.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * Whether each segment's model should expand its hypotheses in parallel.
+	 */
+	private final boolean parallel;
+
+	/**
+	 * Whether each segment's model should recombine equivalent hypotheses.
+	 */
+	private final boolean recombine;
+
+	/**
+	 * Whether each segment's model should store its Voices in a {@link voicesplitting.voice.VoiceArena}.
+	 */
+	private final boolean useArena;
+
+	/**
+	 * The number of segments run at once.
+	 */
+	private final int numThreads;
+
+	/**
+	 * The number of segments found by the most recent call to {@link #run(List)}.
+	 */
+	private int numSegments;
+
+	/**
+	 * Create a new segmenter.
+	 *
+	 * @param params {@link #params}
+	 * @param parallel {@link #parallel}
+	 * @param recombine {@link #recombine}
+	 * @param useArena {@link #useArena}
+	 * @param numThreads {@link #numThreads}
+	 */
+	public HmmVoiceSplittingModelSegmenter(HmmVoiceSplittingModelParameters params, boolean parallel, boolean recombine,
+			boolean useArena, int numThreads) {
+		this.params = params;
+		this.parallel = parallel;
+		this.recombine = recombine;
+		this.useArena = useArena;
+		this.numThreads = numThreads;
+		numSegments = 0;
+	}
+
+	/**
+	 * Split the given onset groups into segments at their long silences.
+	 *
+	 * @param incomingLists The onset groups of a song, in time order, as returned by
+	 * {@link voicesplitting.parsing.NoteListGenerator#getIncomingLists()}.
+	 * @param params The parameters to use.
+	 * @return The segments, each a List of consecutive onset groups.
+	 */
+	public static List<List<List<MidiNote>>> getSegments(List<List<MidiNote>> incomingLists, HmmVoiceSplittingModelParameters params) {
+		double minGap = params.getScorer().getMinGapScoreGap();
+
+		List<List<List<MidiNote>>> segments = new ArrayList<List<List<MidiNote>>>();
+		int start = 0;
+		long lastOffset = Long.MIN_VALUE;
+
+		for (int group = 0; group < incomingLists.size(); group++) {
+			List<MidiNote> incoming = incomingLists.get(group);
+
+			if (group != start && incoming.get(0).getOnsetTime() - lastOffset >= minGap) {
+				segments.add(incomingLists.subList(start, group));
+				start = group;
+			}
+
+			for (MidiNote note : incoming) {
+				lastOffset = Math.max(lastOffset, note.getOffsetTime());
+			}
+		}
+
+		if (start < incomingLists.size()) {
+			segments.add(incomingLists.subList(start, incomingLists.size()));
+		}
+
+		return segments;
+	}
+
+	/**
+	 * Split the given onset groups into segments, run a model on each of them in parallel, and stitch
+	 * together their resulting Voices.
+	 *
+	 * @param incomingLists The onset groups of a song, in time order, as returned by
+	 * {@link voicesplitting.parsing.NoteListGenerator#getIncomingLists()}.
+	 * @return The Voices of the whole song, or null if some segment's model found no result.
+	 * @throws InterruptedException If this is interrupted while waiting for the segments.
+	 * @throws ExecutionException If some segment's model throws an exception.
+	 */
+	public List<Voice> run(List<List<MidiNote>> incomingLists) throws InterruptedException, ExecutionException {
+		List<List<List<MidiNote>>> segments = getSegments(incomingLists, params);
+		numSegments = segments.size();
+
+		List<List<Voice>> results = runModels(segments, params, parallel, recombine, useArena, numThreads);
+
+		List<Voice> voices = new ArrayList<Voice>();
+		for (List<Voice> segmentVoices : results) {
+			if (segmentVoices == null) {
+				return null;
+			}
+
+			voices = stitch(voices, segmentVoices);
+		}
+
+		return voices;
+	}
+
+	/**
+	 * Run a separate {@link HmmVoiceSplittingModel} on each of the given parts of a song, in parallel.
+	 *
+	 * @param parts The parts, each a List of consecutive onset groups.
+	 * @param params The parameters to use.
+	 * @param parallel Whether each model should expand its hypotheses in parallel.
+	 * @param recombine Whether each model should recombine equivalent hypotheses.
+	 * @param useArena Whether each model should store its Voices in a {@link voicesplitting.voice.VoiceArena}.
+	 * @param numThreads The number of parts to run at once.
+	 * @return The Voices of the best hypothesis of each part's model, or null for a part whose model found no result.
+	 * @throws InterruptedException If this is interrupted while waiting for the models.
+	 * @throws ExecutionException If some model throws an exception.
+	 */
+	static List<List<Voice>> runModels(List<List<List<MidiNote>>> parts, final HmmVoiceSplittingModelParameters params,
+			final boolean parallel, final boolean recombine, final boolean useArena, int numThreads)
+			throws InterruptedException, ExecutionException {
+		List<Callable<List<Voice>>> callables = new ArrayList<Callable<List<Voice>>>(parts.size());
+		for (final List<List<MidiNote>> part : parts) {
+			callables.add(new Callable<List<Voice>>() {
+				@Override
+				public List<Voice> call() {
+					HmmVoiceSplittingModel model = new HmmVoiceSplittingModel(params, parallel, recombine, useArena);
+					for (List<MidiNote> incoming : part) {
+						model.handleIncoming(incoming);
+					}
+
+					return model.getHypotheses().isEmpty() ? null : model.getHypotheses().first().getVoices();
+				}
+			});
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, parts.size())));
+		List<Future<List<Voice>>> futures;
+		try {
+			futures = executor.invokeAll(callables);
+		} finally {
+			executor.shutdown();
+		}
+
+		List<List<Voice>> results = new ArrayList<List<Voice>>(futures.size());
+		for (Future<List<Voice>> future : futures) {
+			results.add(future.get());
+		}
+
+		return results;
+	}
+
+	/**
+	 * Join the Voices of a segment onto the Voices of all of the segments before it.
+	 *
+	 * @param voices The Voices of the segments so far.
+	 * @param next The Voices of the next segment, all of whose notes come after those of the given Voices.
+	 * @return The joined Voices. Those of the given Voices which are not continued come first, in the same
+	 * order, followed by the continued and new ones in the order of the next segment's Voices. These are
+	 * always rebuilt as Voices which store their own values, even if the segment's model used a
+	 * {@link voicesplitting.voice.VoiceArena}, so that they can be continued by later segments.
+	 */
+	private List<Voice> stitch(List<Voice> voices, List<Voice> next) {
+		HmmVoiceSplittingModelScorer scorer = params.getScorer();
+		double newVoiceCost = -scorer.getLogNewVoiceProbability();
+
+		// Rows are the next Voices, and columns the existing Voices followed by one new Voice for each row
+		double[][] costs = new double[next.size()][voices.size() + next.size()];
+		for (int row = 0; row < next.size(); row++) {
+			MidiNote first = next.get(row).getNotes().get(0);
+
+			for (int column = 0; column < voices.size(); column++) {
+				costs[row][column] = -scorer.getLogProbability(voices.get(column), first, params);
+			}
+			for (int column = voices.size(); column < costs[row].length; column++) {
+				costs[row][column] = newVoiceCost;
+			}
+		}
+
+		HmmVoiceSplittingModelChordAssignment assignment = voices.isEmpty() ? null : HmmVoiceSplittingModelChordAssignment.solve(costs);
+
+		boolean[] continued = new boolean[voices.size()];
+		List<Voice> joined = new ArrayList<Voice>(voices.size() + next.size());
+		for (int row = 0; row < next.size(); row++) {
+			int column = assignment == null ? voices.size() : assignment.getColumn(row);
+
+			Voice voice = null;
+			if (column < voices.size()) {
+				voice = voices.get(column);
+				continued[column] = true;
+			}
+
+			for (MidiNote note : next.get(row).getNotes()) {
+				voice = new Voice(note, voice, params);
+			}
+			joined.add(voice);
+		}
+
+		List<Voice> stitched = new ArrayList<Voice>(joined.size() + voices.size());
+		for (int i = 0; i < voices.size(); i++) {
+			if (!continued[i]) {
+				stitched.add(voices.get(i));
+			}
+		}
+		stitched.addAll(joined);
+
+		return stitched;
+	}
+
+	/**
+	 * Get the number of segments found by the most recent call to {@link #run(List)}.
+	 *
+	 * @return {@link #numSegments}
+	 */
+	public int getNumSegments() {
+		return numSegments;
+	}
+}
@@ -1,18 +1,30 @@
 package voicesplitting.voice.hmm;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.TreeSet;
 
+import voicesplitting.generic.Beam;
+import voicesplitting.generic.PersistentList;
 import voicesplitting.utils.MathUtils;
 import voicesplitting.utils.MidiNote;
 import voicesplitting.voice.Voice;
+import voicesplitting.voice.VoiceArena;
 import voicesplitting.voice.VoiceSplittingModelState;
+import voicesplitting.voice.VoiceTruncator;
 
 /**
  * An <code>HmmVoiceSplittingModelState</code> is used to store an {@link HmmVoiceSplittingModel}'s
  * current state. It contains a List of the {@link Voice}s which are currently present in the
  * model, as well as its cumulative probability so far.
+ * <p>
+ * If the parameters have a {@link HmmVoiceSplittingModelParameters#RETIREMENT_GAP_MICROS}, each Voice which
+ * has been silent for that long is retired before the state transitions: it is moved out of {@link #voices}
+ * into {@link #retired}, which is never scanned again. So, the cost of each transition depends only on the
+ * number of Voices still active, rather than on the length of the song so far. This changes the scores of
+ * later transitions: a retired Voice can no longer be continued, and it is left out of the pitch order of
+ * {@link #voices}, so no note is penalized for being out of order with it, and new Voices are placed among the
+ * active Voices only. Retired Voices still count towards {@link HmmVoiceSplittingModelTester#MAX_VOICES}.
  *
  * @author Andrew McLeod - 7 April, 2015
  * @version 1.0
@@ -21,9 +33,31 @@ import voicesplitting.voice.VoiceSplittingModelState;
 public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implements Comparable<HmmVoiceSplittingModelState> {
 
 	/**
-	 * A List of the Voices present in this state.
+	 * A List of the Voices present in this state. It is shared, in part, with the states which this
+	 * one transitions from and into.
 	 */
-	private List<Voice> voices;
+	private PersistentList<Voice> voices;
+
+	/**
+	 * The Voices of this state which have been retired, in the order in which they were retired. They are
+	 * never scored again, but they are still returned by {@link #getVoices()}. It is shared, in part, with
+	 * the states which this one transitions from and into.
+	 */
+	private final PersistentList<Voice> retired;
+
+	/**
+	 * The number of Voices which this state has ever retired, including any which have since been dropped
+	 * from {@link #retired} by {@link #truncate(VoiceTruncator)}. These count towards
+	 * {@link HmmVoiceSplittingModelTester#MAX_VOICES}, along with the active {@link #voices}.
+	 */
+	private final int numRetired;
+
+	/**
+	 * The index of {@link #voices} by weighted pitch, or null if the parameters have no
+	 * {@link HmmVoiceSplittingModelParameters#PITCH_WINDOW}. It is derived from the index of the
+	 * state this one came from, and is only built once this state transitions.
+	 */
+	private final HmmVoiceSplittingModelPitchIndex pitchIndex;
 
 	/**
 	 * The log of the probability of this State occurring.
@@ -35,6 +69,24 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 	 */
 	private HmmVoiceSplittingModelParameters params;
 
+	/**
+	 * The arena in which this state's new {@link Voice}s are created, or null to create each
+	 * of them as a separate object.
+	 */
+	private final VoiceArena arena;
+
+	/**
+	 * The signature of this state, used as its recombination key. This is null until
+	 * {@link #getRecombinationKey()} is first called.
+	 */
+	private HmmVoiceSplittingModelStateSignature signature;
+
+	/**
+	 * A 64-bit hash of {@link #voices} and {@link #retired}, in order, folded from their structural hashes
+	 * (see {@link Voice#getHash()}). This is 0 until {@link #getFingerprint()} is first called.
+	 */
+	private long fingerprint;
+
 	/**
 	 * Create a new default State with logProb = 0 (ie. prob = 1)
 	 *
@@ -44,6 +96,17 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 		this(0, params);
 	}
 
+	/**
+	 * Create a new default State with logProb = 0 (ie. prob = 1), whose new {@link Voice}s
+	 * (and those of all of the States it transitions into) are created in the given arena.
+	 *
+	 * @param params {@link #params}
+	 * @param arena {@link #arena}
+	 */
+	public HmmVoiceSplittingModelState(HmmVoiceSplittingModelParameters params, VoiceArena arena) {
+		this(0, PersistentList.<Voice>empty(), PersistentList.<Voice>empty(), 0, getEmptyPitchIndex(params), params, arena);
+	}
+
 	/**
 	 * Create a new empty State with the given log probability and parameters.
 	 *
@@ -51,7 +114,7 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 	 * @param params {@link #params}
 	 */
 	public HmmVoiceSplittingModelState(double logProb, HmmVoiceSplittingModelParameters params) {
-		this(logProb, new ArrayList<Voice>(), params);
+		this(logProb, PersistentList.<Voice>empty(), PersistentList.<Voice>empty(), 0, getEmptyPitchIndex(params), params, null);
 	}
 
 	/**
@@ -59,267 +122,456 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 	 *
 	 * @param logProb {@link #logProb}
 	 * @param voices {@link #voices}
+	 * @param retired {@link #retired}
+	 * @param numRetired {@link #numRetired}
+	 * @param pitchIndex {@link #pitchIndex}
 	 * @param params {@link #params}
+	 * @param arena {@link #arena}
 	 */
-	private HmmVoiceSplittingModelState(double logProb, List<Voice> voices, HmmVoiceSplittingModelParameters params) {
+	private HmmVoiceSplittingModelState(double logProb, PersistentList<Voice> voices, PersistentList<Voice> retired, int numRetired,
+			HmmVoiceSplittingModelPitchIndex pitchIndex, HmmVoiceSplittingModelParameters params, VoiceArena arena) {
 		this.voices = voices;
+		this.retired = retired;
+		this.numRetired = numRetired;
+		this.pitchIndex = pitchIndex;
 		this.logProb = logProb;
 		this.params = params;
+		this.arena = arena;
 	}
 
 	/**
-	 * Return a TreeSet of all of the possible HmmVoiceSplittingModelStates which we could tansition into
-	 * given the List of MidiNotes. This is done here using the
-	 * {@link #getAllCandidateNewStatesRecursive(List, List, List, double, int)} method.
+	 * Get the {@link #pitchIndex} of a state with no Voices.
+	 *
+	 * @param params The parameters we are using.
+	 * @return An empty pitch index, or null if the given parameters have no pitch window.
+	 */
+	private static HmmVoiceSplittingModelPitchIndex getEmptyPitchIndex(HmmVoiceSplittingModelParameters params) {
+		return params.hasPitchWindow() ? new HmmVoiceSplittingModelPitchIndex(PersistentList.<Voice>empty(), params) : null;
+	}
+
+	/**
+	 * Return a {@link Beam} of the best possible HmmVoiceSplittingModelStates which we could tansition into
+	 * given the List of MidiNotes. The Beam will be of size {@link HmmVoiceSplittingModelParameters#BEAM_SIZE},
+	 * and is filled by {@link #handleIncoming(List, Beam)}.
 	 * <p>
 	 * NOTE: It is assumed that the notes Lists passed into this method will be passed
 	 * chronologically. Specifically, each time this method is invoked, it should be passed
 	 * the List of MidiNotes which occur next in the MIDI song currently being read.
+	 *
+	 * @param notes A List of the MidiNotes on which we need to transition.
+	 * @return A Beam of HmmVoiceSplittingModelStates which we've transitioned into. The new HmmVoiceSplittingModelStates
+	 * should not hold any common mutable objects, since they may modify them in the future.
+	 */
+	@Override
+	public Beam<HmmVoiceSplittingModelState> handleIncoming(List<MidiNote> notes) {
+		Beam<HmmVoiceSplittingModelState> newStates = new Beam<HmmVoiceSplittingModelState>(params.BEAM_SIZE);
+		handleIncoming(notes, newStates);
+		return newStates;
+	}
+
+	/**
+	 * Add all of the possible HmmVoiceSplittingModelStates which we could tansition into given the List
+	 * of MidiNotes into the given {@link Beam}. This is done here using the
+	 * {@link #getAllCandidateNewStatesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], Beam)} method.
+	 * <p>
+	 * The Beam may already contain states from other hypotheses, in which case any of our candidates
+	 * which cannot beat its worst state are never created. Using the bounds from
+	 * {@link #getTransitionBounds(HmmVoiceSplittingModelTransitionScores, HmmVoiceSplittingModelOpenVoices)}, whole branches of the recursion are skipped as soon as
+	 * no State within them could make it into the Beam.
 	 * <p>
 	 * Usually, this method is simply called by some {@link HmmVoiceSplittingModel}'s
 	 * {@link HmmVoiceSplittingModel#handleIncoming(List)} method.
 	 *
 	 * @param notes A List of the MidiNotes on which we need to transition.
-	 * @return A TreeSet of HmmVoiceSplittingModelStates which we've transitioned into. The new HmmVoiceSplittingModelStates
-	 * should not hold any common mutable objects, since they may modify them in the future.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
 	 */
-	@Override
-	public TreeSet<HmmVoiceSplittingModelState> handleIncoming(List<MidiNote> notes) {
-		// We need a deep copy of voices in case there are more transitions to perform
-		// on this State
-		return getAllCandidateNewStatesRecursive(getOpenVoiceIndices(notes, voices), notes, voices, logProb, 0);
+	public void handleIncoming(List<MidiNote> notes, Beam<HmmVoiceSplittingModelState> newStates) {
+		handleIncoming(new HmmVoiceSplittingModelScoreCache(notes, params), newStates);
+	}
+
+	/**
+	 * Add all of the possible HmmVoiceSplittingModelStates which we could tansition into given the incoming
+	 * notes of the given {@link HmmVoiceSplittingModelScoreCache} into the given {@link Beam}, as in
+	 * {@link #handleIncoming(List, Beam)}.
+	 * <p>
+	 * The cache should be shared by every hypothesis state transitioning on the same notes, so that
+	 * the scores of any {@link Voice}s they share are only calculated once.
+	 * <p>
+	 * Unless the parameters have {@link HmmVoiceSplittingModelParameters#EXACT_CHORDS}, chords of at least
+	 * {@link HmmVoiceSplittingModelChordSolver#MIN_CHORD_SIZE} notes are not enumerated exhaustively. Instead,
+	 * their assignments are found in order of likelihood by an {@link HmmVoiceSplittingModelChordSolver}, and
+	 * only as many as could still enter the Beam are tried, up to a limit, so the search over them is approximate.
+	 * This is also done for every chord if the Beam is smaller than {@link HmmVoiceSplittingModelParameters#BEAM_SIZE}
+	 * (for example, because of a time budget), so that no chord takes exponential time.
+	 * <p>
+	 * If any of our Voices should be retired at the onset time of the incoming notes (see
+	 * {@link #retireVoices(long)}), the transitions are made from a copy of this state with those Voices retired.
+	 *
+	 * @param cache The score cache for the incoming notes.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
+	 */
+	public void handleIncoming(HmmVoiceSplittingModelScoreCache cache, Beam<HmmVoiceSplittingModelState> newStates) {
+		if (params.hasRetirement() && !cache.getIncoming().isEmpty()) {
+			HmmVoiceSplittingModelState state = retireVoices(cache.getIncoming().get(0).getOnsetTime());
+
+			if (state != this) {
+				// The copy has nothing left to retire at this time
+				state.handleIncoming(cache, newStates);
+				return;
+			}
+		}
+
+		HmmVoiceSplittingModelTransitionScores scores = new HmmVoiceSplittingModelTransitionScores(cache, voices, pitchIndex);
+		HmmVoiceSplittingModelOpenVoices openVoices = new HmmVoiceSplittingModelOpenVoices(scores);
+		double[] transitionBounds = getTransitionBounds(scores, openVoices);
+
+		if (!canEnterBeam(logProb, 0, transitionBounds, newStates)) {
+			return;
+		}
+
+		// Large chords are assigned by a solver, rather than by trying every assignment
+		int chordSize = cache.getIncoming().size();
+		if ((chordSize >= HmmVoiceSplittingModelChordSolver.MIN_CHORD_SIZE && !params.EXACT_CHORDS) ||
+				(chordSize > 1 && newStates.getCapacity() < params.BEAM_SIZE)) {
+			HmmVoiceSplittingModelChordSolver solver = HmmVoiceSplittingModelChordSolver.create(cache, voices, numRetired, openVoices);
+
+			if (solver != null) {
+				getCandidateNewStatesFromSolver(solver, openVoices, scores, transitionBounds, newStates);
+				return;
+			}
+		}
+
+		// This List is changed and restored during the recursion, and each new State
+		// receives its own Voices by applying the recorded changes to ours
+		getAllCandidateNewStatesRecursive(openVoices, scores, new ArrayList<Voice>(voices), logProb, 0, transitionBounds, null, newStates);
+	}
+
+	/**
+	 * Add the HmmVoiceSplittingModelStates which we could transition into given the incoming notes of the
+	 * given transition scores into the given {@link Beam}, trying the assignments of those notes to our {@link Voice}s
+	 * from the given {@link HmmVoiceSplittingModelChordSolver} in order, from most to least likely.
+	 * <p>
+	 * The States of each assignment are found by
+	 * {@link #getAllCandidateNewStatesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], Beam)},
+	 * which only follows that assignment. Since an assignment's score is an upper bound on the log probability
+	 * of its States, we stop as soon as one cannot enter the Beam. However, at most
+	 * {@link HmmVoiceSplittingModelChordSolver#ASSIGNMENTS_PER_BEAM_STATE} times the capacity of the Beam
+	 * assignments are tried. The Beam only ends up exactly as it would have by trying every assignment
+	 * if we stop before reaching that limit, so the result is otherwise approximate.
+	 *
+	 * @param solver The solver for the incoming notes and our Voices.
+	 * @param openVoices The open voices of each note, for our {@link #voices}.
+	 * @param scores The transition scores of the incoming notes, for our {@link #voices}.
+	 * @param transitionBounds The bounds on each note's transition probability, from
+	 * {@link #getTransitionBounds(HmmVoiceSplittingModelTransitionScores, HmmVoiceSplittingModelOpenVoices)}.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
+	 */
+	private void getCandidateNewStatesFromSolver(HmmVoiceSplittingModelChordSolver solver, HmmVoiceSplittingModelOpenVoices openVoices,
+			HmmVoiceSplittingModelTransitionScores scores, double[] transitionBounds, Beam<HmmVoiceSplittingModelState> newStates) {
+		int maxAssignments = HmmVoiceSplittingModelChordSolver.ASSIGNMENTS_PER_BEAM_STATE * newStates.getCapacity();
+		List<Voice> newVoices = new ArrayList<Voice>(voices);
+
+		for (int i = 0; i < maxAssignments; i++) {
+			HmmVoiceSplittingModelChordAssignment assignment = solver.next();
+
+			if (assignment == null || !newStates.wouldAccept(HmmVoiceSplittingModelChordSolver.getUpperBound(logProb, assignment))) {
+				// No later assignment is any more likely
+				return;
+			}
+
+			getAllCandidateNewStatesRecursive(openVoices, scores, newVoices, logProb, 0, transitionBounds, solver.getVoices(assignment), newStates);
+		}
+	}
+
+	/**
+	 * Get an upper bound on the log probability of the transition of each of the given incoming notes.
+	 * This is the best log probability of adding each note either into a new {@link Voice} or into one of
+	 * its open Voices, ignoring any penalty for pitch ordering (which can only lower the probability).
+	 *
+	 * @param scores The transition scores of the incoming notes, for our {@link #voices}.
+	 * @param openVoices The open voices of each note, for our {@link #voices}.
+	 * @return An upper bound on the log probability of the transition of each incoming note, or
+	 * {@link Double#NEGATIVE_INFINITY} for a note which cannot be transitioned at all.
+	 */
+	private double[] getTransitionBounds(HmmVoiceSplittingModelTransitionScores scores, HmmVoiceSplittingModelOpenVoices openVoices) {
+		double[] bounds = new double[scores.getIncoming().size()];
+
+		double newVoiceLogProb = scores.getLogNewVoiceProbability();
+		if (newVoiceLogProb == Double.NEGATIVE_INFINITY) {
+			newVoiceLogProb = -Double.MAX_VALUE;
+		}
+
+		for (int i = 0; i < bounds.length; i++) {
+			bounds[i] = voices.size() + numRetired < HmmVoiceSplittingModelTester.MAX_VOICES ? newVoiceLogProb : Double.NEGATIVE_INFINITY;
+
+			for (int voiceIndex : openVoices.getOpenVoices(i)) {
+				double logProb = scores.getLogProbability(i, voiceIndex);
+				if (logProb == Double.NEGATIVE_INFINITY) {
+					logProb = -Double.MAX_VALUE;
+				}
+
+				bounds[i] = Math.max(bounds[i], logProb);
+			}
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * Decide whether any State reached after transitioning the notes from the given index onwards could
+	 * still be added into the given {@link Beam}.
+	 * <p>
+	 * The bounds are summed in the same order as the transition probabilities are during the recursion,
+	 * so a State is never skipped because of rounding.
+	 *
+	 * @param logProbSum The sum of the current log probability of this state, including any transitions
+	 * already made recursively.
+	 * @param noteIndex The index of the next note to transition.
+	 * @param transitionBounds The bounds on each note's transition probability, from
+	 * {@link #getTransitionBounds(HmmVoiceSplittingModelTransitionScores, HmmVoiceSplittingModelOpenVoices)}.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
+	 * @return True if some State in the given branch might be added into the Beam. False otherwise.
+	 */
+	private static boolean canEnterBeam(double logProbSum, int noteIndex, double[] transitionBounds, Beam<HmmVoiceSplittingModelState> newStates) {
+		for (int i = noteIndex; i < transitionBounds.length; i++) {
+			logProbSum += transitionBounds[i];
+		}
+
+		return newStates.wouldAccept(logProbSum);
 	}
 
 	/**
 	 * This method does the work of getting all of the possible HmmVoiceSplittingModelStates which
 	 * we could transition into for {@link #handleIncoming(List)} recursively.
 	 * <p>
-	 * It uses the helper methods {@link #addNewVoicesRecursive(List, List, List, double, int, double[], double, TreeSet)}
+	 * It uses the helper methods {@link #addNewVoicesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], double[], double, Beam)}
 	 * to add {@link MidiNote}s into new {@link Voice}s, and
-	 * {@link #addToExistingVoicesRecursive(List, List, List, double, int, double[], TreeSet)} to add
+	 * {@link #addToExistingVoicesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], int[], double[], Beam)} to add
 	 * {@link MidiNote}s into existing {@link Voice}s.
 	 *
-	 * @param openVoiceIndices The open voice indices for each note, generated by {@link #getOpenVoiceIndices(List, List)}
-	 * initially.
-	 * @param incoming A List of the incoming {@link MidiNote}s.
+	 * @param openVoices The open voices of each note, indexed into newVoices.
+	 * @param scores The transition scores of the incoming {@link MidiNote}s.
 	 * @param newVoices A List of the {@link Voice}s in this HmmVoiceSplittingModelState as it is now. For each recursive call,
 	 * this should be a deep copy since the {@link Voice}s that lie within will be changed.
 	 * @param logProbSum The sum of the current log probability of this state, including any transitions
 	 * already made recursively.
 	 * @param noteIndex The index of the note which we are tasked with transitioning on.
-	 *
-	 * @return A List of all states which could be transitioned into given the parameters.
+	 * @param transitionBounds The bounds on each note's transition probability, from {@link #getTransitionBounds(HmmVoiceSplittingModelTransitionScores, HmmVoiceSplittingModelOpenVoices)}.
+	 * @param assignment The Voice of this state into which each note must be added (or null for a new Voice), as
+	 * given by an {@link HmmVoiceSplittingModelChordSolver}. If this is null, every assignment is tried.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
 	 */
-	private TreeSet<HmmVoiceSplittingModelState> getAllCandidateNewStatesRecursive(List<List<Integer>> openVoiceIndices, List<MidiNote> incoming,
-			List<Voice> newVoices, double logProbSum, int noteIndex) {
+	private void getAllCandidateNewStatesRecursive(HmmVoiceSplittingModelOpenVoices openVoices, HmmVoiceSplittingModelTransitionScores scores,
+			List<Voice> newVoices, double logProbSum, int noteIndex, double[] transitionBounds, Voice[] assignment,
+			Beam<HmmVoiceSplittingModelState> newStates) {
+		List<MidiNote> incoming = scores.getIncoming();
 		if (noteIndex == incoming.size()) {
-			// Base case - no notes left to transition. Return a State based on the given Voices and log prob.
-			TreeSet<HmmVoiceSplittingModelState> newStates = new TreeSet<HmmVoiceSplittingModelState>();
-			newStates.add(new HmmVoiceSplittingModelState(logProbSum, new ArrayList<Voice>(newVoices), params));
-			return newStates;
+			// Base case - no notes left to transition. Add a State based on the given Voices and log prob,
+			// checking first so that we don't copy the Voices of a State which would be thrown away.
+			if (newStates.wouldAccept(logProbSum)) {
+				newStates.add(new HmmVoiceSplittingModelState(logProbSum, scores.applyChanges(voices), retired, numRetired,
+						scores.applyChanges(pitchIndex), params, arena));
+			}
+			return;
 		}
 
-		// Setup
-		TreeSet<HmmVoiceSplittingModelState> newStates = new TreeSet<HmmVoiceSplittingModelState>();
-
+		Voice assignedVoice = assignment == null ? null : assignment[noteIndex];
 
 		// Calculate transition probabilities for starting new voices
-		if (voices.size() < HmmVoiceSplittingModelTester.MAX_VOICES) {
+		if (voices.size() + numRetired < HmmVoiceSplittingModelTester.MAX_VOICES && assignedVoice == null) {
 			double[] newVoiceProbs = new double[newVoices.size() + 1];
 			for (int i = 0; i < newVoiceProbs.length; i++) {
-				newVoiceProbs[i] = getTransitionProb(incoming.get(noteIndex), -i - 1, newVoices);
+				newVoiceProbs[i] = scores.getTransitionProb(noteIndex, -i - 1);
 			}
 
 			int maxIndex = MathUtils.getMaxIndex(newVoiceProbs);
 
 			if (maxIndex != -1) {
 				// There is a good place to add a new voice
-				addNewVoicesRecursive(openVoiceIndices, incoming, newVoices, logProbSum, noteIndex, newVoiceProbs, newVoiceProbs[maxIndex], newStates);
+				addNewVoicesRecursive(openVoices, scores, newVoices, logProbSum, noteIndex, transitionBounds, assignment, newVoiceProbs, newVoiceProbs[maxIndex], newStates);
 			}
 		}
 
+		if (assignment != null && assignedVoice == null) {
+			return;
+		}
+
 		// Add to existing voices
-		double[] existingVoiceProbs = new double[openVoiceIndices.get(noteIndex).size()];
+		int[] existingVoiceIndices = openVoices.getOpenVoices(noteIndex);
+		if (assignedVoice != null) {
+			existingVoiceIndices = getAssignedVoiceIndex(existingVoiceIndices, newVoices, assignedVoice);
+		}
+
+		double[] existingVoiceProbs = new double[existingVoiceIndices.length];
 		for (int i = 0; i < existingVoiceProbs.length; i++) {
-			existingVoiceProbs[i] = getTransitionProb(incoming.get(noteIndex), openVoiceIndices.get(noteIndex).get(i), newVoices);
+			existingVoiceProbs[i] = scores.getTransitionProb(noteIndex, existingVoiceIndices[i]);
 		}
 
-		addToExistingVoicesRecursive(openVoiceIndices, incoming, newVoices, logProbSum, noteIndex, existingVoiceProbs, newStates);
+		addToExistingVoicesRecursive(openVoices, scores, newVoices, logProbSum, noteIndex, transitionBounds, assignment, existingVoiceIndices, existingVoiceProbs, newStates);
+	}
 
-		return newStates;
+	/**
+	 * Find the index of the given {@link Voice} among the given open voices. An open Voice has not yet
+	 * been changed during the recursion, so it is still the same object as in our {@link #voices}.
+	 *
+	 * @param openVoiceIndices The indices of the open voices in newVoices.
+	 * @param newVoices The current List of Voices in the recursion.
+	 * @param voice The Voice to find.
+	 * @return An array containing only the index of the given Voice in newVoices, or an empty array if it is not open.
+	 */
+	private static int[] getAssignedVoiceIndex(int[] openVoiceIndices, List<Voice> newVoices, Voice voice) {
+		for (int voiceIndex : openVoiceIndices) {
+			if (newVoices.get(voiceIndex) == voice) {
+				return new int[] {voiceIndex};
+			}
+		}
+
+		return new int[0];
 	}
 
 	/**
-	 * This method does the work for {@link #getAllCandidateNewStatesRecursive(List, List, List, double, int)}
+	 * This method does the work for {@link #getAllCandidateNewStatesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], Beam)}
 	 * of adding a {@link MidiNote} into a newly created {@link Voice}.
 	 * <p>
-	 * {@link #addToExistingVoicesRecursive(List, List, List, double, int, double[], TreeSet)} is used
+	 * {@link #addToExistingVoicesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], int[], double[], Beam)} is used
 	 * to add a {@link MidiNote} into an existing {@link Voice}.
 	 *
-	 * @param openVoiceIndices The open voice indices for each note, generated by {@link #getOpenVoiceIndices(List, List)}
-	 * initially.
-	 * @param incoming A List of the incoming {@link MidiNote}s.
+	 * @param openVoices The open voices of each note, indexed into newVoices.
+	 * @param scores The transition scores of the incoming {@link MidiNote}s.
 	 * @param newVoices A List of the {@link Voice}s in this HmmVoiceSplittingModelState as it is now. For each recursive call,
 	 * this should be a deep copy since the {@link Voice}s that lie within will be changed.
 	 * @param logProbSum The sum of the current log probability of this state, including any transitions
 	 * already made recursively.
 	 * @param noteIndex The index of the note which we are tasked with transitioning on.
+	 * @param transitionBounds The bounds on each note's transition probability, from {@link #getTransitionBounds(HmmVoiceSplittingModelTransitionScores, HmmVoiceSplittingModelOpenVoices)}.
+	 * @param assignment The assignment being followed, or null to try every assignment.
 	 * @param newVoiceProbs The probability of adding the current {@link MidiNote} into a new {@link Voice} at each possible index.
 	 * @param maxValue The maximum value of any number in newVoiceProbs.
-	 * @param newStates The List where we will add the newly created HmmVoiceSplittingModelStates.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
 	 */
-	private void addNewVoicesRecursive(List<List<Integer>> openVoiceIndices, List<MidiNote> incoming, List<Voice> newVoices,
-			double logProbSum, int noteIndex, double[] newVoiceProbs, double maxValue, TreeSet<HmmVoiceSplittingModelState> newStates) {
+	private void addNewVoicesRecursive(HmmVoiceSplittingModelOpenVoices openVoices, HmmVoiceSplittingModelTransitionScores scores, List<Voice> newVoices,
+			double logProbSum, int noteIndex, double[] transitionBounds, Voice[] assignment, double[] newVoiceProbs, double maxValue,
+			Beam<HmmVoiceSplittingModelState> newStates) {
+		List<MidiNote> incoming = scores.getIncoming();
+
+		if (newVoices.size() + numRetired < HmmVoiceSplittingModelTester.MAX_VOICES) {
+			if (!canEnterBeam(logProbSum + maxValue, noteIndex + 1, transitionBounds, newStates)) {
+				// No branch can make it into the beam
+				return;
+			}
 
-		if (newVoices.size() < HmmVoiceSplittingModelTester.MAX_VOICES) {
 			for (int newVoiceIndex = 0; newVoiceIndex < newVoiceProbs.length; newVoiceIndex++) {
 				if (newVoiceProbs[newVoiceIndex] == maxValue) {
 					// Add at any location with max probability
 					doTransition(incoming.get(noteIndex), -newVoiceIndex - 1, newVoices);
+					scores.insertVoice(newVoiceIndex, noteIndex, newVoices.get(newVoiceIndex));
 
-					// Fix openVoiceIndices
-					for (int note = noteIndex + 1; note < openVoiceIndices.size(); note++) {
-						for (int voice = 0; voice < openVoiceIndices.get(note).size(); voice++) {
-							if (openVoiceIndices.get(note).get(voice) >= newVoiceIndex) {
-								openVoiceIndices.get(note).set(voice, openVoiceIndices.get(note).get(voice) + 1);
-							}
-						}
-					}
+					// Fix openVoices
+					openVoices.insertVoice(noteIndex + 1, newVoiceIndex);
 
 					// (Pseudo-)recursive call
-					newStates.addAll(getAllCandidateNewStatesRecursive(openVoiceIndices, incoming, newVoices, logProbSum + newVoiceProbs[newVoiceIndex], noteIndex + 1));
-
-					// Fix for memory overflow - trim newStates as soon as we can
-					while (newStates.size() > params.BEAM_SIZE) {
-						newStates.pollLast();
-					}
+					getAllCandidateNewStatesRecursive(openVoices, scores, newVoices, logProbSum + newVoiceProbs[newVoiceIndex], noteIndex + 1, transitionBounds, assignment, newStates);
 
 					// The objects are mutable, so reverse changes. This helps with memory usage as well.
-					reverseTransition(-newVoiceIndex - 1, newVoices);
-
-					// Reverse openVoiceIndices
-					for (int note = noteIndex + 1; note < openVoiceIndices.size(); note++) {
-						for (int voice = 0; voice < openVoiceIndices.get(note).size(); voice++) {
-							if (openVoiceIndices.get(note).get(voice) > newVoiceIndex) {
-								openVoiceIndices.get(note).set(voice, openVoiceIndices.get(note).get(voice) - 1);
-							}
-						}
-					}
+					reverseTransition(-newVoiceIndex - 1, newVoices, null);
+					scores.removeVoice(newVoiceIndex);
+
+					// Reverse openVoices
+					openVoices.removeVoice(noteIndex + 1, newVoiceIndex);
 				}
 			}
 		}
 	}
 
 	/**
-	 * This method does the work for {@link #getAllCandidateNewStatesRecursive(List, List, List, double, int)}
+	 * This method does the work for {@link #getAllCandidateNewStatesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], Beam)}
 	 * of adding a {@link MidiNote} into an existing {@link Voice}.
 	 * <p>
-	 * {@link #addNewVoicesRecursive(List, List, List, double, int, double[], double, TreeSet)} is used
+	 * {@link #addNewVoicesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], double[], double, Beam)} is used
 	 * to add a {@link MidiNote} into a new {@link Voice}.
 	 *
-	 * @param openVoiceIndices The open voice indices for each note, generated by {@link #getOpenVoiceIndices(List, List)}
-	 * initially.
-	 * @param incoming A List of the incoming {@link MidiNote}s.
+	 * @param openVoices The open voices of each note, indexed into newVoices.
+	 * @param scores The transition scores of the incoming {@link MidiNote}s.
 	 * @param newVoices A List of the {@link Voice}s in this HmmVoiceSplittingModelState as it is now. For each recursive call,
 	 * this should be a deep copy since the {@link Voice}s that lie within will be changed.
 	 * @param logProbSum The sum of the current log probability of this state, including any transitions
 	 * already made recursively.
 	 * @param noteIndex The index of the note which we are tasked with transitioning on.
-	 * @param existingVoiceProbs The probability of adding the current {@link MidiNote} into a new {@link Voice} at each
-	 * possible index.
-	 * @param newStates The List where we will add the newly created HmmVoiceSplittingModelStates.
+	 * @param transitionBounds The bounds on each note's transition probability, from {@link #getTransitionBounds(HmmVoiceSplittingModelTransitionScores, HmmVoiceSplittingModelOpenVoices)}.
+	 * @param assignment The assignment being followed, or null to try every assignment.
+	 * @param existingVoiceIndices The indices of the {@link Voice}s in newVoices which are open for the current {@link MidiNote}.
+	 * @param existingVoiceProbs The probability of adding the current {@link MidiNote} into each of the open {@link Voice}s
+	 * in existingVoiceIndices.
+	 * @param newStates The Beam where we will add the newly created HmmVoiceSplittingModelStates.
 	 */
-	private void addToExistingVoicesRecursive(List<List<Integer>> openVoiceIndices, List<MidiNote> incoming,
-			List<Voice> newVoices, double logProbSum, int noteIndex, double[] existingVoiceProbs, TreeSet<HmmVoiceSplittingModelState> newStates) {
+	private void addToExistingVoicesRecursive(HmmVoiceSplittingModelOpenVoices openVoices, HmmVoiceSplittingModelTransitionScores scores,
+			List<Voice> newVoices, double logProbSum, int noteIndex, double[] transitionBounds, Voice[] assignment, int[] existingVoiceIndices,
+			double[] existingVoiceProbs, Beam<HmmVoiceSplittingModelState> newStates) {
+		List<MidiNote> incoming = scores.getIncoming();
+		boolean[] closed = new boolean[incoming.size()];
 
 		for (int openVoiceIndex = 0; openVoiceIndex < existingVoiceProbs.length; openVoiceIndex++) {
+			if (!canEnterBeam(logProbSum + existingVoiceProbs[openVoiceIndex], noteIndex + 1, transitionBounds, newStates)) {
+				// No State in this branch can make it into the beam
+				continue;
+			}
+
 			// Try the transition
-			int voiceIndex = openVoiceIndices.get(noteIndex).get(openVoiceIndex);
-			doTransition(incoming.get(noteIndex), voiceIndex, newVoices);
+			int voiceIndex = existingVoiceIndices[openVoiceIndex];
+			Voice replaced = doTransition(incoming.get(noteIndex), voiceIndex, newVoices);
+			int original = scores.extendVoice(voiceIndex, noteIndex, newVoices.get(voiceIndex));
 
-			// Fix openVoiceIndices
-			boolean[] removed = new boolean[openVoiceIndices.size()];
-			for (int note = noteIndex + 1; note < openVoiceIndices.size(); note++) {
-				removed[note] = openVoiceIndices.get(note).remove(Integer.valueOf(voiceIndex));
+			// Fix openVoices
+			for (int note = noteIndex + 1; note < closed.length; note++) {
+				closed[note] = openVoices.close(note, voiceIndex);
 			}
 
 			// (Pseudo-)recursive call
-			newStates.addAll(getAllCandidateNewStatesRecursive(openVoiceIndices, incoming, newVoices, logProbSum + existingVoiceProbs[openVoiceIndex], noteIndex + 1));
-
-			// Remove extras from newStates to save memory
-			while (newStates.size() > params.BEAM_SIZE) {
-				newStates.pollLast();
-			}
+			getAllCandidateNewStatesRecursive(openVoices, scores, newVoices, logProbSum + existingVoiceProbs[openVoiceIndex], noteIndex + 1, transitionBounds, assignment, newStates);
 
 			// Reverse transition
-			reverseTransition(voiceIndex, newVoices);
-
-			// Reverse openVoiceIndices
-			for (int j = noteIndex + 1; j < removed.length; j++) {
-				if (removed[j]) {
-					int note;
-					for (note = 0; note < openVoiceIndices.get(j).size() && openVoiceIndices.get(j).get(note) < voiceIndex; note++);
-					openVoiceIndices.get(j).add(note, voiceIndex);
-				}
-			}
-		}
-	}
+			reverseTransition(voiceIndex, newVoices, replaced);
+			scores.restoreVoice(voiceIndex, original);
 
-	/**
-	 * Get a List of the indices at which an existing {@link Voice} lies in the given List which
-	 * each of thie given incoming {@link MidiNote}s could be added.
-	 *
-	 * @param incoming A List of the {@link MidiNote}s to check for open {@link Voice}s.
-	 * @param voices A List of the {@link Voice}s we want to check.
-	 *
-	 * @return A List of the open voices in newVoices for each incoming note. <code>return.get(i).get(j)</code>
-	 * will return the index of the (j+1)th (since it is 0-indexed) open {@link Voice} in newVoices for the ith
-	 * {@link MidiNote} from incoming.
-	 */
-	private List<List<Integer>> getOpenVoiceIndices(List<MidiNote> incoming, List<Voice> voices) {
-		long onsetTime = incoming.get(0).getOnsetTime();
-		List<List<Integer>> openIndices = new ArrayList<List<Integer>>(incoming.size());
-
-		for (MidiNote note : incoming) {
-			List<Integer> noteOpen = new ArrayList<Integer>();
-			for (int i = 0; i < voices.size(); i++) {
-				if (voices.get(i).canAddNoteAtTime(onsetTime, note.getDurationTime(), params)) {
-					noteOpen.add(i);
+			// Reverse openVoices
+			for (int note = noteIndex + 1; note < closed.length; note++) {
+				if (closed[note]) {
+					openVoices.open(note, voiceIndex);
 				}
 			}
-			openIndices.add(noteOpen);
 		}
-
-		return openIndices;
 	}
 
 	/**
 	 * Reverse (undo) the given transition.
 	 * <p>
 	 * This is used when unwinding the recursive actions of
-	 * {@link #getAllCandidateNewStatesRecursive(List, List, List, double, int)}.
+	 * {@link #getAllCandidateNewStatesRecursive(HmmVoiceSplittingModelOpenVoices, HmmVoiceSplittingModelTransitionScores, List, double, int, double[], Voice[], Beam)}.
 	 *
 	 * @param transition The value of the transition we want to perform on the given note.
 	 * A negative value tells us that a {@link MidiNote} was added to a new {@link Voice} placed at index
 	 * (-transition - 1). Any non-negative value tells us that a {@link MidiNote} was added into the existing
 	 * {@link Voice} at that index in newVoices.
 	 * @param newVoices The {@link Voice}s List which contains the transition we want to reverse.
+	 * @param replaced The {@link Voice} which was replaced by the transition, as returned by
+	 * {@link #doTransition(MidiNote, int, List)}. Restoring this exact object (rather than a new view
+	 * of it from {@link #arena}) lets its scores still be found in the score cache.
 	 */
-	private void reverseTransition(int transition, List<Voice> newVoices) {
+	private void reverseTransition(int transition, List<Voice> newVoices, Voice replaced) {
 		// For new Voices, we need to add the Voice, and then update the transition value to
 		// point to that new Voice so the lower code works.
 		if (transition < 0) {
 			newVoices.remove(-transition - 1);
 
 		} else {
-			newVoices.set(transition, newVoices.get(transition).getPrevious());
+			newVoices.set(transition, replaced);
 		}
 	}
 
 	/**
 	 * Perform the given transition WITHOUT calculating probability.
 	 * <p>
-	 * The {@link #getTransitionProb(MidiNote, int, List)} method is used to calculate
+	 * The {@link HmmVoiceSplittingModelTransitionScores#getTransitionProb(int, int)} method is used to calculate
 	 * a transition's probability, and it should be called before calling this method.
 	 *
 	 * @param note The {@link MidiNote} we want to add to a {@link Voice}.
@@ -328,75 +580,137 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 	 * Any non-negative value tells us to add the {@link MidiNote} into the existing {@link Voice} at that
 	 * index in newVoices.
 	 * @param newVoices A List of the {@link Voice}s available to have the given {@link MidiNote} added to them.
+	 * @return The existing {@link Voice} which was replaced, or null if a new {@link Voice} was added.
 	 */
-	private void doTransition(MidiNote note, int transition, List<Voice> newVoices) {
+	private Voice doTransition(MidiNote note, int transition, List<Voice> newVoices) {
 		// For new Voices, we need to add the Voice, and then update the transition value to
 		// point to that new Voice so the lower code works.
 		if (transition < 0) {
 			transition = -transition - 1;
-			newVoices.add(transition, new Voice(note));
-
-		} else {
-			newVoices.set(transition, new Voice(note, newVoices.get(transition)));
+			newVoices.add(transition, arena == null ? new Voice(note, params) : arena.newVoice(note, null));
+			return null;
 		}
+
+		Voice prev = newVoices.get(transition);
+		newVoices.set(transition, arena == null ? new Voice(note, prev, params) : arena.newVoice(note, prev));
+		return prev;
 	}
 
 	/**
-	 * Get the probability of the given transition, but do not perform that transition.
+	 * Get a copy of this HmmVoiceSplittingModelState in which every one of our {@link #voices} which has been
+	 * silent for at least {@link HmmVoiceSplittingModelParameters#getRetirementGapMicros()} by the given time
+	 * is retired, by moving it onto the end of {@link #retired}. Such a Voice would have been given the minimum
+	 * gap score by every later note, and it is never scored again.
 	 * <p>
-	 * This must be called before the given transition is actually performed with
-	 * {@link #doTransition(MidiNote, int, List)}.
+	 * This scans the active Voices once, and removes each retired one from {@link #voices} in logarithmic time,
+	 * so the copy shares the rest of them with this state.
 	 *
-	 * @param note The {@link MidiNote} whose transition probability we want.
-	 * @param transition The value of the transition whose probability we want to get, given
-	 * the {@link MidiNote} we want to check. A negative value tells us to add the {@link MidiNote}
-	 * to a new {@link Voice} at index (-transition - 1). Any non-negative value tells us to add the
-	 * {@link MidiNote} into the existing {@link Voice} at that index in newVoices.
-	 * @param newVoices A List of the {@link Voice}s available to have the given {@link MidiNote} added to them.
-	 * @return The probability of the given transition.
+	 * @param time The onset time of the next incoming notes.
+	 * @return A copy of this state with the silent Voices retired, or this state itself if there are none.
 	 */
-	private double getTransitionProb(MidiNote note, int transition, List<Voice> newVoices) {
-		double logProb;
-		Voice prev, next;
+	private HmmVoiceSplittingModelState retireVoices(long time) {
+		double gap = params.getRetirementGapMicros();
+		PersistentList<Voice> active = voices;
+		PersistentList<Voice> newRetired = retired;
+
+		// The position of each removal, as the pitch index records it
+		int[] positions = null;
+		int numNewRetired = 0;
+
+		int index = 0;
+		for (Voice voice : voices) {
+			if (time - voice.getMostRecentNote().getOffsetTime() >= gap) {
+				if (positions == null) {
+					positions = new int[voices.size() - index];
+				}
 
-		// For new Voices, we need to add the Voice, and then update the transition value to
-		// point to that new Voice so the lower code works.
-		if (transition < 0) {
-			transition = -transition - 1;
-			logProb = Math.log(params.NEW_VOICE_PROBABILITY);
-			prev = transition == 0 ? null : newVoices.get(transition - 1);
-			next = transition == newVoices.size() ? null : newVoices.get(transition);
+				active = active.minus(index - numNewRetired);
+				newRetired = newRetired.plus(newRetired.size(), voice);
+				positions[numNewRetired] = index - numNewRetired;
+				numNewRetired++;
+			}
 
-		} else {
-			logProb = Math.log(newVoices.get(transition).getProbability(note, params));
-			prev = transition == 0 ? null : newVoices.get(transition - 1);
-			next = transition == newVoices.size() - 1 ? null : newVoices.get(transition + 1);
+			index++;
 		}
 
-		// Check if we are in the wrong order with the prev or next Voices (or both)
-		if (prev != null && note.getPitch() < prev.getMostRecentNote().getPitch()) {
-			logProb -= Math.log(2);
+		if (numNewRetired == 0) {
+			return this;
 		}
 
-		if (next != null && note.getPitch() > next.getMostRecentNote().getPitch()) {
-			logProb -= Math.log(2);
+		HmmVoiceSplittingModelPitchIndex newPitchIndex = pitchIndex == null ? null :
+			new HmmVoiceSplittingModelPitchIndex(pitchIndex, positions, new Voice[numNewRetired], new boolean[numNewRetired], numNewRetired);
+		return new HmmVoiceSplittingModelState(logProb, active, newRetired, numRetired + numNewRetired, newPitchIndex, params, arena);
+	}
+
+	/**
+	 * Create a copy of this HmmVoiceSplittingModelState whose {@link Voice}s have been truncated by
+	 * the given {@link VoiceTruncator}. It has the same {@link #logProb}, and scores every future
+	 * transition identically.
+	 * <p>
+	 * Since retired Voices are never scored again, any of them which lies entirely before the cut
+	 * time is dropped (see {@link VoiceTruncator#releaseIfCut(Voice)}), rather than truncated. It is still
+	 * counted in {@link #numRetired}.
+	 *
+	 * @param truncator The truncator to use.
+	 * @return A truncated copy of this state.
+	 */
+	public HmmVoiceSplittingModelState truncate(VoiceTruncator truncator) {
+		List<Voice> newRetired = new ArrayList<Voice>();
+
+		for (Voice voice : retired) {
+			if (!truncator.releaseIfCut(voice)) {
+				newRetired.add(truncator.truncate(voice));
+			}
 		}
 
-		if (logProb == Double.NEGATIVE_INFINITY) {
-			logProb = -Double.MAX_VALUE;
+		// Truncation keeps the notes which weighted pitches depend on, so the pitch index is unchanged
+		return new HmmVoiceSplittingModelState(logProb, truncate(voices, truncator), PersistentList.of(newRetired), numRetired, pitchIndex,
+				params, arena);
+	}
+
+	/**
+	 * Truncate each of the given {@link Voice}s with the given {@link VoiceTruncator}.
+	 *
+	 * @param voices The Voices to truncate.
+	 * @param truncator The truncator to use.
+	 * @return A List of the truncated Voices, in the same order.
+	 */
+	private static PersistentList<Voice> truncate(PersistentList<Voice> voices, VoiceTruncator truncator) {
+		List<Voice> newVoices = new ArrayList<Voice>(voices.size());
+
+		for (Voice voice : voices) {
+			newVoices.add(truncator.truncate(voice));
 		}
 
-		return logProb;
+		return PersistentList.of(newVoices);
 	}
 
 	/**
-	 * Get the {@link Voice}s which are currently contained by this HmmVoiceSplittingModelState.
+	 * Get the {@link Voice}s which are currently contained by this HmmVoiceSplittingModelState. These are
+	 * its active {@link #voices}, followed by its {@link #retired} ones, if it has any.
 	 *
-	 * @return {@link #voices}
+	 * @return A List of all of this state's Voices.
 	 */
 	@Override
 	public List<Voice> getVoices() {
-		return voices;
+		if (retired.isEmpty()) {
+			return voices;
+		}
+
+		List<Voice> allVoices = new ArrayList<Voice>(voices.size() + retired.size());
+		allVoices.addAll(voices);
+		allVoices.addAll(retired);
+		return allVoices;
+	}
+
+	/**
+	 * Get the number of this state's {@link Voice}s which have been retired (and not since dropped by
+	 * {@link #truncate(VoiceTruncator)}).
+	 *
+	 * @return The size of {@link #retired}.
+	 */
+	public int getNumRetiredVoices() {
+		return retired.size();
 	}
 
 	/**
@@ -410,24 +724,45 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 		return logProb;
 	}
 
+	/**
+	 * Get the recombination key of this HmmVoiceSplittingModelState, which is its
+	 * {@link HmmVoiceSplittingModelStateSignature}. It is only created the first time
+	 * this method is called. It only covers the active {@link #voices}, since the
+	 * {@link #retired} ones are never scored again. If there is a
+	 * {@link HmmVoiceSplittingModelTester#MAX_VOICES}, it also covers {@link #numRetired}, since
+	 * retired Voices still count towards it, and so change which future transitions are allowed.
+	 *
+	 * @return {@link #signature}
+	 */
+	@Override
+	public HmmVoiceSplittingModelStateSignature getRecombinationKey() {
+		if (signature == null) {
+			signature = new HmmVoiceSplittingModelStateSignature(voices,
+					HmmVoiceSplittingModelTester.MAX_VOICES == Integer.MAX_VALUE ? 0 : numRetired, params);
+		}
+
+		return signature;
+	}
+
 	/**
 	 * Get the String representation of this HmmVoiceSplittingModelState, which is simply its
-	 * {@link #voices} followed by its {@link #logProb}.
+	 * Voices (from {@link #getVoices()}) followed by its {@link #logProb}.
 	 *
 	 * @return The String representation of this HmmVoiceSPlittingModelState.
 	 */
 	@Override
 	public String toString() {
-		return voices.toString() + " " + logProb;
+		return getVoices().toString() + " " + logProb;
 	}
 
 	/**
 	 * Compare the given HmmVoiceSplittingModelState to this one and return their difference.
 	 * They are ordered first by their {@link #logProb} as returned by {@link #getScore()},
 	 * with higher scores coming first. If the scores are equal, the state with the least number
-	 * of {@link Voice}s (from {@link #voices}) comes first, and if that is equal, the
-	 * {@link Voice}s are compared one by one following their natural ordering from the
-	 * {@link Voice#compareTo(Voice)} method.
+	 * of {@link Voice}s (from {@link #voices} and {@link #retired} together, then from {@link #voices}
+	 * alone) comes first. If that is equal, the active {@link Voice}s are compared one by one following
+	 * their natural ordering from the {@link Voice#compareTo(Voice)} method, followed by the retired
+	 * Voices (unless both states share the same {@link #retired} List), and finally their {@link #params}.
 	 *
 	 * @param o The HmmVoiceSplittingModelState we are comparing to.
 	 * @return A positive number if this HmmVoiceSplittingModelState should come first, negative
@@ -444,18 +779,78 @@ public class HmmVoiceSplittingModelState extends VoiceSplittingModelState implem
 			return result;
 		}
 
+		result = (voices.size() + retired.size()) - (o.voices.size() + o.retired.size());
+		if (result != 0) {
+			return result;
+		}
+
 		result = voices.size() - o.voices.size();
 		if (result != 0) {
 			return result;
 		}
 
-		for (int i = 0; i < voices.size(); i++) {
-			result = voices.get(i).compareTo(o.voices.get(i));
+		// Equal Voices are found in constant time
+		if (getFingerprint() != o.getFingerprint()) {
+			result = compareVoices(voices, o.voices);
 			if (result != 0) {
 				return result;
 			}
+
+			if (retired != o.retired) {
+				result = compareVoices(retired, o.retired);
+				if (result != 0) {
+					return result;
+				}
+			}
 		}
 
 		return params.compareTo(o.params);
 	}
+
+	/**
+	 * Get the {@link #fingerprint} of this state, calculating it on the first call. States whose
+	 * Voices are equal have equal fingerprints, and two states whose Voices differ have the same
+	 * fingerprint with probability about 2^-64, in which case {@link #compareTo(HmmVoiceSplittingModelState)}
+	 * treats their Voices as equal.
+	 *
+	 * @return {@link #fingerprint}
+	 */
+	private long getFingerprint() {
+		if (fingerprint == 0L) {
+			long hash = MathUtils.mix64(voices.size());
+			for (Voice voice : voices) {
+				hash = MathUtils.mix64(hash * 31 + voice.getHash());
+			}
+
+			hash = MathUtils.mix64(hash * 31 + retired.size());
+			for (Voice voice : retired) {
+				hash = MathUtils.mix64(hash * 31 + voice.getHash());
+			}
+
+			// 0 marks a fingerprint which has not been calculated yet
+			fingerprint = hash == 0L ? 1L : hash;
+		}
+
+		return fingerprint;
+	}
+
+	/**
+	 * Compare the given Lists of {@link Voice}s, which must have the same size, one by one following
+	 * their natural ordering from the {@link Voice#compareTo(Voice)} method.
+	 *
+	 * @param voices The first List of Voices.
+	 * @param otherVoices The second List of Voices.
+	 * @return The result of the first comparison of two Voices which are not equal, or 0 if there is none.
+	 */
+	private static int compareVoices(List<Voice> voices, List<Voice> otherVoices) {
+		Iterator<Voice> others = otherVoices.iterator();
+		for (Voice voice : voices) {
+			int result = voice.compareTo(others.next());
+			if (result != 0) {
+				return result;
+			}
+		}
+
+		return 0;
+	}
 }
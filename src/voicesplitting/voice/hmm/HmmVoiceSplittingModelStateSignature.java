@@ -0,0 +1,98 @@
+package voicesplitting.voice.hmm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelStateSignature</code> holds all of the information about an
+ * {@link HmmVoiceSplittingModelState} which is used when scoring its future transitions. It is
+ * used as that state's recombination key.
+ * <p>
+ * For each {@link Voice} in the state, in order, this is the pitches of its last
+ * {@link HmmVoiceSplittingModelParameters#PITCH_HISTORY_LENGTH} notes (or all of them, if
+ * it has fewer than that), and the onset and offset times of its most recent note. It also holds the
+ * number of Voices the state has retired, if there is a {@link HmmVoiceSplittingModelTester#MAX_VOICES},
+ * since they count towards it.
+ * Two states with equal signatures will therefore score every future transition identically, and allow
+ * the same ones.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelStateSignature {
+
+	/**
+	 * The values of this signature. For each voice, this contains the number of pitches stored,
+	 * those pitches (most recent first), and the onset and offset times of its most recent note.
+	 */
+	private final long[] values;
+
+	/**
+	 * The number of Voices which the state has retired, or 0 if there is no maximum number of Voices.
+	 */
+	private final int numRetired;
+
+	/**
+	 * The hash code of this signature, computed on creation.
+	 */
+	private final int hashCode;
+
+	/**
+	 * Create the signature of the given Voices.
+	 *
+	 * @param voices The active Voices of the state whose signature we want.
+	 * @param numRetired {@link #numRetired}
+	 * @param params The parameters we are using.
+	 */
+	public HmmVoiceSplittingModelStateSignature(List<Voice> voices, int numRetired, HmmVoiceSplittingModelParameters params) {
+		long[] values = new long[voices.size() * (params.PITCH_HISTORY_LENGTH + 3)];
+		int index = 0;
+
+		for (Voice voice : voices) {
+			int countIndex = index++;
+
+			Voice node = voice;
+			for (int i = 0; i < params.PITCH_HISTORY_LENGTH && node != null; i++, node = node.getPrevious()) {
+				values[index++] = node.getMostRecentNote().getPitch();
+			}
+			values[countIndex] = index - countIndex - 1;
+
+			values[index++] = voice.getMostRecentNote().getOnsetTime();
+			values[index++] = voice.getMostRecentNote().getOffsetTime();
+		}
+
+		this.values = index == values.length ? values : Arrays.copyOf(values, index);
+		this.numRetired = numRetired;
+		hashCode = 31 * Arrays.hashCode(this.values) + numRetired;
+	}
+
+	/**
+	 * Return whether the given Object is equal to this one, which is only the case when it is also
+	 * an HmmVoiceSplittingModelStateSignature with the same values and number of retired Voices.
+	 *
+	 * @param other The object we are checking for equality.
+	 * @return True if the given Object is equal to this one. False otherwise.
+	 */
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof HmmVoiceSplittingModelStateSignature)) {
+			return false;
+		}
+
+		HmmVoiceSplittingModelStateSignature s = (HmmVoiceSplittingModelStateSignature) other;
+
+		return hashCode == s.hashCode && numRetired == s.numRetired && Arrays.equals(values, s.values);
+	}
+
+	/**
+	 * Get the hash code of this HmmVoiceSplittingModelStateSignature.
+	 *
+	 * @return {@link #hashCode}
+	 */
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+}
@@ -0,0 +1,454 @@
+package voicesplitting.voice.hmm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelStream</code> runs an {@link HmmVoiceSplittingModel} on notes as
+ * they arrive, rather than on a fully parsed song. Note On and Note Off events are passed to it in
+ * time order with {@link #noteOn(int, int, long, long, int)} and {@link #noteOff(int, long, long, int)},
+ * and it decides by itself when each onset group is complete.
+ * <p>
+ * An onset group is given to the model once some later event has been seen (so no more notes can
+ * join it) and all of its notes have been released (since the model scores each note's duration).
+ * After that, each of its notes is committed to a voice as soon as every hypothesis in the beam links
+ * it to the same previous note. If the hypotheses still disagree once {@link #maxLag} newer onset
+ * groups have been handled, the note is committed as in the best hypothesis, and any hypothesis which
+ * disagrees with it is dropped from the beam, so that later commits stay consistent.
+ * <p>
+ * Committed notes have their guessed voice set (see {@link MidiNote#getGuessedVoice()}), and can be
+ * retrieved in onset order with {@link #pollCommittedNotes()}. A note which begins a new voice gets
+ * a new voice number, and every other note gets the voice number of the note before it. Only the
+ * notes which are held, waiting for their onset group to be handled, or uncommitted are stored here.
+ * <p>
+ * Every {@link #RELEASE_INTERVAL} onset groups, the committed notes are cut off of the Voices of the
+ * model's hypotheses (see {@link HmmVoiceSplittingModel#releasePrefix(long)}), so that the memory used
+ * by the model does not grow with the length of the performance. Once that has happened, the model's
+ * hypotheses only hold the most recent notes of each voice, and the committed notes are the only
+ * record of the earlier ones.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelStream {
+
+	/**
+	 * The number of onset groups handled between each release of the committed notes from the model.
+	 */
+	public static final int RELEASE_INTERVAL = 256;
+
+	/**
+	 * The model which the complete onset groups are given to.
+	 */
+	private final HmmVoiceSplittingModel model;
+
+	/**
+	 * The maximum number of onset groups which can be handled after a note's own group before that
+	 * note is committed, even if the hypotheses disagree on it.
+	 */
+	private final int maxLag;
+
+	/**
+	 * The notes which have not yet been released, in the order they were pressed.
+	 */
+	private final LinkedList<MidiNote> activeNotes;
+
+	/**
+	 * The onset groups which have not yet been given to the {@link #model}, in time order.
+	 */
+	private final LinkedList<List<MidiNote>> unhandledGroups;
+
+	/**
+	 * The onset groups which have been given to the {@link #model} but still have uncommitted notes,
+	 * in time order. Each contains only its uncommitted notes.
+	 */
+	private final LinkedList<List<MidiNote>> uncommittedGroups;
+
+	/**
+	 * The notes which have been committed but not yet returned by {@link #pollCommittedNotes()}.
+	 */
+	private List<MidiNote> committedNotes;
+
+	/**
+	 * The time of the most recent event, in microseconds.
+	 */
+	private long time;
+
+	/**
+	 * The onset time of the most recent onset group given to the {@link #model}, in microseconds.
+	 */
+	private long lastHandledOnset;
+
+	/**
+	 * The number of onset groups given to the {@link #model} since committed notes were last released from it.
+	 */
+	private int numGroupsSinceRelease;
+
+	/**
+	 * The estimated total number of bytes released from the {@link #model} so far.
+	 */
+	private long numBytesReleased;
+
+	/**
+	 * The voice number to give to the next note which begins a new voice.
+	 */
+	private int nextVoice;
+
+	/**
+	 * The number of notes which have been committed because every hypothesis agreed on them.
+	 */
+	private int numAgreedNotes;
+
+	/**
+	 * The number of notes which have been committed because of the {@link #maxLag}, while some
+	 * hypotheses disagreed on them.
+	 */
+	private int numForcedNotes;
+
+	/**
+	 * Create a new stream on the given model.
+	 *
+	 * @param model {@link #model}. It should not have been given any notes yet.
+	 * @param maxLag {@link #maxLag}
+	 */
+	public HmmVoiceSplittingModelStream(HmmVoiceSplittingModel model, int maxLag) {
+		this.model = model;
+		this.maxLag = maxLag;
+
+		activeNotes = new LinkedList<MidiNote>();
+		unhandledGroups = new LinkedList<List<MidiNote>>();
+		uncommittedGroups = new LinkedList<List<MidiNote>>();
+		committedNotes = new ArrayList<MidiNote>();
+
+		time = Long.MIN_VALUE;
+		lastHandledOnset = Long.MIN_VALUE;
+		numGroupsSinceRelease = 0;
+		numBytesReleased = 0;
+		nextVoice = 0;
+		numAgreedNotes = 0;
+		numForcedNotes = 0;
+	}
+
+	/**
+	 * Process a Note On event.
+	 *
+	 * @param key The key pressed.
+	 * @param velocity The velocity of the press.
+	 * @param time The time of this event, in microseconds.
+	 * @param tick The midi tick of this event. For live input without a tempo map, this can be the time.
+	 * @param channel The midi channel this note came from.
+	 * @return The MidiNote we just created. Its guessed voice will be set once it is committed.
+	 */
+	public MidiNote noteOn(int key, int velocity, long time, long tick, int channel) {
+		advanceTo(time);
+		handleCompleteGroups();
+
+		MidiNote note = new MidiNote(key, velocity, time, tick, channel, -1);
+		activeNotes.add(note);
+
+		if (unhandledGroups.isEmpty() || unhandledGroups.getLast().get(0).getOnsetTime() != time) {
+			unhandledGroups.add(new ArrayList<MidiNote>());
+		}
+		unhandledGroups.getLast().add(note);
+
+		return note;
+	}
+
+	/**
+	 * Process a Note Off event. It releases the earliest held note with the given key and channel,
+	 * and is ignored if there is none.
+	 *
+	 * @param key The key released.
+	 * @param time The time of this event, in microseconds.
+	 * @param tick The midi tick of this event.
+	 * @param channel The midi channel this note came from.
+	 */
+	public void noteOff(int key, long time, long tick, int channel) {
+		advanceTo(time);
+
+		Iterator<MidiNote> iterator = activeNotes.iterator();
+		while (iterator.hasNext()) {
+			MidiNote note = iterator.next();
+
+			if (note.getPitch() == key && note.getCorrectVoice() == channel) {
+				iterator.remove();
+				note.close(time, tick);
+				break;
+			}
+		}
+
+		handleCompleteGroups();
+	}
+
+	/**
+	 * End the stream. Any notes which are still held are discarded (as in
+	 * {@link voicesplitting.parsing.NoteListGenerator}), every remaining onset group is given to
+	 * the {@link #model}, and all of the remaining notes are committed as in the best hypothesis.
+	 */
+	public void flush() {
+		for (MidiNote note : activeNotes) {
+			for (List<MidiNote> group : unhandledGroups) {
+				group.remove(note);
+			}
+		}
+		activeNotes.clear();
+
+		while (!unhandledGroups.isEmpty()) {
+			handleGroup(unhandledGroups.removeFirst());
+		}
+
+		commit(0);
+	}
+
+	/**
+	 * Move the stream's time to that of a new event. Any onset group before that time can no longer
+	 * receive notes.
+	 *
+	 * @param time The time of the new event, in microseconds.
+	 * @throws IllegalArgumentException If the given time is before the previous event.
+	 */
+	private void advanceTo(long time) {
+		if (time < this.time) {
+			throw new IllegalArgumentException("Events must be given in time order: " + time + " < " + this.time);
+		}
+
+		this.time = time;
+	}
+
+	/**
+	 * Give each complete onset group to the {@link #model}, from the first, until one is found which
+	 * is not complete. A group is complete when it is before the current {@link #time} and all of
+	 * its notes have been released.
+	 */
+	private void handleCompleteGroups() {
+		while (!unhandledGroups.isEmpty()) {
+			List<MidiNote> group = unhandledGroups.getFirst();
+
+			if (group.get(0).getOnsetTime() >= time) {
+				return;
+			}
+
+			for (MidiNote note : group) {
+				if (note.isActive()) {
+					return;
+				}
+			}
+
+			handleGroup(unhandledGroups.removeFirst());
+			commit(maxLag);
+
+			if (numGroupsSinceRelease >= RELEASE_INTERVAL) {
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Cut the committed notes off of the Voices of the {@link #model}'s hypotheses. Every note before
+	 * the first uncommitted onset group has been committed, and so every hypothesis agrees on it.
+	 */
+	private void release() {
+		long cutTime = uncommittedGroups.isEmpty() ? lastHandledOnset + 1 : uncommittedGroups.getFirst().get(0).getOnsetTime();
+
+		numBytesReleased += model.releasePrefix(cutTime);
+		numGroupsSinceRelease = 0;
+	}
+
+	/**
+	 * Give the given complete onset group to the {@link #model}.
+	 *
+	 * @param group The notes of the onset group. This may be empty, in which case it is skipped.
+	 */
+	private void handleGroup(List<MidiNote> group) {
+		if (group.isEmpty()) {
+			return;
+		}
+
+		// The same order as NoteListGenerator#getIncomingLists()
+		Collections.sort(group);
+		model.handleIncoming(group);
+		uncommittedGroups.add(new ArrayList<MidiNote>(group));
+
+		lastHandledOnset = group.get(0).getOnsetTime();
+		numGroupsSinceRelease++;
+	}
+
+	/**
+	 * Commit as many of the uncommitted notes as possible, in onset order. A note is committed if
+	 * every hypothesis links it to the same previous note, or if more than the given number of onset
+	 * groups have been handled after its own.
+	 *
+	 * @param lag The maximum number of onset groups which may remain uncommitted.
+	 */
+	private void commit(int lag) {
+		if (uncommittedGroups.isEmpty() || model.getHypotheses().isEmpty()) {
+			return;
+		}
+
+		List<HmmVoiceSplittingModelState> states = model.getHypotheses().getOrderedStates();
+		List<Map<MidiNote, MidiNote>> previousNotes = new ArrayList<Map<MidiNote, MidiNote>>(states.size());
+		long firstOnset = uncommittedGroups.getFirst().get(0).getOnsetTime();
+		for (HmmVoiceSplittingModelState state : states) {
+			previousNotes.add(getPreviousNotes(state, firstOnset));
+		}
+
+		boolean dropped = false;
+
+		while (!uncommittedGroups.isEmpty()) {
+			List<MidiNote> group = uncommittedGroups.getFirst();
+			boolean force = uncommittedGroups.size() > lag;
+
+			Iterator<MidiNote> iterator = group.iterator();
+			while (iterator.hasNext()) {
+				MidiNote note = iterator.next();
+				MidiNote previous = previousNotes.get(0).get(note);
+
+				if (agree(previousNotes, note, previous)) {
+					numAgreedNotes++;
+
+				} else if (force) {
+					// Keep only the hypotheses which agree with the best one
+					for (int i = states.size() - 1; i > 0; i--) {
+						if (previousNotes.get(i).get(note) != previous) {
+							states.remove(i);
+							previousNotes.remove(i);
+						}
+					}
+					dropped = true;
+					numForcedNotes++;
+
+				} else {
+					break;
+				}
+
+				note.setGuessedVoice(previous == null ? nextVoice++ : previous.getGuessedVoice());
+				committedNotes.add(note);
+				iterator.remove();
+			}
+
+			if (!group.isEmpty()) {
+				break;
+			}
+			uncommittedGroups.removeFirst();
+		}
+
+		if (dropped) {
+			model.retainHypotheses(states);
+		}
+	}
+
+	/**
+	 * Decide whether every hypothesis links the given note to the given previous note.
+	 *
+	 * @param previousNotes The previous note of each uncommitted note, in each hypothesis.
+	 * @param note The note we are checking.
+	 * @param previous The note before it in the best hypothesis, or null if it begins a voice there.
+	 * @return True if every hypothesis agrees. False otherwise.
+	 */
+	private static boolean agree(List<Map<MidiNote, MidiNote>> previousNotes, MidiNote note, MidiNote previous) {
+		for (Map<MidiNote, MidiNote> map : previousNotes) {
+			if (map.get(note) != previous) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Get the note before each of the given State's notes from the given onset time onwards, in its voice.
+	 * Only the ends of its voices are searched, so this does not depend on the length of the song.
+	 *
+	 * @param state The State we are searching.
+	 * @param firstOnset The onset time of the first note we want.
+	 * @return A Map from each note from the given time onwards to the note before it in its voice,
+	 * or to null if it begins its voice.
+	 */
+	private static Map<MidiNote, MidiNote> getPreviousNotes(HmmVoiceSplittingModelState state, long firstOnset) {
+		Map<MidiNote, MidiNote> previousNotes = new IdentityHashMap<MidiNote, MidiNote>();
+
+		for (Voice voice : state.getVoices()) {
+			for (Voice node = voice; node != null && node.getMostRecentNote().getOnsetTime() >= firstOnset; ) {
+				Voice previous = node.getPrevious();
+				previousNotes.put(node.getMostRecentNote(), previous == null ? null : previous.getMostRecentNote());
+				node = previous;
+			}
+		}
+
+		return previousNotes;
+	}
+
+	/**
+	 * Get the notes which have been committed since the last call to this method.
+	 *
+	 * @return The newly committed notes, in onset order, each with its guessed voice set.
+	 */
+	public List<MidiNote> pollCommittedNotes() {
+		List<MidiNote> notes = committedNotes;
+		committedNotes = new ArrayList<MidiNote>();
+		return notes;
+	}
+
+	/**
+	 * Get the number of notes which have been given to this stream but not yet committed.
+	 *
+	 * @return The number of notes which are held, waiting for their onset group to be handled, or uncommitted.
+	 */
+	public int getNumPendingNotes() {
+		int count = 0;
+
+		for (List<MidiNote> group : unhandledGroups) {
+			count += group.size();
+		}
+		for (List<MidiNote> group : uncommittedGroups) {
+			count += group.size();
+		}
+
+		return count;
+	}
+
+	/**
+	 * Get the number of notes which have been committed because every hypothesis agreed on them.
+	 *
+	 * @return {@link #numAgreedNotes}
+	 */
+	public int getNumAgreedNotes() {
+		return numAgreedNotes;
+	}
+
+	/**
+	 * Get the number of notes which have been committed because of the {@link #maxLag}, while some
+	 * hypotheses disagreed on them.
+	 *
+	 * @return {@link #numForcedNotes}
+	 */
+	public int getNumForcedNotes() {
+		return numForcedNotes;
+	}
+
+	/**
+	 * Get the estimated number of bytes of Voice nodes which have been released from the model so far.
+	 *
+	 * @return {@link #numBytesReleased}
+	 */
+	public long getNumBytesReleased() {
+		return numBytesReleased;
+	}
+
+	/**
+	 * Get the model which this stream gives its onset groups to.
+	 *
+	 * @return {@link #model}
+	 */
+	public HmmVoiceSplittingModel getModel() {
+		return model;
+	}
+}
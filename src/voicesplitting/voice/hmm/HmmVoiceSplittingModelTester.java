@@ -1,11 +1,17 @@
 package voicesplitting.voice.hmm;
 
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -22,7 +28,7 @@ import voicesplitting.parsing.NoteListGenerator;
 import voicesplitting.time.TimeTracker;
 import voicesplitting.utils.MidiNote;
 import voicesplitting.voice.Voice;
-import voicesplitting.voice.VoiceSplittingModel;
+import voicesplitting.voice.greedy.GreedyVoiceSplittingModel;
 
 /**
  * An <code>HmmVoiceSplittingModelTester</code> contains the {@link #main(String[])} method used
@@ -64,6 +70,94 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	 */
 	private static boolean USE_CHANNEL = true;
 
+	/**
+	 * True if we want each song's hypothesis states to be expanded in parallel. False otherwise.
+	 * <p>
+	 * False by default, but can be set to true by using the <code>-P</code> flag.
+	 */
+	private static boolean PARALLEL = false;
+
+	/**
+	 * True if we want to recombine equivalent hypothesis states. False otherwise.
+	 * <p>
+	 * False by default, but can be set to true by using the <code>-R</code> flag.
+	 */
+	private static boolean RECOMBINE = false;
+
+	/**
+	 * True if we want each song's Voices to be stored in a {@link voicesplitting.voice.VoiceArena}. False otherwise.
+	 * <p>
+	 * False by default, but can be set to true by using the <code>-A</code> flag.
+	 */
+	private static boolean USE_ARENA = false;
+
+	/**
+	 * The number of milliseconds within which each song should be handled, or 0 for no time budget.
+	 * When a song's budget forces its search to be narrowed, this is reported.
+	 * <p>
+	 * 0 by default, but can be set by using the <code>-d</code> flag.
+	 */
+	private static long TIME_BUDGET_MILLIS = 0;
+
+	/**
+	 * The maximum lag, in onset groups, of an {@link HmmVoiceSplittingModelStream} through which each song's
+	 * notes are fed one event at a time, or -1 to run on each song's onset groups directly.
+	 * <p>
+	 * -1 by default, but can be set by using the <code>-L</code> flag.
+	 */
+	private static int STREAM_LAG = -1;
+
+	/**
+	 * True if we want to use a {@link GreedyVoiceSplittingModel} instead of an {@link HmmVoiceSplittingModel}.
+	 * False otherwise.
+	 * <p>
+	 * False by default, but can be set to true by using the <code>-q</code> flag.
+	 */
+	private static boolean GREEDY = false;
+
+	/**
+	 * True if we want to split each song at its long silences, and run a separate model on each of the
+	 * resulting segments in parallel (see {@link HmmVoiceSplittingModelSegmenter}). False otherwise.
+	 * <p>
+	 * False by default, but can be set to true by using the <code>-G</code> flag.
+	 */
+	private static boolean SEGMENT = false;
+
+	/**
+	 * The number of onset groups in each window when cutting each song into overlapping windows which are
+	 * run in parallel (see {@link HmmVoiceSplittingModelWindower}), or 0 to not use windows.
+	 * <p>
+	 * 0 by default, but can be set by using the <code>-W</code> flag.
+	 */
+	private static int WINDOW_SIZE = 0;
+
+	/**
+	 * The number of onset groups which each window shares with the one before it, when using windows.
+	 * <p>
+	 * {@link #WINDOW_OVERLAP_DEFAULT} by default, but can be set by using the <code>-O</code> flag.
+	 */
+	private static int WINDOW_OVERLAP = -1;
+
+	/**
+	 * The default value of {@link #WINDOW_OVERLAP}, as a fraction of {@link #WINDOW_SIZE}.
+	 */
+	private static final double WINDOW_OVERLAP_DEFAULT = 0.25;
+
+	/**
+	 * The number of segments or windows of each song which are run at once.
+	 * <p>
+	 * {@link #NUM_PROCS} by default, but can be set by using the <code>-k</code> flag.
+	 */
+	private static int NUM_WORKERS = NUM_PROCS;
+
+	/**
+	 * True if we want to compare the results of running in segments or windows against those of running a
+	 * single model over each song. False otherwise.
+	 * <p>
+	 * False by default, but can be set to true by using the <code>-c</code> flag.
+	 */
+	private static boolean COMPARE = false;
+
 	/**
 	 * A {@link NoteListGenerator} for each of the songs we are evaluating.
 	 */
@@ -77,6 +171,11 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	 */
 	private static List<List<List<MidiNote>>> goldStandard;
 
+	/**
+	 * The wall-clock time taken by the main run, in milliseconds.
+	 */
+	private static long runMillis;
+
 	/**
 	 * A List of the Files we're reading MIDI data in from.
 	 */
@@ -116,6 +215,11 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 		double GSM = HmmVoiceSplittingModelParameters.GAP_STD_MICROS_DEFAULT;
 		double PS = HmmVoiceSplittingModelParameters.PITCH_STD_DEFAULT;
 		double MGS = HmmVoiceSplittingModelParameters.MIN_GAP_SCORE_DEFAULT;
+		double BM = HmmVoiceSplittingModelParameters.BEAM_MARGIN_DEFAULT;
+		int MBS = HmmVoiceSplittingModelParameters.MIN_BEAM_SIZE_DEFAULT;
+		double PW = HmmVoiceSplittingModelParameters.PITCH_WINDOW_DEFAULT;
+		double RGM = HmmVoiceSplittingModelParameters.RETIREMENT_GAP_MICROS_DEFAULT;
+		boolean EC = HmmVoiceSplittingModelParameters.EXACT_CHORDS_DEFAULT;
 
 		int steps = 5;
 
@@ -165,6 +269,21 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 						VERBOSE = true;
 						break;
 
+					case 'P':
+						// Parallel
+						PARALLEL = true;
+						break;
+
+					case 'R':
+						// Recombine
+						RECOMBINE = true;
+						break;
+
+					case 'A':
+						// Voice arena
+						USE_ARENA = true;
+						break;
+
 					case 't':
 						// Tune
 						tune = true;
@@ -246,6 +365,116 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 						}
 						break;
 
+					case 'a':
+						// Adaptive beam margin
+						try {
+							BM = Double.parseDouble(args[++i]);
+						} catch (Exception e) {
+							argumentError("-a");
+							return;
+						}
+						break;
+
+					case 's':
+						// Minimum adaptive beam size
+						try {
+							MBS = Integer.parseInt(args[++i]);
+						} catch (Exception e) {
+							argumentError("-s");
+							return;
+						}
+						break;
+
+					case 'x':
+						// Pitch window
+						try {
+							PW = Double.parseDouble(args[++i]);
+						} catch (Exception e) {
+							argumentError("-x");
+							return;
+						}
+						break;
+
+					case 'z':
+						// Voice retirement
+						try {
+							RGM = Double.parseDouble(args[++i]);
+						} catch (Exception e) {
+							argumentError("-z");
+							return;
+						}
+						break;
+
+					case 'E':
+						// Exact chord search
+						EC = true;
+						break;
+
+					case 'd':
+						// Time budget (deadline)
+						try {
+							TIME_BUDGET_MILLIS = Long.parseLong(args[++i]);
+						} catch (Exception e) {
+							argumentError("-d");
+							return;
+						}
+						break;
+
+					case 'q':
+						// Greedy (quick)
+						GREEDY = true;
+						break;
+
+					case 'G':
+						// Segment at silences
+						SEGMENT = true;
+						break;
+
+					case 'W':
+						// Window size
+						try {
+							WINDOW_SIZE = Integer.parseInt(args[++i]);
+						} catch (Exception e) {
+							argumentError("-W");
+							return;
+						}
+						break;
+
+					case 'O':
+						// Window overlap
+						try {
+							WINDOW_OVERLAP = Integer.parseInt(args[++i]);
+						} catch (Exception e) {
+							argumentError("-O");
+							return;
+						}
+						break;
+
+					case 'k':
+						// Number of workers
+						try {
+							NUM_WORKERS = Integer.parseInt(args[++i]);
+						} catch (Exception e) {
+							argumentError("-k");
+							return;
+						}
+						break;
+
+					case 'c':
+						// Compare
+						COMPARE = true;
+						break;
+
+					case 'L':
+						// Streaming with a maximum lag
+						try {
+							STREAM_LAG = Integer.parseInt(args[++i]);
+						} catch (Exception e) {
+							argumentError("-L");
+							return;
+						}
+						break;
+
 					case 'M':
 						// Maximum number of voices
 						try {
@@ -263,6 +492,14 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 			}
 		}
 
+		if (WINDOW_OVERLAP < 0) {
+			WINDOW_OVERLAP = (int) (WINDOW_SIZE * WINDOW_OVERLAP_DEFAULT);
+		}
+		if (WINDOW_SIZE < 0 || (WINDOW_SIZE > 0 && WINDOW_OVERLAP >= WINDOW_SIZE) || NUM_WORKERS <= 0) {
+			argumentError("-W, -O, or -k out of range (the overlap must be less than the window size)");
+			return;
+		}
+
 		songs = getSongs(files);
 
 		HmmVoiceSplittingModelParameters params = null;
@@ -272,20 +509,27 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 		} else {
 			params = new HmmVoiceSplittingModelParameters(BS, NVP, PHL, GSM, PS, MGS);
 		}
+		params = params.withAdaptiveBeam(BM, MBS).withPitchWindow(PW).withRetirementGap(RGM).withExactChords(EC);
 
 		if (tune) {
-			HmmVoiceSplittingModelParameters best = tune(steps);
+			HmmVoiceSplittingModelParameters best = tune(steps, params);
 			if (best != null) {
 				params = best;
 			}
 		}
 
 		if (run || extract || (dir != null)) {
+			long start = System.nanoTime();
 			HmmVoiceSplittingModelTesterReturn result = runTest(params, extract, dir);
+			runMillis = (System.nanoTime() - start) / 1000000;
 
 			if (run) {
 				System.out.println(result);
 			}
+
+			if (run && COMPARE) {
+				compare(params, result);
+			}
 		}
 
 		if (!tune && !run && !extract && dir == null) {
@@ -294,15 +538,32 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	}
 
 	/**
-	 * Tune the {@link HmmVoiceSplittingModelParameters}.
+	 * Get a copy of the given parameters with the search settings of the given other parameters: their adaptive
+	 * beam, pitch window, retirement gap, and whether they try every assignment of each chord.
+	 *
+	 * @param params The parameters to copy.
+	 * @param settings The parameters whose search settings we want.
+	 * @return A copy of the given parameters with the search settings of the other ones.
+	 */
+	private static HmmVoiceSplittingModelParameters withSearchSettings(HmmVoiceSplittingModelParameters params,
+			HmmVoiceSplittingModelParameters settings) {
+		return params.withAdaptiveBeam(settings.BEAM_MARGIN, settings.MIN_BEAM_SIZE).withPitchWindow(settings.PITCH_WINDOW)
+				.withRetirementGap(settings.RETIREMENT_GAP_MICROS).withExactChords(settings.EXACT_CHORDS);
+	}
+
+	/**
+	 * Tune the {@link HmmVoiceSplittingModelParameters}. Every set of parameters tried uses the search settings
+	 * of the given ones (see {@link #withSearchSettings(HmmVoiceSplittingModelParameters, HmmVoiceSplittingModelParameters)}),
+	 * so that tuning is done under the same search as the run which uses its result.
 	 *
 	 * @param steps The number of steps to make in our grid search.
+	 * @param settings The parameters given on the command line, whose search settings we use.
 	 * @return The best {@link HmmVoiceSplittingModelParameters} we found.
 	 *
 	 * @throws ExecutionException If there is some generic execution exception.
 	 * @throws InterruptedException If there is some interrupt received.
 	 */
-	private static HmmVoiceSplittingModelParameters tune(int steps) throws InterruptedException, ExecutionException {
+	private static HmmVoiceSplittingModelParameters tune(int steps, HmmVoiceSplittingModelParameters settings) throws InterruptedException, ExecutionException {
 		// min/max values
 		double bsMin = 10, bsMax = 11;
 		double nvpMin = 1E-9, nvpMax = 1.0E-7;
@@ -329,7 +590,8 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 					for (double PS = psMin; psMax - PS > EPSILON; PS += psStep) {
 						for (double MGS = mgsMin; mgsMax - MGS > EPSILON; MGS += mgsStep) {
 							for (double BS = bsMin; bsMax - BS > EPSILON; BS += bsStep) {
-								testList.add(new HmmVoiceSplittingModelParameters((int) Math.round(BS), NVP, (int)Math.round(PHL), GSM, PS, MGS));
+								testList.add(withSearchSettings(
+										new HmmVoiceSplittingModelParameters((int) Math.round(BS), NVP, (int)Math.round(PHL), GSM, PS, MGS), settings));
 							}
 						}
 					}
@@ -367,6 +629,49 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	    return best.getParameters();
 	}
 
+	/**
+	 * Run a single {@link HmmVoiceSplittingModel} over each song, and print a report comparing its
+	 * accuracy and speed against those of the given greedy, segmented, or windowed run.
+	 *
+	 * @param params The {@link HmmVoiceSplittingModelParameters} we want to use for this run.
+	 * @param result The result of the greedy, segmented, or windowed run, which took {@link #runMillis}.
+	 * @throws InvalidMidiDataException
+	 * @throws IOException
+	 * @throws InterruptedException If there is some interrupt received.
+	 * @throws ExecutionException If there is some generic execution exception.
+	 */
+	private static void compare(HmmVoiceSplittingModelParameters params, HmmVoiceSplittingModelTesterReturn result)
+			throws InvalidMidiDataException, IOException, InterruptedException, ExecutionException {
+		if (!GREEDY && (STREAM_LAG >= 0 || (!SEGMENT && WINDOW_SIZE == 0))) {
+			System.err.println("Warning: -c only compares runs with -q, or with -G or -W (and without -L).");
+			return;
+		}
+
+		String name = GREEDY ? "Greedy" : SEGMENT ? "Segmented" : "Windowed (" + WINDOW_SIZE + " onsets, overlap " + WINDOW_OVERLAP + ")";
+		long millis = runMillis;
+
+		boolean greedy = GREEDY;
+		boolean segment = SEGMENT;
+		int windowSize = WINDOW_SIZE;
+		GREEDY = false;
+		SEGMENT = false;
+		WINDOW_SIZE = 0;
+
+		long start = System.nanoTime();
+		HmmVoiceSplittingModelTesterReturn sequential = runTest(params, false, null);
+		long sequentialMillis = (System.nanoTime() - start) / 1000000;
+
+		GREEDY = greedy;
+		SEGMENT = segment;
+		WINDOW_SIZE = windowSize;
+
+		System.out.println("COMPARISON:");
+		System.out.println("Sequential: F1=" + sequential.getF1() + " in " + sequentialMillis + " ms");
+		System.out.println(name + ": F1=" + result.getF1() + " in " + millis + " ms" + (greedy ? "" : " with " + NUM_WORKERS + " workers"));
+		System.out.println("F1 change=" + (result.getF1() - sequential.getF1()) + " speedup=" +
+				(millis == 0 ? "-" : String.valueOf(((double) sequentialMillis) / millis)));
+	}
+
 	/**
 	 * Run the {@link HmmVoiceSplittingModel} on the given songs.
 	 *
@@ -378,8 +683,11 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	 * achieved accuracy.
 	 * @throws InvalidMidiDataException
 	 * @throws IOException
+	 * @throws InterruptedException If there is some interrupt received while running the segments of a song.
+	 * @throws ExecutionException If some segment of a song throws an exception.
 	 */
-	private static HmmVoiceSplittingModelTesterReturn runTest(HmmVoiceSplittingModelParameters params, boolean extract, String dir) throws InvalidMidiDataException, IOException {
+	private static HmmVoiceSplittingModelTesterReturn runTest(HmmVoiceSplittingModelParameters params, boolean extract, String dir)
+			throws InvalidMidiDataException, IOException, InterruptedException, ExecutionException {
 		double voiceAccSum = 0;
 		double voiceAccSongSum = 0;
 
@@ -387,23 +695,107 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 		double precision = 0;
 		int songIndex = -1;
 
+		Writer out = extract ? new BufferedWriter(new OutputStreamWriter(System.out)) : null;
+
 		for (NoteListGenerator nlg : songs) {
 			List<List<MidiNote>> gS = goldStandard.get(++songIndex);
 			if (VERBOSE) {
 				System.out.println(files.get(songIndex).getAbsolutePath());
 			}
-			// The size of this Set will be the true number of voices in this song.
-			Set<Integer> voiceCount = new HashSet<Integer>();
-			for (MidiNote note : nlg.getNoteList()) {
-				voiceCount.add(note.getCorrectVoice());
-			}
+			List<List<MidiNote>> incomingLists = nlg.getIncomingLists();
 
 			voiceAccSongSum = 0;
-			VoiceSplittingModel vs = new HmmVoiceSplittingModel(params);
+			List<Voice> voices = null;
+
+			if (GREEDY) {
+				GreedyVoiceSplittingModel gs = new GreedyVoiceSplittingModel(params);
+				performInference(gs, incomingLists);
+
+				if (VERBOSE) {
+					System.out.println("Greedy: " + (gs.getNumOnsets() == 0 ? 0 : gs.getTotalNanos() / 1000 / gs.getNumOnsets()) +
+							" microseconds per onset");
+				}
+
+				if (!gs.getHypotheses().isEmpty()) {
+					voices = gs.getHypotheses().first().getVoices();
+				}
 
-			performInference(vs, nlg);
+			} else if (SEGMENT && STREAM_LAG < 0) {
+				HmmVoiceSplittingModelSegmenter segmenter = new HmmVoiceSplittingModelSegmenter(params, PARALLEL, RECOMBINE, USE_ARENA, NUM_WORKERS);
+				voices = segmenter.run(incomingLists);
 
-			if (vs.getHypotheses().isEmpty()) {
+				if (VERBOSE) {
+					System.out.println("Segments: " + segmenter.getNumSegments());
+				}
+
+			} else if (WINDOW_SIZE > 0 && STREAM_LAG < 0) {
+				HmmVoiceSplittingModelWindower windower = new HmmVoiceSplittingModelWindower(params, PARALLEL, RECOMBINE, USE_ARENA,
+						WINDOW_SIZE, WINDOW_OVERLAP, NUM_WORKERS);
+				voices = windower.run(incomingLists);
+
+				if (VERBOSE) {
+					System.out.println("Windows: " + windower.getNumWindows() + ", " + windower.getNumAgreedNotes() + " of " +
+							windower.getNumOverlapNotes() + " overlap notes kept in agreeing voices");
+				}
+
+			} else {
+				HmmVoiceSplittingModel vs = new HmmVoiceSplittingModel(params, PARALLEL, RECOMBINE, USE_ARENA);
+				if (TIME_BUDGET_MILLIS > 0) {
+					vs.setTimeBudget(TIME_BUDGET_MILLIS, incomingLists.size());
+				}
+
+				HmmVoiceSplittingModelStream stream = null;
+				List<MidiNote> notes = null;
+				if (STREAM_LAG >= 0) {
+					stream = new HmmVoiceSplittingModelStream(vs, STREAM_LAG);
+					notes = performInference(stream, nlg.getNoteList());
+
+					// The stream creates its own notes, so they are evaluated against gold standard voices of them
+					gS = getGoldStandardVoices(notes);
+
+				} else {
+					performInference(vs, incomingLists);
+				}
+
+				if (vs.isDegraded() && !VERBOSE) {
+					System.err.println("Warning: Time budget forced a narrower search on " + vs.getNumDegradedOnsets() + " of " +
+							incomingLists.size() + " onsets of " + files.get(songIndex).getAbsolutePath());
+				}
+
+				if (VERBOSE) {
+					if (RECOMBINE) {
+						System.out.println("Recombinations: " + vs.getNumRecombinations());
+					}
+					System.out.println("Score cache: " + vs.getNumCacheHits() + " hits, " + vs.getNumCacheMisses() + " misses");
+					if (params.isBeamAdaptive() || TIME_BUDGET_MILLIS > 0) {
+						System.out.println("Beam widths: mean " + vs.getMeanBeamWidth() + ", min " + vs.getMinBeamWidth() + ", max " +
+								vs.getMaxBeamWidth() + " over " + vs.getNumHandledOnsets() + " onsets");
+					}
+					if (TIME_BUDGET_MILLIS > 0) {
+						System.out.println("Time budget: " + (vs.isDegraded() ? "degraded" : "not degraded") + " (" +
+								vs.getNumDegradedOnsets() + " of " + incomingLists.size() + " onsets narrowed)");
+					}
+					if (params.hasRetirement() && !vs.getHypotheses().isEmpty()) {
+						HmmVoiceSplittingModelState best = vs.getHypotheses().first();
+						System.out.println("Retired voices: " + best.getNumRetiredVoices() + " of " + best.getVoices().size());
+					}
+					if (stream != null) {
+						System.out.println("Stream: " + stream.getNumAgreedNotes() + " notes committed by agreement, " +
+								stream.getNumForcedNotes() + " forced by the maximum lag, " + stream.getNumBytesReleased() + " bytes of voices released");
+					}
+					if (USE_ARENA) {
+						System.out.println("Voice arena: " + vs.getVoiceArena().getNumLiveNodes() + " live nodes, " +
+								vs.getVoiceArena().getNumReclaimedNodes() + " reclaimed, capacity " + vs.getVoiceArena().getCapacity());
+					}
+				}
+
+				if (!vs.getHypotheses().isEmpty()) {
+					// A stream's hypotheses no longer hold the notes which it has released
+					voices = stream == null ? vs.getHypotheses().first().getVoices() : getCommittedVoices(notes, params);
+				}
+			}
+
+			if (voices == null) {
 				System.err.println("Error: No result found.");
 
 				if (MAX_VOICES != Integer.MAX_VALUE) {
@@ -412,16 +804,24 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 
 				continue;
 			}
-			List<Voice> voices = vs.getHypotheses().first().getVoices();
 
 			if (extract) {
-				System.out.println(getExtractString(voices, songIndex));
+				writeExtract(voices, songIndex, out);
+				out.flush();
 			}
 
 			int songTruePositives = 0;
 			int songFalsePositives = 0;
 			int songNoteCount = 0;
 
+			// The size of this Set will be the true number of voices in this song.
+			Set<Integer> voiceCount = new HashSet<Integer>();
+			for (List<MidiNote> goldVoice : gS) {
+				for (MidiNote note : goldVoice) {
+					voiceCount.add(note.getCorrectVoice());
+				}
+			}
+
 			for (Voice voice : voices) {
 				int voiceNumNotes = voice.getNumNotes();
 				int voiceCorrect = voice.getNumNotesCorrect();
@@ -483,81 +883,94 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	}
 
 	/**
-	 * Get the extracted voices as a String.
-	 *
-	 * @param voices The voices returned from voice separation.
-	 * @param songId The index of the song. Used to disambiguate in case multiple songs are being split at once.
+	 * Get the Voices of the given notes, which have all been committed by an {@link HmmVoiceSplittingModelStream}.
 	 *
-	 * @return The print out of the extracted voices in the following format:
-	 *         songID noteID voiceID onsetTime(microseconds) offsetTime(microseconds) pitch velocity
+	 * @param notes The notes, in time order, each with its guessed voice set.
+	 * @param params The parameters we are using.
+	 * @return The Voices of the given notes, indexed by their guessed voice.
 	 */
-	private static String getExtractString(List<Voice> voices, int songId) {
-		StringBuilder sb = new StringBuilder();
+	private static List<Voice> getCommittedVoices(List<MidiNote> notes, HmmVoiceSplittingModelParameters params) {
+		List<Voice> voices = new ArrayList<Voice>();
 
-		int[] voiceIndex = new int[voices.size()];
-		int noteId = 0;
+		for (MidiNote note : notes) {
+			while (voices.size() <= note.getGuessedVoice()) {
+				voices.add(null);
+			}
 
-		while (!finished(voices, voiceIndex)) {
-			int voiceId = getNextVoiceIndex(voices, voiceIndex);
-			MidiNote note = voices.get(voiceId).getNotes().get(voiceIndex[voiceId]++);
-
-			sb.append(songId).append(' ');
-			sb.append(noteId++).append(' ');
-			sb.append(voiceId).append(' ');
-			sb.append(note.getOnsetTime()).append(' ');
-			sb.append(note.getOffsetTime()).append(' ');
-			sb.append(note.getPitch()).append(' ');
-			sb.append(note.getVelocity()).append('\n');
+			voices.set(note.getGuessedVoice(), new Voice(note, voices.get(note.getGuessedVoice()), params));
 		}
 
-		sb.deleteCharAt(sb.length() - 1);
-		return sb.toString();
+		return voices;
 	}
 
 	/**
-	 * Return if the voices are finished printing or not.
+	 * Get the gold standard voices of the given notes, as {@link EventParser#getGoldStandardVoices()}
+	 * would return them: one ordered List for each correct voice, indexed by that voice.
+	 * <p>
+	 * The notes are not sorted again, since their guessed voices may have been set, which would change
+	 * the order of otherwise identical notes.
 	 *
-	 * @param voices A List of the voices.
-	 * @param voiceIndex The current index of the note we need to print next for each voice.
-	 * @return True if there are no notes left to print. False otherwise.
-	 */
-	private static boolean finished(List<Voice> voices, int[] voiceIndex) {
-		for (int i = 0; i < voices.size(); i++) {
-			if (voices.get(i).getNumNotes() != voiceIndex[i]) {
-				// There is a note left in this voice
-				return false;
+	 * @param notes The notes of a song, in time order.
+	 * @return The gold standard voices of the given notes.
+	 */
+	private static List<List<MidiNote>> getGoldStandardVoices(List<MidiNote> notes) {
+		List<List<MidiNote>> goldStandard = new ArrayList<List<MidiNote>>();
+
+		for (MidiNote note : notes) {
+			while (goldStandard.size() <= note.getCorrectVoice()) {
+				goldStandard.add(new ArrayList<MidiNote>());
 			}
+			goldStandard.get(note.getCorrectVoice()).add(note);
 		}
 
-		// There are no notes left
-		return true;
+		return goldStandard;
 	}
 
 	/**
-	 * Return the index of the voice containing the unprinted note with the lowest onset time.
+	 * Write out the extracted voices, one note per line, in order of onset time (with ties broken by voice index).
+	 * Each line has the following format:
+	 *         songID noteID voiceID onsetTime(microseconds) offsetTime(microseconds) pitch velocity
+	 * <p>
+	 * Each voice's notes are materialized once, and the voices are merged with a heap, so this takes
+	 * O(n log v) time for n notes in v voices.
 	 *
-	 * @param voices A List of the voices.
-	 * @param voiceIndex The current index of the note we need to print next for each voice.
-	 * @return The voice containing the unprinted note with the lowest onset time.
-	 */
-	private static int getNextVoiceIndex(List<Voice> voices, int[] voiceIndex) {
-		int index = -1;
-		long onsetTime = -1L;
-
-		for (int i = 0; i < voices.size(); i++) {
-			if (voices.get(i).getNumNotes() != voiceIndex[i]) {
-				// There is a note left in this voice
-				MidiNote note = voices.get(i).getNotes().get(voiceIndex[i]);
-
-				if (index == -1 || note.getOnsetTime() < onsetTime) {
-					// This is the first found note or it occurs before the one we've found already
-					index = i;
-					onsetTime = note.getOnsetTime();
-				}
+	 * @param voices The voices returned from voice separation.
+	 * @param songId The index of the song. Used to disambiguate in case multiple songs are being split at once.
+	 * @param out The Writer to write to. It is not flushed here.
+	 * @throws IOException If the Writer throws one.
+	 */
+	private static void writeExtract(List<Voice> voices, int songId, Writer out) throws IOException {
+		final MidiNote[][] voiceNotes = new MidiNote[voices.size()][];
+		final int[] voiceIndex = new int[voices.size()];
+
+		PriorityQueue<Integer> queue = new PriorityQueue<Integer>(Math.max(voices.size(), 1), new Comparator<Integer>() {
+			@Override
+			public int compare(Integer v1, Integer v2) {
+				int result = Long.compare(voiceNotes[v1][voiceIndex[v1]].getOnsetTime(), voiceNotes[v2][voiceIndex[v2]].getOnsetTime());
+				return result != 0 ? result : Integer.compare(v1, v2);
+			}
+		});
+
+		for (int voiceId = 0; voiceId < voiceNotes.length; voiceId++) {
+			voiceNotes[voiceId] = voices.get(voiceId).getNotes().toArray(new MidiNote[0]);
+
+			if (voiceNotes[voiceId].length > 0) {
+				queue.add(voiceId);
 			}
 		}
 
-		return index;
+		int noteId = 0;
+		while (!queue.isEmpty()) {
+			int voiceId = queue.poll();
+			MidiNote note = voiceNotes[voiceId][voiceIndex[voiceId]++];
+
+			out.write(songId + " " + noteId++ + " " + voiceId + " " + note.getOnsetTime() + " " + note.getOffsetTime() + " " +
+					note.getPitch() + " " + note.getVelocity() + "\n");
+
+			if (voiceIndex[voiceId] < voiceNotes[voiceId].length) {
+				queue.add(voiceId);
+			}
+		}
 	}
 
 	/**
@@ -600,11 +1013,99 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 	 * @param nlg The NoteListGenerator which will give us the incoming note lists.
 	 */
 	public static void performInference(MidiModel model, NoteListGenerator nlg) {
-		for (List<MidiNote> incoming : nlg.getIncomingLists()) {
+		performInference(model, nlg.getIncomingLists());
+	}
+
+	/**
+	 * Perform inference on the given model.
+	 *
+	 * @param model The model on which we want to perform inference.
+	 * @param incomingLists The incoming note lists, in time order, as returned by
+	 * {@link NoteListGenerator#getIncomingLists()}.
+	 */
+	public static void performInference(MidiModel model, List<List<MidiNote>> incomingLists) {
+		for (List<MidiNote> incoming : incomingLists) {
 			model.handleIncoming(incoming);
 		}
 	}
 
+	/**
+	 * Perform inference by feeding the Note On and Note Off events of the given notes into the given stream
+	 * in time order, as if they were being played live, and then flushing it.
+	 *
+	 * @param stream The stream on which we want to perform inference.
+	 * @param songNotes The notes of the song to feed into the stream, in time order.
+	 * @return The MidiNotes created by the stream, in the same order as the given ones.
+	 */
+	public static List<MidiNote> performInference(HmmVoiceSplittingModelStream stream, final List<MidiNote> songNotes) {
+		MidiNote[] notes = new MidiNote[songNotes.size()];
+
+		// Event 2 * i is the Note On of note i, and 2 * i + 1 its Note Off
+		Integer[] events = new Integer[2 * notes.length];
+		for (int event = 0; event < events.length; event++) {
+			events[event] = event;
+		}
+
+		Arrays.sort(events, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer e1, Integer e2) {
+				int result = Long.compare(getTime(e1), getTime(e2));
+				if (result != 0) {
+					return result;
+				}
+
+				result = Integer.compare(getPhase(e1), getPhase(e2));
+				if (result != 0) {
+					return result;
+				}
+
+				return Integer.compare(e1, e2);
+			}
+
+			/**
+			 * Get the time of the given event.
+			 *
+			 * @param event The event.
+			 * @return The time of the given event, in microseconds.
+			 */
+			private long getTime(int event) {
+				MidiNote note = songNotes.get(event >> 1);
+				return (event & 1) == 0 ? note.getOnsetTime() : note.getOffsetTime();
+			}
+
+			/**
+			 * Get the order of the given event among those at the same time: Note Offs of earlier notes,
+			 * then Note Ons, then Note Offs of notes with no duration.
+			 *
+			 * @param event The event.
+			 * @return The phase of the given event.
+			 */
+			private int getPhase(int event) {
+				if ((event & 1) == 0) {
+					return 1;
+				}
+
+				MidiNote note = songNotes.get(event >> 1);
+				return note.getOnsetTime() == note.getOffsetTime() ? 2 : 0;
+			}
+		});
+
+		for (int event : events) {
+			MidiNote note = songNotes.get(event >> 1);
+
+			if ((event & 1) == 0) {
+				notes[event >> 1] = stream.noteOn(note.getPitch(), note.getVelocity(), note.getOnsetTime(), note.getOnsetTick(),
+						note.getCorrectVoice());
+
+			} else {
+				stream.noteOff(note.getPitch(), note.getOffsetTime(), note.getOffsetTick(), note.getCorrectVoice());
+			}
+		}
+
+		stream.flush();
+		return Arrays.asList(notes);
+	}
+
 	/**
 	 * Get and return a List of every File beneath the given one recursively.
 	 *
@@ -648,7 +1149,37 @@ public class HmmVoiceSplittingModelTester implements Callable<HmmVoiceSplittingM
 				sb.append(" The files will be saved in the DIR directory.\n");
 		sb.append("-e = Extract the separated voices in the following format: songID noteID voiceID onsetTime(microseconds) offsetTime(microseconds) pitch velocity\n");
 		sb.append("-v = Verbose (print out each song and each individual voice when running)\n");
-		sb.append("-T = Use tracks as correct voice (instead of channels)\n\n");
+		sb.append("-T = Use tracks as correct voice (instead of channels)\n");
+		sb.append("-P = Expand each song's hypotheses in parallel (gives the same results, but faster on long songs)\n");
+		sb.append("-A = Store each song's voices in a compact arena (gives the same results, with much less garbage collection)\n");
+		sb.append("-q = Use the low-latency greedy model, which keeps a single hypothesis and assigns each chord by its most likely");
+				sb.append(" matching. Less accurate, but much faster. All SEARCH options are ignored\n\n");
+
+		sb.append("SEARCH (with -r, -e, or -w):\n");
+		sb.append("-R = Recombine hypotheses which will score all future notes identically, keeping only the best one\n");
+		sb.append("-a DOUBLE = Use an adaptive beam, keeping only hypotheses within DOUBLE of the best log probability");
+				sb.append(" (at most the Beam Size of them)\n");
+		sb.append("-s INT = Keep at least INT hypotheses when using an adaptive beam (default = " + HmmVoiceSplittingModelParameters.MIN_BEAM_SIZE_DEFAULT + ")\n");
+		sb.append("-x DOUBLE = Only consider adding each note into the voices whose weighted pitch is within DOUBLE Pitch Stds of its own");
+				sb.append(" (default = unlimited)\n");
+		sb.append("-z MICROS = Retire each voice once it has been silent for MICROS microseconds (and its gap score is minimal),");
+				sb.append(" so it is never scored again. A retired voice can no longer be continued, no note is penalized for being out of");
+				sb.append(" pitch order with it, and new voices are placed among the active voices only. It still counts towards -M");
+				sb.append(" (default = never)\n");
+		sb.append("-E = Try every assignment of each chord's notes to voices. By default, chords of at least ");
+				sb.append(HmmVoiceSplittingModelChordSolver.MIN_CHORD_SIZE + " notes only try as many as could fit in the beam (approximate, but");
+				sb.append(" polynomial)\n");
+		sb.append("-d MILLIS = Handle each song within MILLIS milliseconds, narrowing the search if needed. Songs on which the search");
+				sb.append(" was narrowed are reported\n");
+		sb.append("-L INT = Feed each song's notes into a stream one event at a time, as if played live, committing each note");
+				sb.append(" once all hypotheses agree on it or INT newer onsets have been handled\n");
+		sb.append("-G = Split each song at its long silences and run each segment in parallel, joining voices across them by pitch.");
+				sb.append(" Ignored with -L, and -d does not apply\n");
+		sb.append("-W INT = Cut each song into windows of INT onsets and run each window in parallel, reconciling voices where");
+				sb.append(" consecutive windows overlap. Approximate. Ignored with -L or -G, and -d does not apply\n");
+		sb.append("-O INT = Overlap consecutive windows by INT onsets (default = a quarter of the window size)\n");
+		sb.append("-k INT = Run at most INT segments or windows at once (default = the number of processors)\n");
+		sb.append("-c = With -r and -q, -G, or -W, also run a single HMM over each song, and report how the two compare\n\n");
 		sb.append("Note that either -t, -r, or -e is required for the program to run.\n\n");
 
 		sb.append("PARAMETERS (with -r):\n");
@@ -0,0 +1,433 @@
+package voicesplitting.voice.hmm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import voicesplitting.generic.PersistentList;
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelTransitionScores</code> holds everything needed to score the transitions
+ * of a single {@link HmmVoiceSplittingModelState}'s chord recursion, so that the recursion only has to
+ * index into arrays.
+ * <p>
+ * The log probability of adding each incoming note into each of the state's {@link Voice}s is looked up
+ * from the {@link HmmVoiceSplittingModelScoreCache} once, when this is created. The only part of a
+ * transition's score which can change during the recursion is the penalty for being out of pitch order
+ * with a neighbouring Voice, and that depends only on the neighbours' most recent pitches. So, this
+ * also tracks the recursion's List of Voices as it changes: for each position, the index of the state's
+ * Voice which is still there unchanged (if any), and the most recent pitch. It must be updated alongside
+ * that List, with {@link #insertVoice(int, int, Voice)}, {@link #removeVoice(int)},
+ * {@link #extendVoice(int, int, Voice)}, and {@link #restoreVoice(int, int)}.
+ * <p>
+ * It also records those changes in order, so that when the recursion reaches a new state, that
+ * state's {@link PersistentList} of Voices can be derived from the transitioning state's by
+ * {@link #applyChanges(PersistentList)}, sharing everything which was not changed.
+ * <p>
+ * If the parameters have a {@link HmmVoiceSplittingModelParameters#PITCH_WINDOW}, each note can only be
+ * added into the Voices whose weighted pitch is within that window of its own, which are found in the state's
+ * {@link HmmVoiceSplittingModelPitchIndex}. Every other Voice is closed for that note, and the Voices which
+ * are closed for every note are never scored at all. The new state's index is derived from the transitioning
+ * state's by {@link #applyChanges(HmmVoiceSplittingModelPitchIndex)}.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelTransitionScores {
+
+	/**
+	 * The incoming notes.
+	 */
+	private final List<MidiNote> incoming;
+
+	/**
+	 * The pitch of each incoming note.
+	 */
+	private final int[] notePitches;
+
+	/**
+	 * The log probability of adding each incoming note into each of the state's Voices, or {@link Double#NaN}
+	 * if the note cannot be added into it. The value for a note and Voice is at index (voice * n + note),
+	 * where n is the number of incoming notes.
+	 */
+	private final double[] scores;
+
+	/**
+	 * The most recent pitch of each of the state's Voices.
+	 */
+	private final int[] voicePitches;
+
+	/**
+	 * The log probability of adding a note into a new Voice.
+	 */
+	private final double logNewVoiceProbability;
+
+	/**
+	 * The log probability penalty for adding a note out of pitch order with a neighbouring Voice.
+	 */
+	private final double logOrderPenalty;
+
+	/**
+	 * For each position in the recursion's List of Voices, the index of the state's Voice which is there
+	 * unchanged, or -1 if that Voice has received an incoming note or is new.
+	 */
+	private final int[] originals;
+
+	/**
+	 * For each position in the recursion's List of Voices, the pitch of that Voice's most recent note.
+	 */
+	private final int[] pitches;
+
+	/**
+	 * The current number of Voices in the recursion's List.
+	 */
+	private int size;
+
+	/**
+	 * The index in the recursion's List of each change made so far, in order.
+	 */
+	private final int[] changePositions;
+
+	/**
+	 * The Voice placed into the recursion's List by each change made so far.
+	 */
+	private final Voice[] changeVoices;
+
+	/**
+	 * Whether each change made so far inserted its Voice (true) or replaced an existing one (false).
+	 */
+	private final boolean[] changeInserts;
+
+	/**
+	 * The number of changes made so far.
+	 */
+	private int numChanges;
+
+	/**
+	 * Create the transition scores of the given Voices on the incoming notes of the given cache.
+	 *
+	 * @param cache The score cache for the incoming notes.
+	 * @param voices The Voices of the state which is transitioning.
+	 * @param index The pitch index of the given Voices, or null if the parameters have no pitch window.
+	 */
+	public HmmVoiceSplittingModelTransitionScores(HmmVoiceSplittingModelScoreCache cache, List<Voice> voices, HmmVoiceSplittingModelPitchIndex index) {
+		incoming = cache.getIncoming();
+		scores = index == null ? cache.getScores(voices) : getWindowedScores(cache, voices, index);
+		logNewVoiceProbability = cache.getScorer().getLogNewVoiceProbability();
+		logOrderPenalty = cache.getScorer().getLogOrderPenalty();
+
+		notePitches = new int[incoming.size()];
+		for (int note = 0; note < notePitches.length; note++) {
+			notePitches[note] = incoming.get(note).getPitch();
+		}
+
+		size = voices.size();
+		voicePitches = new int[size];
+		originals = new int[size + notePitches.length];
+		pitches = new int[size + notePitches.length];
+
+		int i = 0;
+		for (Voice voice : voices) {
+			voicePitches[i] = voice.getMostRecentNote().getPitch();
+			originals[i] = i;
+			pitches[i] = voicePitches[i];
+			i++;
+		}
+
+		// Each note makes one change
+		changePositions = new int[notePitches.length];
+		changeVoices = new Voice[notePitches.length];
+		changeInserts = new boolean[notePitches.length];
+		numChanges = 0;
+	}
+
+	/**
+	 * Get the scores of the incoming notes of the given cache in the given Voices, where each note is only
+	 * scored in the Voices within the pitch window around it.
+	 *
+	 * @param cache The score cache for the incoming notes.
+	 * @param voices The Voices of the state which is transitioning.
+	 * @param index The pitch index of the given Voices.
+	 * @return The log probability of adding each incoming note into each Voice, laid out as in {@link #scores},
+	 * or {@link Double#NaN} if the note cannot be added into it, or the Voice is outside of its pitch window.
+	 */
+	private static double[] getWindowedScores(HmmVoiceSplittingModelScoreCache cache, List<Voice> voices, HmmVoiceSplittingModelPitchIndex index) {
+		List<MidiNote> incoming = cache.getIncoming();
+		double window = cache.getParams().getPitchWindowSemitones();
+		int numNotes = incoming.size();
+
+		// The range of ranks in the window of each note
+		int[] firsts = new int[numNotes];
+		int[] ends = new int[numNotes];
+		for (int note = 0; note < numNotes; note++) {
+			int pitch = incoming.get(note).getPitch();
+			firsts[note] = index.getFirst(pitch - window);
+			ends[note] = index.getEnd(pitch + window);
+		}
+
+		double[] scores = new double[voices.size() * numNotes];
+		Arrays.fill(scores, Double.NaN);
+
+		int[] candidateRanks = getCandidateRanks(firsts, ends);
+		if (candidateRanks.length == 0) {
+			return scores;
+		}
+
+		List<Voice> candidates = new ArrayList<Voice>(candidateRanks.length);
+		for (int rank : candidateRanks) {
+			candidates.add(voices.get(index.getVoice(rank)));
+		}
+
+		// Only the values of each note's own window are copied in
+		double[] candidateScores = cache.getScores(candidates);
+		for (int note = 0; note < numNotes; note++) {
+			if (firsts[note] >= ends[note]) {
+				continue;
+			}
+
+			int candidate = Arrays.binarySearch(candidateRanks, firsts[note]);
+			for (int rank = firsts[note]; rank < ends[note]; rank++, candidate++) {
+				scores[index.getVoice(rank) * numNotes + note] = candidateScores[candidate * numNotes + note];
+			}
+		}
+
+		return scores;
+	}
+
+	/**
+	 * Get every rank which lies within at least one of the given ranges, so that the Voices between the
+	 * ranges of different notes are not scored.
+	 *
+	 * @param firsts The first rank of each range.
+	 * @param ends The rank after the last of each range.
+	 * @return The ranks within any of the ranges, in increasing order, each only once.
+	 */
+	private static int[] getCandidateRanks(int[] firsts, int[] ends) {
+		// Visit the ranges in order of their first rank
+		int[] order = new int[firsts.length];
+		int total = 0;
+		for (int i = 0; i < order.length; i++) {
+			int j = i;
+			for (; j > 0 && firsts[order[j - 1]] > firsts[i]; j--) {
+				order[j] = order[j - 1];
+			}
+
+			order[j] = i;
+			total += Math.max(ends[i] - firsts[i], 0);
+		}
+
+		int[] ranks = new int[total];
+		int numRanks = 0;
+		int covered = 0;
+		for (int range : order) {
+			for (int rank = Math.max(firsts[range], covered); rank < ends[range]; rank++) {
+				ranks[numRanks++] = rank;
+			}
+
+			covered = Math.max(covered, ends[range]);
+		}
+
+		return numRanks == ranks.length ? ranks : Arrays.copyOf(ranks, numRanks);
+	}
+
+	/**
+	 * Get the log probability of the given transition, including any penalty for being out of pitch order
+	 * with the Voices which would neighbour it in the recursion's List of Voices as it is now.
+	 *
+	 * @param note The index of the incoming note.
+	 * @param transition A negative value to add the note to a new Voice at index (-transition - 1),
+	 * or a non-negative value to add the note into the existing Voice at that index, which must be
+	 * one of the state's Voices which is open for the note.
+	 * @return The log probability of the given transition, or -{@link Double#MAX_VALUE} in place of
+	 * {@link Double#NEGATIVE_INFINITY}.
+	 */
+	public double getTransitionProb(int note, int transition) {
+		double logProb;
+		int next;
+
+		if (transition < 0) {
+			transition = -transition - 1;
+			logProb = logNewVoiceProbability;
+			next = transition;
+
+		} else {
+			logProb = scores[originals[transition] * notePitches.length + note];
+			next = transition + 1;
+		}
+
+		// Check if we are in the wrong order with the prev or next Voices (or both)
+		int pitch = notePitches[note];
+		if (transition > 0 && pitch < pitches[transition - 1]) {
+			logProb -= logOrderPenalty;
+		}
+
+		if (next < size && pitch > pitches[next]) {
+			logProb -= logOrderPenalty;
+		}
+
+		if (logProb == Double.NEGATIVE_INFINITY) {
+			logProb = -Double.MAX_VALUE;
+		}
+
+		return logProb;
+	}
+
+	/**
+	 * Record that a new Voice containing the given note was inserted into the recursion's List of Voices.
+	 *
+	 * @param position The index at which the new Voice was inserted.
+	 * @param note The index of the incoming note which it contains.
+	 * @param voice The new Voice.
+	 */
+	public void insertVoice(int position, int note, Voice voice) {
+		recordChange(position, voice, true);
+
+		System.arraycopy(originals, position, originals, position + 1, size - position);
+		System.arraycopy(pitches, position, pitches, position + 1, size - position);
+
+		originals[position] = -1;
+		pitches[position] = notePitches[note];
+		size++;
+	}
+
+	/**
+	 * Record that the Voice at the given index was removed from the recursion's List of Voices.
+	 * This undoes {@link #insertVoice(int, int, Voice)}.
+	 *
+	 * @param position The index of the removed Voice.
+	 */
+	public void removeVoice(int position) {
+		numChanges--;
+		size--;
+		System.arraycopy(originals, position + 1, originals, position, size - position);
+		System.arraycopy(pitches, position + 1, pitches, position, size - position);
+	}
+
+	/**
+	 * Record that the given note was added into the Voice at the given index of the recursion's List of Voices.
+	 *
+	 * @param position The index of the Voice.
+	 * @param note The index of the incoming note.
+	 * @param voice The extended Voice, which replaced the one at the given position.
+	 * @return The index of the state's Voice which was at the given position before, to be passed to
+	 * {@link #restoreVoice(int, int)}.
+	 */
+	public int extendVoice(int position, int note, Voice voice) {
+		recordChange(position, voice, false);
+
+		int original = originals[position];
+
+		originals[position] = -1;
+		pitches[position] = notePitches[note];
+		return original;
+	}
+
+	/**
+	 * Record that the Voice at the given index of the recursion's List of Voices was restored to the given one
+	 * of the state's Voices. This undoes {@link #extendVoice(int, int, Voice)}.
+	 *
+	 * @param position The index of the Voice.
+	 * @param original The index of the state's Voice, as returned by {@link #extendVoice(int, int, Voice)}.
+	 */
+	public void restoreVoice(int position, int original) {
+		numChanges--;
+		originals[position] = original;
+		pitches[position] = voicePitches[original];
+	}
+
+	/**
+	 * Record a change to the recursion's List of Voices.
+	 *
+	 * @param position The index of the change.
+	 * @param voice The Voice placed at that index.
+	 * @param insert True if the Voice was inserted, false if it replaced the one there.
+	 */
+	private void recordChange(int position, Voice voice, boolean insert) {
+		changePositions[numChanges] = position;
+		changeVoices[numChanges] = voice;
+		changeInserts[numChanges] = insert;
+		numChanges++;
+	}
+
+	/**
+	 * Apply the changes made so far to the recursion's List of Voices to the given List.
+	 *
+	 * @param voices The Voices of the state which is transitioning.
+	 * @return A List equal to the recursion's List of Voices as it is now, sharing all of its unchanged
+	 * structure with the given one.
+	 */
+	public PersistentList<Voice> applyChanges(PersistentList<Voice> voices) {
+		for (int i = 0; i < numChanges; i++) {
+			voices = changeInserts[i] ? voices.plus(changePositions[i], changeVoices[i]) : voices.with(changePositions[i], changeVoices[i]);
+		}
+
+		return voices;
+	}
+
+	/**
+	 * Get the pitch index of the recursion's List of Voices as it is now, derived from the given index by
+	 * the changes made so far (see {@link HmmVoiceSplittingModelPitchIndex}).
+	 *
+	 * @param index The pitch index of the state which is transitioning, or null if there is none.
+	 * @return The new pitch index, or null if the given one is null.
+	 */
+	public HmmVoiceSplittingModelPitchIndex applyChanges(HmmVoiceSplittingModelPitchIndex index) {
+		if (index == null) {
+			return null;
+		}
+
+		return new HmmVoiceSplittingModelPitchIndex(index, changePositions, changeVoices, changeInserts, numChanges);
+	}
+
+	/**
+	 * Decide whether the given incoming note can be added into the given one of the state's Voices.
+	 *
+	 * @param note The index of the incoming note.
+	 * @param voice The index of the state's Voice.
+	 * @return True if the note can be added into the Voice. False otherwise.
+	 */
+	public boolean isOpen(int note, int voice) {
+		return !Double.isNaN(scores[voice * notePitches.length + note]);
+	}
+
+	/**
+	 * Get the log probability of adding the given incoming note into the given one of the state's Voices,
+	 * without any penalty for pitch ordering.
+	 *
+	 * @param note The index of the incoming note.
+	 * @param voice The index of the state's Voice, which must be open for the note.
+	 * @return The log probability of adding the note into the Voice.
+	 */
+	public double getLogProbability(int note, int voice) {
+		return scores[voice * notePitches.length + note];
+	}
+
+	/**
+	 * Get the log probability of adding a note into a new Voice, without any penalty for pitch ordering.
+	 *
+	 * @return {@link #logNewVoiceProbability}
+	 */
+	public double getLogNewVoiceProbability() {
+		return logNewVoiceProbability;
+	}
+
+	/**
+	 * Get the incoming notes.
+	 *
+	 * @return {@link #incoming}
+	 */
+	public List<MidiNote> getIncoming() {
+		return incoming;
+	}
+
+	/**
+	 * Get the number of the state's Voices.
+	 *
+	 * @return The number of the state's Voices.
+	 */
+	public int getNumVoices() {
+		return voicePitches.length;
+	}
+}
@@ -0,0 +1,351 @@
+package voicesplitting.voice.hmm;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import voicesplitting.utils.MidiNote;
+import voicesplitting.voice.Voice;
+
+/**
+ * An <code>HmmVoiceSplittingModelWindower</code> is an approximate parallel alternative to running a single
+ * {@link HmmVoiceSplittingModel} over a whole song, for songs without the long silences needed by an
+ * {@link HmmVoiceSplittingModelSegmenter}.
+ * <p>
+ * The song's onset groups are cut into windows of a fixed number of groups, each overlapping the one
+ * before it by a fixed number of groups, and a separate model is run on each window in parallel. The
+ * windows are then reconciled in order at the middle of each overlap: the Voices found so far keep their
+ * notes before that point, and the next window's Voices supply the notes after it. Each of the next
+ * window's Voices is joined onto the existing Voice which agrees with it on the most notes of the first
+ * half of the overlap, ties (including Voices which agree with none) being broken by the model's own
+ * transition scores, and the best such assignment is found with the Hungarian method (see
+ * {@link HmmVoiceSplittingModelChordAssignment}).
+ * <p>
+ * Since each window's model starts with no context, its first few groups are less reliable, which is
+ * what the overlap is for. Larger overlaps are more accurate, but repeat more work.
+ *
+ * @version 1.0
+ * @since 1.0
+ */
+public class HmmVoiceSplittingModelWindower {
+
+	/**
+	 * The parameters to use.
+	 */
+	private final HmmVoiceSplittingModelParameters params;
+
+	/**
+	 * Whether each window's model should expand its hypotheses in parallel.
+	 */
+	private final boolean parallel;
+
+	/**
+	 * Whether each window's model should recombine equivalent hypotheses.
+	 */
+	private final boolean recombine;
+
+	/**
+	 * Whether each window's model should store its Voices in a {@link voicesplitting.voice.VoiceArena}.
+	 */
+	private final boolean useArena;
+
+	/**
+	 * The number of onset groups in each window.
+	 */
+	private final int windowSize;
+
+	/**
+	 * The number of onset groups which each window shares with the one before it.
+	 */
+	private final int overlap;
+
+	/**
+	 * The number of windows run at once.
+	 */
+	private final int numThreads;
+
+	/**
+	 * The number of windows used by the most recent call to {@link #run(List)}.
+	 */
+	private int numWindows;
+
+	/**
+	 * The number of notes in the first halves of the overlaps of the most recent call to {@link #run(List)}
+	 * which were put into the same Voice by both windows' reconciled Voices.
+	 */
+	private int numAgreedNotes;
+
+	/**
+	 * The number of notes in the first halves of the overlaps of the most recent call to {@link #run(List)}.
+	 */
+	private int numOverlapNotes;
+
+	/**
+	 * Create a new windower.
+	 *
+	 * @param params {@link #params}
+	 * @param parallel {@link #parallel}
+	 * @param recombine {@link #recombine}
+	 * @param useArena {@link #useArena}
+	 * @param windowSize {@link #windowSize}
+	 * @param overlap {@link #overlap}
+	 * @param numThreads {@link #numThreads}
+	 * @throws IllegalArgumentException If the window size is not positive, or the overlap is not between 0
+	 * and the window size.
+	 */
+	public HmmVoiceSplittingModelWindower(HmmVoiceSplittingModelParameters params, boolean parallel, boolean recombine,
+			boolean useArena, int windowSize, int overlap, int numThreads) {
+		if (windowSize <= 0 || overlap < 0 || overlap >= windowSize) {
+			throw new IllegalArgumentException("Window overlap must be at least 0 and less than the window size.");
+		}
+
+		this.params = params;
+		this.parallel = parallel;
+		this.recombine = recombine;
+		this.useArena = useArena;
+		this.windowSize = windowSize;
+		this.overlap = overlap;
+		this.numThreads = numThreads;
+		numWindows = 0;
+		numAgreedNotes = 0;
+		numOverlapNotes = 0;
+	}
+
+	/**
+	 * Cut the given onset groups into overlapping windows, run a model on each of them in parallel, and
+	 * reconcile their resulting Voices.
+	 *
+	 * @param incomingLists The onset groups of a song, in time order, as returned by
+	 * {@link voicesplitting.parsing.NoteListGenerator#getIncomingLists()}.
+	 * @return The Voices of the whole song, or null if some window's model found no result.
+	 * @throws InterruptedException If this is interrupted while waiting for the windows.
+	 * @throws ExecutionException If some window's model throws an exception.
+	 */
+	public List<Voice> run(List<List<MidiNote>> incomingLists) throws InterruptedException, ExecutionException {
+		List<List<List<MidiNote>>> windows = new ArrayList<List<List<MidiNote>>>();
+		for (int start = 0; start < incomingLists.size(); start += windowSize - overlap) {
+			int end = Math.min(start + windowSize, incomingLists.size());
+			windows.add(incomingLists.subList(start, end));
+
+			if (end == incomingLists.size()) {
+				break;
+			}
+		}
+
+		numWindows = windows.size();
+		numAgreedNotes = 0;
+		numOverlapNotes = 0;
+
+		List<List<Voice>> results = HmmVoiceSplittingModelSegmenter.runModels(windows, params, parallel, recombine,
+				useArena, numThreads);
+
+		List<Voice> voices = new ArrayList<Voice>();
+		for (int window = 0; window < results.size(); window++) {
+			List<Voice> windowVoices = results.get(window);
+			if (windowVoices == null) {
+				return null;
+			}
+
+			if (window == 0) {
+				for (Voice voice : windowVoices) {
+					voices.add(extend(null, voice.getNotes()));
+				}
+
+			} else {
+				// Cut in the middle of the overlap between this window and the previous one
+				int start = window * (windowSize - overlap);
+				int end = Math.min(start - (windowSize - overlap) + windowSize, incomingLists.size());
+				long overlapTime = incomingLists.get(start).get(0).getOnsetTime();
+				long cutTime = incomingLists.get(start + (end - start) / 2).get(0).getOnsetTime();
+
+				voices = reconcile(voices, windowVoices, overlapTime, cutTime);
+			}
+		}
+
+		return voices;
+	}
+
+	/**
+	 * Join the Voices of a window onto the Voices found so far.
+	 *
+	 * @param voices The Voices found so far, each storing its own values.
+	 * @param next The Voices of the next window.
+	 * @param overlapTime The onset time of the first group of the next window.
+	 * @param cutTime The onset time of the first group whose notes are taken from the next window rather
+	 * than from the Voices found so far. Notes from the overlap time up to this time are used to measure
+	 * the agreement between the two.
+	 * @return The joined Voices, each storing its own values.
+	 */
+	private List<Voice> reconcile(List<Voice> voices, List<Voice> next, long overlapTime, long cutTime) {
+		HmmVoiceSplittingModelScorer scorer = params.getScorer();
+		double newVoiceCost = -scorer.getLogNewVoiceProbability();
+
+		// The part of each existing Voice before the cut, and the existing Voice of each note in the overlap before it
+		Voice[] prefixes = new Voice[voices.size()];
+		Map<MidiNote, Integer> overlapColumns = new IdentityHashMap<MidiNote, Integer>();
+		for (int column = 0; column < voices.size(); column++) {
+			Voice prefix = voices.get(column);
+			while (prefix != null && prefix.getMostRecentNote().getOnsetTime() >= cutTime) {
+				prefix = prefix.getPrevious();
+			}
+			prefixes[column] = prefix;
+
+			for (Voice node = prefix; node != null && node.getMostRecentNote().getOnsetTime() >= overlapTime; node = node.getPrevious()) {
+				overlapColumns.put(node.getMostRecentNote(), column);
+			}
+		}
+
+		// Rows are the next Voices with notes after the cut
+		List<List<MidiNote>> suffixes = new ArrayList<List<MidiNote>>(next.size());
+		List<int[]> agreements = new ArrayList<int[]>(next.size());
+		for (Voice voice : next) {
+			List<MidiNote> notes = voice.getNotes();
+			int[] agreement = new int[voices.size()];
+
+			int cut = 0;
+			for (; cut < notes.size() && notes.get(cut).getOnsetTime() < cutTime; cut++) {
+				Integer column = overlapColumns.get(notes.get(cut));
+				if (column != null) {
+					agreement[column]++;
+				}
+			}
+
+			if (cut < notes.size()) {
+				suffixes.add(notes.subList(cut, notes.size()));
+				agreements.add(agreement);
+
+			} else {
+				// Nothing to join, so this Voice agrees as well as it can
+				int maxAgreement = 0;
+				for (int count : agreement) {
+					maxAgreement = Math.max(maxAgreement, count);
+				}
+				numAgreedNotes += maxAgreement;
+			}
+		}
+		numOverlapNotes += overlapColumns.size();
+
+		if (suffixes.isEmpty()) {
+			List<Voice> reconciled = new ArrayList<Voice>(voices.size());
+			for (Voice prefix : prefixes) {
+				if (prefix != null) {
+					reconciled.add(prefix);
+				}
+			}
+			return reconciled;
+		}
+
+		// Transition costs, with new Voice columns after the existing ones
+		double[][] costs = new double[suffixes.size()][voices.size() + suffixes.size()];
+		double maxRowCostSum = 0.0;
+		for (int row = 0; row < suffixes.size(); row++) {
+			MidiNote first = suffixes.get(row).get(0);
+			double maxRowCost = newVoiceCost;
+
+			for (int column = 0; column < voices.size(); column++) {
+				Voice prefix = prefixes[column];
+
+				if (prefix == null) {
+					costs[row][column] = newVoiceCost;
+
+				} else if (!prefix.canAddNoteAtTime(first.getOnsetTime(), first.getDurationTime(), params)) {
+					costs[row][column] = HmmVoiceSplittingModelChordAssignment.FORBIDDEN;
+
+				} else {
+					costs[row][column] = -scorer.getLogProbability(prefix, first, params);
+				}
+
+				if (costs[row][column] != HmmVoiceSplittingModelChordAssignment.FORBIDDEN) {
+					maxRowCost = Math.max(maxRowCost, costs[row][column]);
+				}
+			}
+			for (int column = voices.size(); column < costs[row].length; column++) {
+				costs[row][column] = newVoiceCost;
+			}
+
+			if (maxRowCost != Double.POSITIVE_INFINITY) {
+				maxRowCostSum += Math.max(0.0, maxRowCost);
+			}
+		}
+
+		// Weight agreement so that it always outweighs the transition scores
+		double agreementWeight = maxRowCostSum + 1.0;
+		for (int row = 0; row < suffixes.size(); row++) {
+			int[] agreement = agreements.get(row);
+			for (int column = 0; column < voices.size(); column++) {
+				costs[row][column] -= agreement[column] * agreementWeight;
+			}
+		}
+
+		HmmVoiceSplittingModelChordAssignment assignment = HmmVoiceSplittingModelChordAssignment.solve(costs);
+
+		Voice[] reconciled = prefixes.clone();
+		List<Voice> newVoices = new ArrayList<Voice>();
+		for (int row = 0; row < suffixes.size(); row++) {
+			int column = assignment == null ? voices.size() : assignment.getColumn(row);
+
+			if (column < voices.size()) {
+				reconciled[column] = extend(prefixes[column], suffixes.get(row));
+				numAgreedNotes += agreements.get(row)[column];
+
+			} else {
+				newVoices.add(extend(null, suffixes.get(row)));
+			}
+		}
+
+		List<Voice> joined = new ArrayList<Voice>(voices.size() + newVoices.size());
+		for (Voice voice : reconciled) {
+			if (voice != null) {
+				joined.add(voice);
+			}
+		}
+		joined.addAll(newVoices);
+
+		return joined;
+	}
+
+	/**
+	 * Extend the given Voice with the given notes.
+	 *
+	 * @param voice The Voice to extend, which must store its own values, or null to begin a new Voice.
+	 * @param notes The notes to add, in order.
+	 * @return The extended Voice.
+	 */
+	private Voice extend(Voice voice, List<MidiNote> notes) {
+		for (MidiNote note : notes) {
+			voice = new Voice(note, voice, params);
+		}
+
+		return voice;
+	}
+
+	/**
+	 * Get the number of windows used by the most recent call to {@link #run(List)}.
+	 *
+	 * @return {@link #numWindows}
+	 */
+	public int getNumWindows() {
+		return numWindows;
+	}
+
+	/**
+	 * Get the number of notes in the first halves of the overlaps of the most recent call to
+	 * {@link #run(List)} which were put into the same Voice by both windows' reconciled Voices.
+	 *
+	 * @return {@link #numAgreedNotes}
+	 */
+	public int getNumAgreedNotes() {
+		return numAgreedNotes;
+	}
+
+	/**
+	 * Get the number of notes in the first halves of the overlaps of the most recent call to {@link #run(List)}.
+	 *
+	 * @return {@link #numOverlapNotes}
+	 */
+	public int getNumOverlapNotes() {
+		return numOverlapNotes;
+	}
+}